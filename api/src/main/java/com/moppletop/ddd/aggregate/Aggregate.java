@@ -59,6 +59,13 @@ public interface Aggregate<T> {
      */
     T getCurrentState();
 
+    /**
+     * @return Where the stored state of the aggregate was taken, or null if its state is stored on every command
+     */
+    default AggregateSnapshot getSnapshot() {
+        return null;
+    }
+
     /**
      * @return Whether or not an aggregate exists within the database
      */
@@ -0,0 +1,39 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+
+import java.util.UUID;
+
+/**
+ * Decides how an aggregate is protected from concurrent modification while a command is being handled against it.
+ * <br>
+ * <br>
+ * An optimistic strategy simply loads the aggregate and relies on the event sequence check when it is saved (see
+ * {@link Aggregate#getInitialEventSequence()}), a pessimistic strategy takes a database lock which is held until the
+ * transaction ends, so concurrent commands from other nodes queue in the database rather than doing work that will be
+ * rolled back.
+ */
+public interface AggregateLockStrategy {
+
+    /**
+     * Loads an aggregate's current state for a command, acquiring any locks the strategy requires
+     *
+     * @param repository The repository to load the aggregate from
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateIdentifier The aggregate identifier of the aggregate
+     * @param <T> The type of the underlying aggregate class, not used by the framework, useful for type safety
+     * @return The latest state of the aggregate
+     * @throws com.moppletop.ddd.error.AggregateNotFoundException If the aggregate does not exist
+     */
+    <T> Aggregate<T> loadAggregate(AggregateRepository repository, ConnectionProvider connectionProvider, UUID aggregateIdentifier);
+
+    /**
+     * Called when a command against an aggregate failed with a {@link com.moppletop.ddd.error.ConcurrencyConflictException},
+     * strategies may use this to adapt how the aggregate is locked in the future
+     *
+     * @param aggregateIdentifier The aggregate identifier of the aggregate that conflicted
+     */
+    default void onConcurrencyConflict(UUID aggregateIdentifier) {
+    }
+
+}
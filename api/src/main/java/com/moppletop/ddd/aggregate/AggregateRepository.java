@@ -1,8 +1,11 @@
 package com.moppletop.ddd.aggregate;
 
 import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.error.AggregateNotFoundException;
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventRepository;
 
-import java.util.UUID;
+import java.util.*;
 
 /**
  * Repository for storing the current state of an aggregate
@@ -19,13 +22,100 @@ public interface AggregateRepository {
      */
     <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier);
 
+    /**
+     * Loads the current state of many aggregates at once, implementations should override this to load them all in as
+     * few queries as possible
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateIdentifiers The aggregate identifiers of the aggregates
+     * @param <T> The type of the underlying aggregate class, not used by the framework, useful for type safety
+     * @return The latest state of each aggregate by its aggregate identifier, aggregates which don't exist are left out
+     */
+    default <T> Map<UUID, Aggregate<T>> loadAggregates(ConnectionProvider connectionProvider, Collection<UUID> aggregateIdentifiers) {
+        Map<UUID, Aggregate<T>> aggregates = new HashMap<>();
+
+        for (UUID aggregateIdentifier : aggregateIdentifiers) {
+            try {
+                aggregates.put(aggregateIdentifier, loadAggregate(connectionProvider, aggregateIdentifier));
+            } catch (AggregateNotFoundException ignored) {
+                // Left out of the result
+            }
+        }
+
+        return aggregates;
+    }
+
+    /**
+     * Loads an aggregates current state and locks it until the current transaction ends, implementations which can't lock
+     * will simply load the aggregate
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateIdentifier The aggregate identifier of the aggregate
+     * @param <T> The type of the underlying aggregate class, not used by the framework, useful for type safety
+     * @return The latest state of the aggregate
+     */
+    default <T> Aggregate<T> loadAggregateForUpdate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return loadAggregate(connectionProvider, aggregateIdentifier);
+    }
+
+    /**
+     * Loads only the latest event sequence number of an aggregate, used to check whether a copy of the aggregate held
+     * elsewhere is still up to date. Implementations should override this with something cheaper than loading the whole
+     * aggregate
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateIdentifier The aggregate identifier of the aggregate
+     * @return The latest event sequence number of the aggregate
+     * @throws com.moppletop.ddd.error.AggregateNotFoundException If the aggregate does not exist
+     */
+    default long loadEventSequence(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return loadAggregate(connectionProvider, aggregateIdentifier).getEventSequence();
+    }
+
     /**
      * Saves an aggregate's current state
      *
      * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
      * @param aggregate The aggregate to save
      * @return If the does not aggregate exist, the newly global id assigned when it's state was saved, otherwise, <code>aggregate.getGlobalId();</code>
+     * @throws com.moppletop.ddd.error.ConcurrencyConflictException If the aggregate was modified or created by another
+     * transaction since it was loaded
      */
     long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate);
 
+    /**
+     * Saves an aggregate's current state together with the events which were applied to it. Implementations should
+     * override this to write everything in as few round trips as possible, by default the aggregate is inserted first if
+     * it does not exist (to assign its global id), then the events are saved and finally the aggregate's state is updated.
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregate The aggregate to save, its event sequence is ignored and replaced with that of the last event
+     * @param events The events applied to the aggregate, at least one, their global aggregate id is ignored
+     * @param eventRepository The repository to save the events with
+     * @return The global id of the aggregate and the event sequence numbers assigned to the events
+     * @throws com.moppletop.ddd.error.ConcurrencyConflictException If the aggregate was modified or created by another
+     * transaction since it was loaded
+     */
+    default SavedAggregate saveAggregateAndEvents(ConnectionProvider connectionProvider, Aggregate<?> aggregate, List<? extends EventContainer<?>> events, EventRepository eventRepository) {
+        long globalId = aggregate.exists() ? aggregate.getGlobalId() : saveAggregate(connectionProvider, aggregate);
+        List<EventContainer<?>> eventContainers = new ArrayList<>(events.size());
+
+        for (EventContainer<?> event : events) {
+            eventContainers.add(new EventContainer<>(-1L, globalId, event.getPayload(), event.getMetadata()));
+        }
+
+        long[] eventSequences = eventRepository.saveEvents(connectionProvider, eventContainers);
+
+        saveAggregate(connectionProvider, SimpleAggregate.builder()
+                .globalId(globalId)
+                .aggregateIdentifier(aggregate.getAggregateIdentifier())
+                .className(aggregate.getClassName())
+                .initialEventSequence(aggregate.exists() ? aggregate.getInitialEventSequence() : aggregate.getEventSequence())
+                .eventSequence(eventSequences[eventSequences.length - 1])
+                .currentState(aggregate.getCurrentState())
+                .build());
+
+        return new SavedAggregate(globalId, eventSequences, null);
+    }
+
 }
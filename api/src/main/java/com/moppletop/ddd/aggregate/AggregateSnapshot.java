@@ -0,0 +1,31 @@
+package com.moppletop.ddd.aggregate;
+
+import lombok.Value;
+
+import java.time.Instant;
+
+/**
+ * Where the stored state of an aggregate was taken, when its state is only stored every so often rather than on every
+ * command. Events after the snapshot are replayed onto the stored state when the aggregate is loaded
+ *
+ * @see Aggregate#getSnapshot()
+ */
+@Value
+public class AggregateSnapshot {
+
+    /**
+     * The event sequence of the aggregate when its state was stored
+     */
+    long eventSequence;
+
+    /**
+     * When the state was stored
+     */
+    Instant time;
+
+    /**
+     * The number of events applied to the aggregate since its state was stored, if known
+     */
+    int eventsSince;
+
+}
@@ -0,0 +1,36 @@
+package com.moppletop.ddd.aggregate;
+
+import lombok.Value;
+
+/**
+ * The result of saving an aggregate together with the events which were applied to it
+ *
+ * @see AggregateRepository#saveAggregateAndEvents
+ */
+@Value
+public class SavedAggregate {
+
+    /**
+     * The global id of the aggregate, newly assigned if the aggregate did not exist
+     */
+    long globalId;
+
+    /**
+     * The event sequence numbers assigned to the events, in the order the events were given
+     */
+    long[] eventSequences;
+
+    /**
+     * Where the stored state of the aggregate was taken after this save, or null if its state is stored on every command.
+     * A new snapshot if the state was stored, otherwise the previous one counting the events just saved
+     */
+    AggregateSnapshot snapshot;
+
+    /**
+     * @return The event sequence number of the last event, which is now the event sequence of the aggregate
+     */
+    public long getEventSequence() {
+        return eventSequences[eventSequences.length - 1];
+    }
+
+}
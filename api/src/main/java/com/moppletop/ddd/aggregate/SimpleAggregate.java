@@ -15,6 +15,7 @@ public class SimpleAggregate<T> implements Aggregate<T> {
     private final String className;
     private final T currentState;
     private final long initialEventSequence;
+    private final AggregateSnapshot snapshot;
 
     private long eventSequence;
 
@@ -1,5 +1,8 @@
 package com.moppletop.ddd.command;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Represents the entry point users of the API to issue commands
  */
@@ -14,4 +17,22 @@ public interface CommandGateway {
      */
     <T> void send(Command<T> cmd);
 
+    /**
+     * Dispatches a batch of commands synchronously. Commands are grouped by their target aggregate, each aggregate is
+     * loaded once, has its commands applied in the order they were given, and is saved once within a single transaction.
+     *
+     * @param cmds The commands being sent
+     */
+    void sendAll(Collection<? extends Command<?>> cmds);
+
+    /**
+     * Dispatches a command asynchronously. Commands targeted at the same aggregate are handled strictly in the order they
+     * were sent, commands targeted at different aggregates may be handled in parallel.
+     *
+     * @param cmd The command being sent
+     * @param <T> The type of the aggregate this command is targeted at
+     * @return A future which completes once the command's transaction has committed, or exceptionally if it failed
+     */
+    <T> CompletableFuture<Void> sendAsync(Command<T> cmd);
+
 }
@@ -0,0 +1,17 @@
+package com.moppletop.ddd.error;
+
+/**
+ * Thrown when the lock for an aggregate could not be acquired within the configured timeout, or the waiting thread was
+ * interrupted
+ */
+public class AggregateLockTimeoutException extends RuntimeException {
+
+    public AggregateLockTimeoutException(String message) {
+        super(message);
+    }
+
+    public AggregateLockTimeoutException(Throwable cause) {
+        super(cause);
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.moppletop.ddd.error;
+
+/**
+ * Thrown when an aggregate was modified by another transaction while a command was being handled against it, for
+ * example when the aggregate's event sequence changed between being loaded and saved, or two transactions attempted to
+ * create the same aggregate. Retrying the command against the latest state of the aggregate is safe
+ */
+public class ConcurrencyConflictException extends RuntimeException {
+
+    public ConcurrencyConflictException(String message) {
+        super(message);
+    }
+
+    public ConcurrencyConflictException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.moppletop.ddd.error;
+
+/**
+ * Thrown when a stored type id doesn't match any type in the type registry
+ */
+public class TypeNotFoundException extends RuntimeException {
+
+    public TypeNotFoundException(String message) {
+        super(message);
+    }
+
+    public TypeNotFoundException(Throwable cause) {
+        super(cause);
+    }
+
+}
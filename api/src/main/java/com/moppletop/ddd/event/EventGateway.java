@@ -14,4 +14,17 @@ public interface EventGateway {
      */
     void handleStreamedEvent(EventContainer<?> eventContainer) throws Exception;
 
+    /**
+     * When an event has been received for a single processing group, the event streamer should call this so only the
+     * handlers of that group are executed
+     *
+     * @param processingGroup The name of the processing group the event was received for
+     * @param eventContainer The contained event that is being handled
+     * @throws Exception Any exception thrown here should be handled by the streamer to mark that the event is a failure and
+     * should be retried/dead lettered
+     */
+    default void handleStreamedEvent(String processingGroup, EventContainer<?> eventContainer) throws Exception {
+        handleStreamedEvent(eventContainer);
+    }
+
 }
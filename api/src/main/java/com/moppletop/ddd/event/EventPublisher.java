@@ -0,0 +1,18 @@
+package com.moppletop.ddd.event;
+
+import java.util.List;
+
+/**
+ * Represents an event streamer which is handed events directly by the command gateway, once the transaction which saved
+ * them has committed
+ */
+public interface EventPublisher {
+
+    /**
+     * Must not block, it is called on the thread which committed the transaction
+     *
+     * @param eventContainers The committed events of one aggregate, in order, with their event sequences assigned
+     */
+    void publish(List<? extends EventContainer<?>> eventContainers);
+
+}
@@ -2,6 +2,8 @@ package com.moppletop.ddd.event;
 
 import com.moppletop.ddd.database.ConnectionProvider;
 
+import java.util.List;
+
 /**
  * Repository for storing event history
  */
@@ -14,4 +16,29 @@ public interface EventRepository {
      */
     long saveEvent(ConnectionProvider connectionProvider, EventContainer<?> eventContainer);
 
+    /**
+     * Saves many events, implementations should override this to save them all in as few round trips as possible
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param eventContainers The events to be saved, in order
+     * @return The assigned event sequence numbers, in the same order as the events
+     */
+    default long[] saveEvents(ConnectionProvider connectionProvider, List<? extends EventContainer<?>> eventContainers) {
+        long[] eventSequences = new long[eventContainers.size()];
+
+        for (int i = 0; i < eventSequences.length; i++) {
+            eventSequences[i] = saveEvent(connectionProvider, eventContainers.get(i));
+        }
+
+        return eventSequences;
+    }
+
+    /**
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateGlobalId The global id of the aggregate
+     * @param afterEventSequence Only events with a greater event sequence are loaded
+     * @return The events of the aggregate after the event sequence, in order
+     */
+    List<EventContainer<?>> loadEvents(ConnectionProvider connectionProvider, long aggregateGlobalId, long afterEventSequence);
+
 }
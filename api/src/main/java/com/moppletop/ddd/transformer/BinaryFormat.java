@@ -0,0 +1,91 @@
+package com.moppletop.ddd.transformer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Describes how an object serialised to bytes was encoded. The first byte of the serialised object identifies the
+ * format, so the encoding can be changed without rewriting data which has already been stored.
+ * <br>
+ * <br>
+ * Format bytes are all below 0x09, which is never the first byte of JSON text. So JSON stored before the format byte was
+ * introduced, for example a <code>json</code> column converted to <code>bytea</code>, is still read as JSON.
+ */
+public final class BinaryFormat {
+
+    /**
+     * UTF-8 encoded JSON text
+     */
+    public static final byte JSON = 0x01;
+
+    /**
+     * <a href="https://github.com/FasterXML/smile-format-specification">Smile</a>, a binary form of JSON
+     */
+    public static final byte SMILE = 0x02;
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * @param format The format of the body
+     * @param body The serialised object
+     * @return The body prefixed with its format
+     */
+    public static byte[] wrap(byte format, byte[] body) {
+        byte[] wrapped = new byte[body.length + 1];
+
+        wrapped[0] = format;
+        System.arraycopy(body, 0, wrapped, 1, body.length);
+
+        return wrapped;
+    }
+
+    /**
+     * @param serialised A serialised object
+     * @return The format it was serialised with
+     */
+    public static byte getFormat(byte[] serialised) {
+        return isLegacy(serialised) ? JSON : serialised[0];
+    }
+
+    /**
+     * @param serialised A serialised object
+     * @return The offset the body starts at, after the format byte if it has one
+     */
+    public static int getBodyOffset(byte[] serialised) {
+        return isLegacy(serialised) ? 0 : 1;
+    }
+
+    /**
+     * @param serialised A serialised object
+     * @return A copy of the body, without the format byte
+     */
+    public static byte[] getBody(byte[] serialised) {
+        return Arrays.copyOfRange(serialised, getBodyOffset(serialised), serialised.length);
+    }
+
+    /**
+     * @param serialised A JSON serialised object
+     * @return The JSON text
+     */
+    public static String getJson(byte[] serialised) {
+        if (getFormat(serialised) != JSON) {
+            throw new IllegalArgumentException("Expected JSON but the format was " + getFormat(serialised));
+        }
+
+        int offset = getBodyOffset(serialised);
+        return new String(serialised, offset, serialised.length - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param firstByte The first byte of a serialised object
+     * @return Whether the byte is a format byte, rather than the start of legacy JSON
+     */
+    public static boolean isFormatByte(int firstByte) {
+        return firstByte >= 0 && firstByte < 0x09;
+    }
+
+    private static boolean isLegacy(byte[] serialised) {
+        return serialised.length == 0 || !isFormatByte(serialised[0]);
+    }
+}
@@ -1,5 +1,12 @@
 package com.moppletop.ddd.transformer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
 /**
  * Used for object serialisation for events and aggregate state
  */
@@ -21,4 +28,115 @@ public interface ObjectTransformer {
      */
     <T> T deserialise(String obj, Class<T> classOfT) throws Exception;
 
+    /**
+     * Serialises an object to bytes, the first byte identifies the format used (see {@link BinaryFormat}). By default
+     * this is simply the UTF-8 encoded JSON of {@link ObjectTransformer#serialise(Object)}
+     *
+     * @param obj The object to serialise
+     * @return The serialised object
+     * @throws Exception Any exception thrown during the serialisation would be thrown up the stack to here
+     */
+    default byte[] serialiseToBytes(Object obj) throws Exception {
+        return BinaryFormat.wrap(BinaryFormat.JSON, serialise(obj).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param obj The object serialised by {@link ObjectTransformer#serialiseToBytes(Object)}, or legacy JSON without a format byte
+     * @param classOfT The class to deserialise into
+     * @param <T> The type of the class to deserialise into
+     * @return The deserialised object
+     * @throws Exception Any exception thrown during the deserialisation would be thrown up the stack to here
+     */
+    default <T> T deserialise(byte[] obj, Class<T> classOfT) throws Exception {
+        return deserialise(BinaryFormat.getJson(obj), classOfT);
+    }
+
+    /**
+     * @param obj The serialised object
+     * @param offset The offset the serialised object starts at
+     * @param length The length of the serialised object
+     * @param classOfT The class to deserialise into
+     * @param <T> The type of the class to deserialise into
+     * @return The deserialised object
+     * @throws Exception Any exception thrown during the deserialisation would be thrown up the stack to here
+     * @see ObjectTransformer#deserialise(byte[], Class)
+     */
+    default <T> T deserialise(byte[] obj, int offset, int length, Class<T> classOfT) throws Exception {
+        if (offset == 0 && length == obj.length) {
+            return deserialise(obj, classOfT);
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(obj, offset, copy, 0, length);
+        return deserialise(copy, classOfT);
+    }
+
+    /**
+     * Serialises an object in the same way as {@link ObjectTransformer#serialiseToBytes(Object)}, but straight into a
+     * stream, which may be a reused buffer. The stream is not closed
+     *
+     * @param obj The object to serialise
+     * @param out The stream to write to
+     * @throws Exception Any exception thrown during the serialisation would be thrown up the stack to here
+     */
+    default void serialise(Object obj, OutputStream out) throws Exception {
+        out.write(serialiseToBytes(obj));
+    }
+
+    /**
+     * Deserialises an object from the remaining bytes of the buffer, the buffer's position is moved to its limit
+     *
+     * @param obj The serialised object
+     * @param classOfT The class to deserialise into
+     * @param <T> The type of the class to deserialise into
+     * @return The deserialised object
+     * @throws Exception Any exception thrown during the deserialisation would be thrown up the stack to here
+     * @see ObjectTransformer#deserialise(byte[], Class)
+     */
+    default <T> T deserialise(ByteBuffer obj, Class<T> classOfT) throws Exception {
+        int length = obj.remaining();
+
+        if (obj.hasArray()) {
+            int offset = obj.arrayOffset() + obj.position();
+
+            obj.position(obj.limit());
+            return deserialise(obj.array(), offset, length, classOfT);
+        }
+
+        byte[] copy = new byte[length];
+        obj.get(copy);
+        return deserialise(copy, classOfT);
+    }
+
+    /**
+     * Deserialises an object from the rest of a stream, the stream is not closed
+     *
+     * @param obj The stream of the serialised object
+     * @param classOfT The class to deserialise into
+     * @param <T> The type of the class to deserialise into
+     * @return The deserialised object
+     * @throws Exception Any exception thrown during the deserialisation would be thrown up the stack to here
+     * @see ObjectTransformer#deserialise(byte[], Class)
+     */
+    default <T> T deserialise(InputStream obj, Class<T> classOfT) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+
+        while ((read = obj.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+
+        return deserialise(out.toByteArray(), classOfT);
+    }
+
+    /**
+     * Prepares everything needed to serialise and deserialise the given classes, so the first command or event using them
+     * doesn't pay for it. Does nothing by default
+     *
+     * @param classes The classes to prepare, for example every registered aggregate and event
+     */
+    default void warmUp(Collection<Class<?>> classes) {
+    }
+
 }
@@ -0,0 +1,35 @@
+package com.moppletop.ddd.transformer;
+
+import com.moppletop.ddd.util.ClassResolver;
+
+/**
+ * Maps the classes of aggregates and events to small stable ids, so they can be stored and streamed by id rather than
+ * by their fully qualified class name. As only the registry knows the class name behind an id, a class can be renamed
+ * or moved by changing the name its id maps to
+ */
+public interface TypeRegistry {
+
+    /**
+     * @param className The fully qualified name of the class
+     * @return The id of the class, which is registered if it hasn't been already
+     */
+    int getTypeId(String className);
+
+    /**
+     * @param typeId The id of a type
+     * @return The fully qualified name of the class the id maps to
+     * @throws com.moppletop.ddd.error.TypeNotFoundException If no type has the id
+     */
+    String getClassName(int typeId);
+
+    /**
+     * @param typeId The id of a type
+     * @return The class the id maps to
+     * @throws ClassNotFoundException If the class could not be found
+     * @throws com.moppletop.ddd.error.TypeNotFoundException If no type has the id
+     */
+    default Class<?> getType(int typeId) throws ClassNotFoundException {
+        return ClassResolver.resolve(getClassName(typeId));
+    }
+
+}
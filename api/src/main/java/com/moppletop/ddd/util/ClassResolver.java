@@ -0,0 +1,54 @@
+package com.moppletop.ddd.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the stored class names of aggregates and events, remembering every class it has resolved so the class loader
+ * is only asked once per name rather than on every load
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Classes are resolved with the thread's context class loader, or the loader of this class if there is none, and
+ *     are remembered per class loader</li>
+ *     <li>Class loaders and their classes are only weakly referenced, so an application which is redeployed can still
+ *     be unloaded</li>
+ *     <li>Names which fail to resolve are not remembered, so they can't fill up the cache</li>
+ * </ul>
+ */
+public final class ClassResolver {
+
+    private static final Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> CLASSES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private ClassResolver() {
+    }
+
+    /**
+     * @param className The fully qualified name of the class
+     * @return The class
+     * @throws ClassNotFoundException If the class could not be found
+     */
+    public static Class<?> resolve(String className) throws ClassNotFoundException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        if (classLoader == null) {
+            classLoader = ClassResolver.class.getClassLoader();
+        }
+
+        ConcurrentMap<String, WeakReference<Class<?>>> classes = CLASSES.computeIfAbsent(classLoader, key -> new ConcurrentHashMap<>());
+        WeakReference<Class<?>> cached = classes.get(className);
+        Class<?> clazz = cached == null ? null : cached.get();
+
+        if (clazz == null) {
+            clazz = Class.forName(className, true, classLoader);
+            classes.put(className, new WeakReference<>(clazz));
+        }
+
+        return clazz;
+    }
+}
@@ -2,6 +2,9 @@ package com.moppletop.ddd.wiring;
 
 import com.moppletop.ddd.command.Command;
 
+import java.util.Collections;
+import java.util.Set;
+
 /**
  * The WiringManager is responsible for managing creation and execution of all aggregates and handlers via reflection or
  * other means
@@ -10,12 +13,40 @@ public interface WiringManager {
 
     <T> T executeCommandHandler(T aggregate, Command<T> cmd);
 
+    /**
+     * @param cmd The command
+     * @return true if the command is handled by an aggregate's constructor, meaning the aggregate must not exist yet and
+     * does not need to be loaded
+     */
+    default boolean isInitialStateCommand(Command<?> cmd) {
+        return false;
+    }
+
     void executeAggregateStateHandler(Object aggregate, Object event);
 
     void executeDomainEventHandler(Object event);
 
     void executeStreamEventHandler(Object event);
 
+    /**
+     * Executes only the stream event handlers of one processing group, for streamers which track the progress of each
+     * group separately
+     *
+     * @param processingGroup The name of the processing group
+     * @param event The event
+     */
+    default void executeStreamEventHandler(String processingGroup, Object event) {
+        executeStreamEventHandler(event);
+    }
+
     <I, O> O executeQueryHandler(String key, I input, Class<O> classOfOutput);
 
+    /**
+     * @return The classes of every registered aggregate and of every event they or the event handlers handle, the types
+     * which will be serialised and deserialised
+     */
+    default Set<Class<?>> getRegisteredTypes() {
+        return Collections.emptySet();
+    }
+
 }
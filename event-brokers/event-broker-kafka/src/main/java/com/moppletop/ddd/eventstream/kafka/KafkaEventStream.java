@@ -5,6 +5,8 @@ import com.moppletop.ddd.event.EventGateway;
 import com.moppletop.ddd.event.EventMetadata;
 import com.moppletop.ddd.event.EventStreamer;
 import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.transformer.TypeRegistry;
+import com.moppletop.ddd.util.ClassResolver;
 import com.moppletop.ddd.util.EventStreamThreadFactory;
 import lombok.Builder;
 import lombok.Singular;
@@ -13,55 +15,111 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Map.Entry;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 
 /**
  * The <a href="https://kafka.apache.org/documentation">Kafka</a> implementation of the event streamer
  * This implementation has one thread per partition for simplicity of implementation.
  * There are a list of pros and cons of this implementation <a href="https://kafka.apache.org/10/javadoc/org/apache/kafka/clients/consumer/KafkaConsumer.html">here</a>
+ * <br>
+ * <br>
+ * Several topics can be consumed, for example one per event table when aggregate types are stored in tables of their own
+ * (see <code>TableRouting</code> in the framework). Events of one aggregate are always in the same table and so arrive in
+ * order, but there is no order between the events of different topics
+ * <br>
+ * <br>
+ * Records are either Debezium change events of the event table, or the records published by the {@link KafkaOutboxRelay}
+ * <br>
+ * <br>
+ * With worker threads, each consumer hands its records to a pool of workers instead, so a partition isn't limited to one
+ * handler at a time:
+ * <ul>
+ *     <li>Records are sharded across the workers by the aggregate's global id, every worker handles its records in order, so
+ *     the events of an aggregate are still handled in order</li>
+ *     <li>Records complete out of order, only the offset below the oldest record still in flight is committed for each
+ *     partition</li>
+ *     <li>Once too many records are in flight the consumer's partitions are paused, until the workers catch up</li>
+ *     <li>If a handler throws, the records which haven't started are skipped, and once the workers are idle every partition
+ *     is rewound to its committed offset. Records after the failed one may already have been handled, and are handled
+ *     again</li>
+ *     <li>Before partitions are revoked by a rebalance, the records in flight are finished and their offsets committed</li>
+ * </ul>
  */
 @Slf4j
 public class KafkaEventStream implements EventStreamer {
 
-    private static final String SERIALISER = "org.apache.kafka.common.serialization.StringDeserializer";
+    private static final String KEY_DESERIALISER = "org.apache.kafka.common.serialization.StringDeserializer";
+    // The records are handed to the object transformer as they arrive, without decoding them into a String first
+    private static final String VALUE_DESERIALISER = "org.apache.kafka.common.serialization.ByteArrayDeserializer";
 
     private final String groupId;
-    private final String topic;
+    private final List<String> topics;
     private final Collection<String> kafkaHosts;
     private final Duration pollingRate;
+    private final int workerThreads;
+    private final int maxInFlight;
+    private final boolean binaryColumns;
 
     private final List<KafkaConsumerCustomiser> customisers;
 
     private final ObjectTransformer objectTransformer;
+    private final TypeRegistry typeRegistry;
     private final EventGateway eventGateway;
 
     private final AtomicBoolean running;
-    private final List<KafkaConsumer<String, String>> consumers;
-
+    private final List<KafkaConsumer<String, byte[]>> consumers;
+
+    /**
+     * @param workerThreads The number of threads each consumer hands its records to, by default none and records are
+     *                      handled on the consumer's own thread. Any number, even 1, hands records to workers, so the
+     *                      consumer keeps polling while they are handled
+     * @param maxInFlight The number of records handed to the workers of a consumer which haven't been handled yet, past
+     *                    which the consumer pauses, by default 100 per worker thread
+     * @param binaryColumns Whether the payload and metadata columns are <code>bytea</code>, only used for change events
+     *                      published without their schema, by default false
+     */
     @Builder
     public KafkaEventStream(String groupId,
-                            String topic,
+                            @Singular Collection<String> topics,
                             @Singular Collection<String> kafkaHosts,
                             Duration pollingRate,
+                            Integer workerThreads,
+                            Integer maxInFlight,
+                            Boolean binaryColumns,
                             @Singular List<KafkaConsumerCustomiser> customisers,
                             ObjectTransformer objectTransformer,
+                            TypeRegistry typeRegistry,
                             EventGateway eventGateway
     ) {
         this.groupId = groupId;
-        this.topic = topic;
+        this.topics = topics == null ? new ArrayList<>() : new ArrayList<>(topics);
         this.kafkaHosts = kafkaHosts;
         this.pollingRate = pollingRate;
+        this.workerThreads = workerThreads == null ? 0 : workerThreads;
+
+        if (workerThreads != null && workerThreads < 1) {
+            throw new IllegalArgumentException("There must be at least one worker thread!");
+        }
+
+        this.maxInFlight = maxInFlight == null ? Math.max(1, this.workerThreads) * 100 : maxInFlight;
+        this.binaryColumns = binaryColumns != null && binaryColumns;
         this.customisers = customisers == null ? new ArrayList<>() : new ArrayList<>(customisers);
         this.objectTransformer = objectTransformer;
+        this.typeRegistry = typeRegistry;
         this.eventGateway = eventGateway;
 
         this.running = new AtomicBoolean(true);
@@ -88,13 +146,17 @@ public class KafkaEventStream implements EventStreamer {
         ThreadFactory threadFactory = new EventStreamThreadFactory(processingGroup);
 
         for (int i = 1; i <= threads; i++) {
-            KafkaConsumer<String, String> consumer = new KafkaConsumer<>(buildProperties(processingGroup, i));
+            KafkaConsumer<String, byte[]> consumer = new KafkaConsumer<>(buildProperties(processingGroup, i));
             consumers.add(consumer);
 
             // Start a new thread and begin polling
             threadFactory.newThread(() -> {
                 try {
-                    poll(consumer);
+                    if (workerThreads > 0) {
+                        pollInParallel(consumer, threadFactory);
+                    } else {
+                        poll(consumer);
+                    }
                 } finally {
                     consumer.close();
                 }
@@ -102,9 +164,9 @@ public class KafkaEventStream implements EventStreamer {
         }
     }
 
-    private void poll(KafkaConsumer<String, String> consumer) {
-        // Map the partition id to the current offset
-        Map<Integer, Long> offsets = new HashMap<>();
+    private void poll(KafkaConsumer<String, byte[]> consumer) {
+        // Map the partition to the current offset
+        Map<TopicPartition, Long> offsets = new HashMap<>();
         /*
             TODO something to think about?
             The documentation is slightly vague about this, but since we're only every committing to Kafka, only use one
@@ -113,11 +175,11 @@ public class KafkaEventStream implements EventStreamer {
             the poll(timeout) call.
             See https://kafka.apache.org/10/javadoc/org/apache/kafka/clients/consumer/ConsumerRebalanceListener.html
          */
-        consumer.subscribe(Collections.singletonList(topic));
+        consumer.subscribe(topics);
 
         pollLoop:
         while (running.get()) {
-            ConsumerRecords<String, String> records;
+            ConsumerRecords<String, byte[]> records;
 
             try {
                 records = consumer.poll(pollingRate);
@@ -125,16 +187,16 @@ public class KafkaEventStream implements EventStreamer {
                 continue;
             }
 
-            for (ConsumerRecord<String, String> record : records) {
+            for (ConsumerRecord<String, byte[]> record : records) {
                 try {
                     processRecord(record);
-                    offsets.put(record.partition(), record.offset() + 1);
+                    offsets.put(new TopicPartition(record.topic(), record.partition()), record.offset() + 1);
                 } catch (Exception ex) {
                     log.error("A stream event handler threw an unhandled exception, committing the current offset, backing off for 1 second and attempt to reprocess...", ex);
 
                     Map<TopicPartition, OffsetAndMetadata> committed = offsets.entrySet().stream()
                             // We subtract 1 here since we want to retry the event that just threw the exception, not continue from the next event
-                            .map(entry -> new SimpleEntry<>(new TopicPartition(topic, entry.getKey()), new OffsetAndMetadata(entry.getValue() - 1)))
+                            .map(entry -> new SimpleEntry<>(entry.getKey(), new OffsetAndMetadata(entry.getValue() - 1)))
                             .collect(Collectors.toMap(Entry::getKey, Entry::getValue));
 
                     // Commit what we've processed and clear all offsets
@@ -157,25 +219,175 @@ public class KafkaEventStream implements EventStreamer {
         }
     }
 
-    private void processRecord(ConsumerRecord<String, String> record) throws Exception {
-        // TODO sort out this mess
-        Map<?, ?> asMap = objectTransformer.deserialise(record.value(), Map.class);
-        asMap = (Map<?, ?>) asMap.get("payload");
-        asMap = (Map<?, ?>) asMap.get("after");
+    // Package-private so it can be driven by a MockConsumer in tests
+    void pollInParallel(Consumer<String, byte[]> consumer, ThreadFactory threadFactory) {
+        KeyOrderedDispatcher dispatcher = new KeyOrderedDispatcher(threadFactory);
+
+        consumer.subscribe(topics, new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // Whoever is assigned the partitions next carries on from what has been committed
+                dispatcher.drain();
+                commit(consumer, dispatcher);
+                dispatcher.reset();
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            }
+        });
+
+        try {
+            while (running.get()) {
+                ConsumerRecords<String, byte[]> records;
+
+                try {
+                    records = consumer.poll(pollingRate);
+                } catch (WakeupException ex) {
+                    continue;
+                }
+
+                for (ConsumerRecord<String, byte[]> record : records) {
+                    TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+
+                    try {
+                        dispatcher.dispatch(partition, record.offset(), toEventContainer(record));
+                    } catch (Exception ex) {
+                        log.error("Failed to deserialise the record at offset {} of {}", record.offset(), partition, ex);
+                        dispatcher.fail(partition, record.offset());
+                    }
+                }
+
+                if (dispatcher.hasFailed()) {
+                    log.error("A record failed, committing the offsets handled before it, backing off for 1 second and attempt to reprocess...");
+
+                    dispatcher.drain();
+
+                    // Every record polled after the committed offsets is polled again
+                    Map<TopicPartition, OffsetAndMetadata> committed = commit(consumer, dispatcher);
+
+                    committed.forEach((partition, offset) -> consumer.seek(partition, offset.offset()));
+                    dispatcher.reset();
+
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ignored) {
+                    }
+
+                    continue;
+                }
+
+                commit(consumer, dispatcher);
+
+                if (dispatcher.getInFlight() >= maxInFlight) {
+                    consumer.pause(consumer.assignment());
+                } else if (!consumer.paused().isEmpty()) {
+                    consumer.resume(consumer.paused());
+                }
+            }
+
+            dispatcher.drain();
+            commit(consumer, dispatcher);
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    // Commits the offsets which have moved on since they were last committed, returns the offset of every partition
+    private Map<TopicPartition, OffsetAndMetadata> commit(Consumer<String, byte[]> consumer, KeyOrderedDispatcher dispatcher) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = dispatcher.getCommittable();
+        Map<TopicPartition, OffsetAndMetadata> changed = new HashMap<>();
+
+        offsets.forEach((partition, offset) -> {
+            if (dispatcher.markCommitted(partition, offset.offset())) {
+                changed.put(partition, offset);
+            }
+        });
+
+        if (!changed.isEmpty()) {
+            consumer.commitSync(changed);
+        }
+
+        return offsets;
+    }
+
+    private void processRecord(ConsumerRecord<String, byte[]> record) throws Exception {
+        // Notify the gateway we have a new event, this will call all of the handlers
+        eventGateway.handleStreamedEvent(toEventContainer(record));
+    }
+
+    private EventContainer<?> toEventContainer(ConsumerRecord<String, byte[]> record) throws Exception {
+        Header sequence = record.headers().lastHeader(KafkaOutboxRelay.SEQUENCE_HEADER);
+
+        if (sequence != null) {
+            return toEventContainer(record, ByteBuffer.wrap(sequence.value()).getLong());
+        }
+
+        ChangeEvent changeEvent = objectTransformer.deserialise(record.value(), ChangeEvent.class);
+        EventRow row = changeEvent.payload.after;
 
         // Deserialise the payload and wrap it in an EventContainer
-        String className = (String) asMap.get("class_name");
-        Class<?> classOfEvent = Class.forName(className);
-
-        EventContainer<?> eventContainer = new EventContainer<>(
-                Long.parseLong(String.valueOf(asMap.get("global_sequence"))),
-                Long.parseLong(String.valueOf(asMap.get("aggregate_global_id"))),
-                objectTransformer.deserialise((String) asMap.get("payload"), classOfEvent),
-                objectTransformer.deserialise((String) asMap.get("metadata"), EventMetadata.class)
+        Class<?> classOfEvent = resolveType(row);
+
+        return new EventContainer<>(
+                row.global_sequence,
+                row.aggregate_global_id,
+                deserialiseColumn(row.payload, isBinary(changeEvent, "payload"), classOfEvent),
+                deserialiseColumn(row.metadata, isBinary(changeEvent, "metadata"), EventMetadata.class)
         );
+    }
 
-        // Notify the gateway we have a new event, this will call all of the handlers
-        eventGateway.handleStreamedEvent(eventContainer);
+    // Published by the KafkaOutboxRelay, the value is the stored payload and everything else is in the headers
+    private EventContainer<?> toEventContainer(ConsumerRecord<String, byte[]> record, long globalSequence) throws Exception {
+        Header typeId = record.headers().lastHeader(KafkaOutboxRelay.TYPE_ID_HEADER);
+        Class<?> classOfEvent;
+
+        if (typeId != null) {
+            if (typeRegistry == null) {
+                throw new IllegalStateException("Received event " + globalSequence + " stored with a type id, but no type registry was provided");
+            }
+
+            classOfEvent = typeRegistry.getType(ByteBuffer.wrap(typeId.value()).getInt());
+        } else {
+            classOfEvent = ClassResolver.resolve(new String(record.headers().lastHeader(KafkaOutboxRelay.CLASS_NAME_HEADER).value(), StandardCharsets.UTF_8));
+        }
+
+        return new EventContainer<>(
+                globalSequence,
+                Long.parseLong(record.key()),
+                objectTransformer.deserialise(record.value(), classOfEvent),
+                objectTransformer.deserialise(record.headers().lastHeader(KafkaOutboxRelay.METADATA_HEADER).value(), EventMetadata.class)
+        );
+    }
+
+    // Events stored with a type registry only have the id of their type
+    private Class<?> resolveType(EventRow row) throws ClassNotFoundException {
+        if (row.type_id != null) {
+            if (typeRegistry == null) {
+                throw new IllegalStateException("Received event " + row.global_sequence + " stored with a type id, but no type registry was provided");
+            }
+
+            return typeRegistry.getType(row.type_id);
+        }
+
+        return ClassResolver.resolve(row.class_name);
+    }
+
+    // The schema of the change event has the type of each column, bytea columns (see StorageFormat.BINARY) are bytes
+    private boolean isBinary(ChangeEvent changeEvent, String column) {
+        Schema after = changeEvent.schema == null ? null : changeEvent.schema.getField("after");
+        Schema field = after == null ? null : after.getField(column);
+
+        return field == null ? binaryColumns : "bytes".equals(field.type);
+    }
+
+    // json and jsonb columns arrive as the JSON text itself, bytea columns as base64
+    private <T> T deserialiseColumn(String value, boolean binary, Class<T> classOfT) throws Exception {
+        if (binary) {
+            return objectTransformer.deserialise(Base64.getDecoder().decode(value), classOfT);
+        }
+
+        return objectTransformer.deserialise(value, classOfT);
     }
 
     // Default properties of the KafkaConsumer
@@ -188,8 +400,8 @@ public class KafkaEventStream implements EventStreamer {
         properties.put("group.id", groupId + '.' + processingGroup);
         properties.put("client.id", groupId + '.' + processingGroup + '.' + InetAddress.getLocalHost().getHostName() + '.' + id);
         properties.put("bootstrap.servers", String.join(",", kafkaHosts));
-        properties.put("key.deserializer", SERIALISER);
-        properties.put("value.deserializer", SERIALISER);
+        properties.put("key.deserializer", KEY_DESERIALISER);
+        properties.put("value.deserializer", VALUE_DESERIALISER);
         properties.put("session.timeout.ms", 30000);
         properties.put("max.poll.records", 50); // Only allow up to 50 events to be processed in one polling cycle
         properties.put("fetch.min.bytes", 1024); // Minimum about of bytes required for a events to be published
@@ -201,4 +413,162 @@ public class KafkaEventStream implements EventStreamer {
 
         return properties;
     }
+
+    // Hands records to single threaded workers by aggregate, and tracks which offsets of each partition are done. Only the
+    // consumer's thread dispatches, commits and resets
+    private class KeyOrderedDispatcher {
+
+        private final ExecutorService[] workers;
+        private final Map<TopicPartition, PartitionProgress> partitions = new HashMap<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean failed;
+
+        private KeyOrderedDispatcher(ThreadFactory threadFactory) {
+            this.workers = new ExecutorService[workerThreads];
+
+            for (int i = 0; i < workerThreads; i++) {
+                workers[i] = Executors.newSingleThreadExecutor(threadFactory);
+            }
+        }
+
+        private void dispatch(TopicPartition partition, long offset, EventContainer<?> eventContainer) {
+            PartitionProgress progress = partitions.computeIfAbsent(partition, k -> new PartitionProgress());
+
+            progress.dispatched(offset);
+            inFlight.incrementAndGet();
+
+            workers[Math.floorMod(Long.hashCode(eventContainer.getGlobalAggregateId()), workers.length)].execute(() -> {
+                try {
+                    // After a failure nothing else starts, so an aggregate's later events can't overtake the failed one
+                    if (!failed) {
+                        eventGateway.handleStreamedEvent(eventContainer);
+                        progress.completed(offset);
+                    }
+                } catch (Exception ex) {
+                    log.error("Failed to handle the record at offset {} of {}", offset, partition, ex);
+                    failed = true;
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        }
+
+        // The offset is never completed, so nothing from it on is committed
+        private void fail(TopicPartition partition, long offset) {
+            partitions.computeIfAbsent(partition, k -> new PartitionProgress()).dispatched(offset);
+            failed = true;
+        }
+
+        private boolean hasFailed() {
+            return failed;
+        }
+
+        private int getInFlight() {
+            return inFlight.get();
+        }
+
+        private void drain() {
+            while (inFlight.get() > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        private Map<TopicPartition, OffsetAndMetadata> getCommittable() {
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+
+            partitions.forEach((partition, progress) -> offsets.put(partition, new OffsetAndMetadata(progress.getCommittable())));
+            return offsets;
+        }
+
+        // Returns whether the offset is new
+        private boolean markCommitted(TopicPartition partition, long offset) {
+            PartitionProgress progress = partitions.get(partition);
+
+            if (progress.committed == offset) {
+                return false;
+            }
+
+            progress.committed = offset;
+            return true;
+        }
+
+        private void reset() {
+            partitions.clear();
+            failed = false;
+        }
+
+        private void shutdown() {
+            for (ExecutorService worker : workers) {
+                worker.shutdown();
+            }
+        }
+    }
+
+    static class PartitionProgress {
+
+        // Offsets handed to the workers which haven't been handled yet
+        private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+        private long next;
+        private long committed = -1;
+
+        void dispatched(long offset) {
+            pending.add(offset);
+            next = offset + 1;
+        }
+
+        void completed(long offset) {
+            pending.remove(offset);
+        }
+
+        // The offset of the next record to handle, everything before it has been handled
+        long getCommittable() {
+            Long oldest = pending.isEmpty() ? null : pending.first();
+
+            return oldest == null ? next : oldest;
+        }
+    }
+
+    // The Debezium change event of an insert into the event table, anything else in the envelope is ignored
+    private static class ChangeEvent {
+
+        private Schema schema;
+        private Payload payload;
+    }
+
+    // Only published when the JSON converter has schemas enabled
+    private static class Schema {
+
+        private String type;
+        private String field;
+        private List<Schema> fields;
+
+        private Schema getField(String name) {
+            if (fields != null) {
+                for (Schema schema : fields) {
+                    if (name.equals(schema.field)) {
+                        return schema;
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static class Payload {
+
+        private EventRow after;
+    }
+
+    // Named after the columns of the event table
+    @SuppressWarnings("unused")
+    private static class EventRow {
+
+        private long global_sequence;
+        private long aggregate_global_id;
+        private String class_name;
+        private Integer type_id;
+        private String payload;
+        private String metadata;
+    }
 }
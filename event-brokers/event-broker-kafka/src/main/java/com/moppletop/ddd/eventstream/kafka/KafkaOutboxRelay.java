@@ -0,0 +1,470 @@
+package com.moppletop.ddd.eventstream.kafka;
+
+import lombok.Builder;
+import lombok.Singular;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Publishes the rows of the event table to Kafka itself, as an alternative to Debezium and Kafka Connect. The records are
+ * consumed by {@link KafkaEventStream} like the Debezium change events.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Rows are read in batches ordered by <code>global_sequence</code>. Sequences skipped by transactions which haven't
+ *     committed yet are looked for again on every poll, until they turn up or the gap timeout passes</li>
+ *     <li>Each record is keyed by the aggregate's global id, so the events of an aggregate land on the same partition in
+ *     order. The value is the payload exactly as it is stored, the event sequence, type and metadata are headers, see
+ *     {@link KafkaOutboxRelay#SEQUENCE_HEADER}</li>
+ *     <li>The producer is idempotent and batches records, a batch is only checkpointed in the <code>event_checkpoint</code>
+ *     table once Kafka has acknowledged every record of it. If sending fails, the batch is sent again, so records can be
+ *     published more than once</li>
+ *     <li>Only one node relays at a time, it holds a session advisory lock on a connection of its own while it does</li>
+ * </ul>
+ */
+@Slf4j
+public class KafkaOutboxRelay {
+
+    /**
+     * The event sequence, an 8 byte big endian long
+     */
+    public static final String SEQUENCE_HEADER = "ddd-sequence";
+    /**
+     * The id of the event's type in the type registry, a 4 byte big endian int, if the event table stores type ids
+     */
+    public static final String TYPE_ID_HEADER = "ddd-type-id";
+    /**
+     * The class name of the event, UTF-8 encoded, if the event table stores class names
+     */
+    public static final String CLASS_NAME_HEADER = "ddd-class-name";
+    /**
+     * The event metadata, exactly as it is stored
+     */
+    public static final String METADATA_HEADER = "ddd-metadata";
+
+    private static final String KEY_SERIALISER = "org.apache.kafka.common.serialization.StringSerializer";
+    private static final String VALUE_SERIALISER = "org.apache.kafka.common.serialization.ByteArraySerializer";
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+    // Keeps the lock of the relay apart from the advisory locks of aggregates and processing groups
+    private static final int LOCK_NAMESPACE = 0x0DDE;
+    private static final int MAX_GAPS = 100_000;
+
+    // The type column is either class_name or type_id, depending on whether a type registry is used
+    private static final String GET_ROWS = "(select * from %s where global_sequence > ? order by global_sequence limit ?)";
+    private static final String GET_MISSING_ROWS = "select * from %s where global_sequence = any(?)";
+    private static final String GET_CHECKPOINT = "select global_sequence from event_checkpoint where processing_group = ?;";
+    private static final String SAVE_CHECKPOINT = "insert into event_checkpoint (processing_group, global_sequence, updated) values (?, ?, now()) " +
+            "on conflict (processing_group) do update set global_sequence = excluded.global_sequence, updated = excluded.updated;";
+    private static final String TRY_LOCK = "select pg_try_advisory_lock(?, ?);";
+
+    private final DataSource dataSource;
+    private final String topic;
+    private final Producer<String, byte[]> producer;
+    private final int batchSize;
+    private final long pollingRate;
+    private final long gapTimeout;
+    private final String checkpointName;
+
+    private final String getRows;
+    private final String getMissingRows;
+    private final int tables;
+
+    private final AtomicBoolean running;
+    private Thread thread;
+
+    // Only touched by the relay thread
+    private final TreeMap<Long, Long> gaps = new TreeMap<>();
+    private Connection lockConnection;
+    private long position;
+    private long checkpoint;
+
+    /**
+     * @param dataSource The database of the event table
+     * @param topic The topic to publish to
+     * @param kafkaHosts The Kafka brokers to publish to, ignored if a producer is given
+     * @param producer The producer to publish with, by default an idempotent producer is created for the Kafka hosts
+     * @param tables The event tables to relay, by default <code>event</code>. Add the event table of every table group when
+     *               aggregate types are stored in tables of their own
+     * @param batchSize The maximum number of rows read and published at once, by default 1000
+     * @param pollingRate How long to wait after a poll which found no new rows, by default 100 milliseconds
+     * @param gapTimeout How long to wait for a skipped sequence to be committed before assuming it was rolled back, by
+     *                   default 10 seconds
+     */
+    @Builder
+    public KafkaOutboxRelay(DataSource dataSource,
+                            String topic,
+                            @Singular Collection<String> kafkaHosts,
+                            Producer<String, byte[]> producer,
+                            @Singular Collection<String> tables,
+                            Integer batchSize,
+                            Duration pollingRate,
+                            Duration gapTimeout
+    ) {
+        if (dataSource == null || topic == null) {
+            throw new IllegalArgumentException("A data source and topic must be provided!");
+        }
+
+        if (producer == null && (kafkaHosts == null || kafkaHosts.isEmpty())) {
+            throw new IllegalArgumentException("Either a producer or the Kafka hosts must be provided!");
+        }
+
+        this.dataSource = dataSource;
+        this.topic = topic;
+        this.batchSize = Math.max(1, batchSize == null ? 1000 : batchSize);
+        this.producer = producer == null ? new KafkaProducer<>(buildProperties(kafkaHosts)) : producer;
+        this.pollingRate = pollingRate == null ? 100 : pollingRate.toMillis();
+        this.gapTimeout = TimeUnit.MILLISECONDS.toNanos(gapTimeout == null ? 10_000 : gapTimeout.toMillis());
+        this.checkpointName = "outbox-relay." + topic;
+
+        Collection<String> eventTables = tables == null || tables.isEmpty() ? Collections.singleton("event") : tables;
+        StringJoiner getRows = new StringJoiner(" union all ", "", " order by global_sequence limit ?;");
+        StringJoiner getMissingRows = new StringJoiner(" union all ", "", " order by global_sequence;");
+
+        for (String table : eventTables) {
+            if (!TABLE_NAME.matcher(table).matches()) {
+                throw new IllegalArgumentException("Invalid event table name " + table);
+            }
+
+            getRows.add(String.format(GET_ROWS, table));
+            getMissingRows.add(String.format(GET_MISSING_ROWS, table));
+        }
+
+        this.getRows = getRows.toString();
+        this.getMissingRows = getMissingRows.toString();
+        this.tables = eventTables.size();
+        this.running = new AtomicBoolean(true);
+    }
+
+    /**
+     * Starts relaying on a thread of its own
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("The outbox relay has already been started!");
+        }
+
+        thread = new Thread(this::run, "outbox-relay-" + topic);
+        thread.start();
+    }
+
+    /**
+     * Stops relaying once the current batch has been published, and closes the producer
+     */
+    public void shutdown() {
+        if (running.compareAndSet(true, false)) {
+            log.info("Shutting down outbox relay to {}...", topic);
+        }
+    }
+
+    private void run() {
+        try {
+            while (running.get()) {
+                try {
+                    if (!hasLock()) {
+                        sleep(Math.max(pollingRate, 1000));
+                    } else if (!relay()) {
+                        sleep(pollingRate);
+                    }
+                } catch (SQLException | RuntimeException ex) {
+                    log.error("Relaying events to {} failed, backing off for 1 second...", topic, ex);
+                    releaseLock();
+                    sleep(1000);
+                }
+            }
+        } finally {
+            releaseLock();
+            producer.close();
+        }
+    }
+
+    // Whether this node is the one relaying, taking over if no node is
+    private boolean hasLock() throws SQLException {
+        if (lockConnection != null) {
+            if (lockConnection.isValid(5)) {
+                return true;
+            }
+
+            releaseLock();
+        }
+
+        Connection connection = dataSource.getConnection();
+        boolean locked = false;
+
+        try {
+            try (PreparedStatement statement = connection.prepareStatement(TRY_LOCK)) {
+                statement.setInt(1, LOCK_NAMESPACE);
+                statement.setInt(2, topic.hashCode());
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    locked = resultSet.next() && resultSet.getBoolean(1);
+                }
+            }
+
+            commit(connection);
+
+            if (locked) {
+                lockConnection = connection;
+                gaps.clear();
+                position = loadCheckpoint();
+                checkpoint = position;
+
+                log.info("Relaying events to {} from event sequence {}", topic, position);
+            }
+        } finally {
+            if (!locked) {
+                connection.close();
+            }
+        }
+
+        return locked;
+    }
+
+    private void releaseLock() {
+        if (lockConnection != null) {
+            try {
+                lockConnection.close();
+            } catch (SQLException ex) {
+                log.warn("Failed to close the lock connection of the outbox relay to {}", topic, ex);
+            }
+
+            lockConnection = null;
+        }
+    }
+
+    // Returns whether a full batch was read, so there may be more waiting
+    private boolean relay() throws SQLException {
+        List<ProducerRecord<String, byte[]>> records = new ArrayList<>();
+        long previousPosition = position;
+        int read;
+
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+
+            connection.setAutoCommit(false);
+
+            try {
+                if (!gaps.isEmpty()) {
+                    readMissingRows(connection, records);
+                }
+
+                read = readRows(connection, records);
+                connection.commit();
+            } catch (SQLException | RuntimeException ex) {
+                position = previousPosition;
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+
+        if (!publish(records)) {
+            // Start again from the checkpoint, everything after it is looked for again
+            position = checkpoint;
+            gaps.clear();
+            sleep(1000);
+            return false;
+        }
+
+        expireGaps();
+        saveCheckpoint();
+        return read == batchSize;
+    }
+
+    private void readMissingRows(Connection connection, List<ProducerRecord<String, byte[]>> records) throws SQLException {
+        Long[] missing = gaps.keySet().stream().limit(batchSize).toArray(Long[]::new);
+        Array array = connection.createArrayOf("bigint", missing);
+
+        try (PreparedStatement statement = connection.prepareStatement(getMissingRows)) {
+            for (int i = 1; i <= tables; i++) {
+                statement.setArray(i, array);
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                boolean typeIds = hasTypeIds(resultSet);
+
+                while (resultSet.next()) {
+                    ProducerRecord<String, byte[]> record = toRecord(resultSet, typeIds);
+
+                    gaps.remove(resultSet.getLong("global_sequence"));
+                    records.add(record);
+                }
+            }
+        }
+    }
+
+    private int readRows(Connection connection, List<ProducerRecord<String, byte[]>> records) throws SQLException {
+        int read = 0;
+        long now = System.nanoTime();
+
+        try (PreparedStatement statement = connection.prepareStatement(getRows)) {
+            for (int i = 0; i < tables; i++) {
+                statement.setLong(i * 2 + 1, position);
+                statement.setInt(i * 2 + 2, batchSize);
+            }
+
+            statement.setInt(tables * 2 + 1, batchSize);
+            statement.setFetchSize(batchSize);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                boolean typeIds = hasTypeIds(resultSet);
+
+                while (resultSet.next()) {
+                    long sequence = resultSet.getLong("global_sequence");
+
+                    for (long skipped = position + 1; skipped < sequence && gaps.size() < MAX_GAPS; skipped++) {
+                        gaps.put(skipped, now);
+                    }
+
+                    records.add(toRecord(resultSet, typeIds));
+                    position = sequence;
+                    read++;
+                }
+            }
+        }
+
+        return read;
+    }
+
+    // json and jsonb values come back as their UTF-8 text, bytea values as the stored bytes
+    private ProducerRecord<String, byte[]> toRecord(ResultSet resultSet, boolean typeIds) throws SQLException {
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>(topic, resultSet.getString("aggregate_global_id"), resultSet.getBytes("payload"));
+
+        record.headers().add(new RecordHeader(SEQUENCE_HEADER, ByteBuffer.allocate(8).putLong(resultSet.getLong("global_sequence")).array()));
+        record.headers().add(new RecordHeader(METADATA_HEADER, resultSet.getBytes("metadata")));
+
+        if (typeIds) {
+            record.headers().add(new RecordHeader(TYPE_ID_HEADER, ByteBuffer.allocate(4).putInt(resultSet.getInt("type_id")).array()));
+        } else {
+            record.headers().add(new RecordHeader(CLASS_NAME_HEADER, resultSet.getString("class_name").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        return record;
+    }
+
+    // Whether the event table stores type ids rather than class names
+    private static boolean hasTypeIds(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (metaData.getColumnName(i).equals("type_id")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Returns whether every record was acknowledged
+    private boolean publish(List<ProducerRecord<String, byte[]>> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+
+        List<Future<RecordMetadata>> sent = new ArrayList<>(records.size());
+
+        try {
+            for (ProducerRecord<String, byte[]> record : records) {
+                sent.add(producer.send(record));
+            }
+
+            producer.flush();
+
+            for (Future<RecordMetadata> result : sent) {
+                result.get();
+            }
+
+            return true;
+        } catch (InterruptedException | ExecutionException | RuntimeException ex) {
+            log.error("Failed to publish {} event{} to {}, backing off for 1 second and publishing them again...", records.size(), records.size() == 1 ? "" : "s", topic, ex);
+            return false;
+        }
+    }
+
+    private void expireGaps() {
+        long now = System.nanoTime();
+
+        gaps.values().removeIf(skippedAt -> now - skippedAt >= gapTimeout);
+    }
+
+    private long loadCheckpoint() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_CHECKPOINT)) {
+            statement.setString(1, checkpointName);
+
+            long saved;
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                saved = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+
+            commit(connection);
+            return saved;
+        }
+    }
+
+    private void saveCheckpoint() throws SQLException {
+        long safe = gaps.isEmpty() ? position : Math.min(position, gaps.firstKey() - 1);
+
+        if (safe == checkpoint) {
+            return;
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SAVE_CHECKPOINT)) {
+            statement.setString(1, checkpointName);
+            statement.setLong(2, safe);
+            statement.executeUpdate();
+
+            commit(connection);
+        }
+
+        checkpoint = safe;
+    }
+
+    private static Properties buildProperties(Collection<String> kafkaHosts) {
+        Properties properties = new Properties();
+
+        properties.put("bootstrap.servers", String.join(",", kafkaHosts));
+        properties.put("key.serializer", KEY_SERIALISER);
+        properties.put("value.serializer", VALUE_SERIALISER);
+        properties.put("enable.idempotence", true); // Retries never duplicate or reorder records
+        properties.put("acks", "all");
+        properties.put("linger.ms", 5); // Give a batch a moment to fill up
+        properties.put("batch.size", 256 * 1024);
+        properties.put("compression.type", "lz4");
+        properties.put("max.in.flight.requests.per.connection", 5);
+
+        return properties;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static void commit(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.moppletop.ddd.eventstream.kafka;
+
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventGateway;
+import com.moppletop.ddd.transformer.jackson.JacksonObjectTransformer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KafkaEventStreamTest {
+
+    private static final String TOPIC = "events";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private final List<Long> handled = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final RecordingConsumer consumer = new RecordingConsumer();
+    private KafkaEventStream stream;
+    private Thread pollThread;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        release.countDown();
+
+        if (stream != null) {
+            stream.shutdown();
+            consumer.wakeup();
+            pollThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Test
+    void partitionProgressCommitsBelowTheOldestPendingOffset() {
+        KafkaEventStream.PartitionProgress progress = new KafkaEventStream.PartitionProgress();
+
+        progress.dispatched(5);
+        progress.dispatched(6);
+        progress.dispatched(7);
+        assertEquals(5, progress.getCommittable());
+
+        progress.completed(6);
+        assertEquals(5, progress.getCommittable());
+
+        progress.completed(5);
+        assertEquals(7, progress.getCommittable());
+
+        progress.completed(7);
+        assertEquals(8, progress.getCommittable());
+    }
+
+    @Test
+    void commitsOnlyBelowARecordStillInFlight() throws Exception {
+        start(2, null, event -> {
+            // Aggregate 1 is slow, aggregate 2's records complete around it
+            if (event.getGlobalAggregateId() == 1) {
+                release.await();
+            }
+        });
+
+        consumer.addRecord(record(0, 1));
+        consumer.addRecord(record(1, 2));
+        consumer.addRecord(record(2, 2));
+
+        await(() -> handled.containsAll(Arrays.asList(1L, 2L)));
+        await(() -> committed() == 0);
+
+        release.countDown();
+
+        await(() -> committed() == 3);
+        assertEquals(new HashSet<>(Arrays.asList(0L, 1L, 2L)), new HashSet<>(handled));
+    }
+
+    @Test
+    void seeksBackToTheFailedRecord() throws Exception {
+        AtomicBoolean failed = new AtomicBoolean();
+
+        start(1, null, event -> {
+            if (event.getGlobalSequence() == 1 && failed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Handler failed");
+            }
+        });
+
+        consumer.addRecord(record(0, 1));
+        consumer.addRecord(record(1, 1));
+        consumer.addRecord(record(2, 1));
+
+        // The offsets before the failed record are committed, and the partition is rewound to it
+        await(() -> committed() == 1 && consumer.position(PARTITION) == 1);
+
+        // Kafka delivers everything from the rewound position again
+        consumer.addRecord(record(1, 1));
+        consumer.addRecord(record(2, 1));
+
+        await(() -> committed() == 3);
+        // Nothing after the failed record started before the rewind
+        assertEquals(Arrays.asList(0L, 1L, 1L, 2L), handled);
+    }
+
+    @Test
+    void pausesWhileTooManyRecordsAreInFlight() throws Exception {
+        start(1, 2, event -> release.await());
+
+        consumer.addRecord(record(0, 1));
+        consumer.addRecord(record(1, 1));
+        consumer.addRecord(record(2, 1));
+
+        await(() -> consumer.paused().contains(PARTITION));
+
+        release.countDown();
+
+        await(() -> consumer.paused().isEmpty());
+        await(() -> committed() == 3);
+    }
+
+    @Test
+    void drainsAndCommitsBeforePartitionsAreRevoked() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        AtomicBoolean revoked = new AtomicBoolean();
+
+        start(2, null, event -> {
+            started.countDown();
+            release.await();
+        });
+
+        consumer.addRecord(record(0, 1));
+        consumer.addRecord(record(1, 2));
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        consumer.schedulePollTask(() -> {
+            consumer.listener.onPartitionsRevoked(Collections.singleton(PARTITION));
+            revoked.set(true);
+        });
+
+        // The revocation waits for the records in flight
+        Thread.sleep(100);
+        assertFalse(revoked.get());
+
+        release.countDown();
+
+        await(revoked::get);
+        assertEquals(2, committed());
+    }
+
+    @Test
+    void rejectsFewerThanOneWorkerThread() {
+        assertThrows(IllegalArgumentException.class, () -> KafkaEventStream.builder().workerThreads(0).build());
+    }
+
+    private void start(int workerThreads, Integer maxInFlight, Handler handler) {
+        EventGateway eventGateway = eventContainer -> {
+            handled.add(eventContainer.getGlobalSequence());
+            handler.handle(eventContainer);
+        };
+
+        stream = KafkaEventStream.builder()
+                .groupId("test")
+                .topic(TOPIC)
+                .pollingRate(Duration.ofMillis(10))
+                .workerThreads(workerThreads)
+                .maxInFlight(maxInFlight)
+                .objectTransformer(new JacksonObjectTransformer())
+                .eventGateway(eventGateway)
+                .build();
+
+        // Assigned on the first poll, once the stream has subscribed
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(Collections.singleton(PARTITION));
+            consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        });
+
+        pollThread = new Thread(() -> stream.pollInParallel(consumer, Executors.defaultThreadFactory()));
+        pollThread.start();
+
+        try {
+            await(() -> !consumer.assignment().isEmpty());
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private long committed() {
+        OffsetAndMetadata committed = consumer.committed(PARTITION);
+
+        return committed == null ? -1 : committed.offset();
+    }
+
+    // A record as published by the outbox relay, the global sequence is the offset
+    private static ConsumerRecord<String, byte[]> record(long offset, long aggregateGlobalId) {
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>(TOPIC, 0, offset, String.valueOf(aggregateGlobalId),
+                "{\"name\":\"test\"}".getBytes(StandardCharsets.UTF_8));
+
+        record.headers().add(KafkaOutboxRelay.SEQUENCE_HEADER, ByteBuffer.allocate(8).putLong(offset).array());
+        record.headers().add(KafkaOutboxRelay.CLASS_NAME_HEADER, TestEvent.class.getName().getBytes(StandardCharsets.UTF_8));
+        record.headers().add(KafkaOutboxRelay.METADATA_HEADER, "{}".getBytes(StandardCharsets.UTF_8));
+
+        return record;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Timed out waiting for the consumer");
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Handler {
+
+        void handle(EventContainer<?> eventContainer) throws Exception;
+    }
+
+    // MockConsumer doesn't call the rebalance listener itself, so it is kept to be called by the tests
+    private static class RecordingConsumer extends MockConsumer<String, byte[]> {
+
+        private volatile ConsumerRebalanceListener listener;
+
+        private RecordingConsumer() {
+            super(OffsetResetStrategy.EARLIEST);
+        }
+
+        @Override
+        public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+            this.listener = listener;
+            super.subscribe(topics, listener);
+        }
+    }
+
+    static class TestEvent {
+
+        String name;
+    }
+}
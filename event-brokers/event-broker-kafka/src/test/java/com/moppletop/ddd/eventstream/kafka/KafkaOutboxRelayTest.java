@@ -0,0 +1,270 @@
+package com.moppletop.ddd.eventstream.kafka;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Public so H2 can call the advisory lock alias
+public class KafkaOutboxRelayTest {
+
+    private static final String TOPIC = "events";
+    private static final String CHECKPOINT = "outbox-relay." + TOPIC;
+    private static final AtomicBoolean LOCK_AVAILABLE = new AtomicBoolean();
+
+    private JdbcDataSource database;
+    private DataSource dataSource;
+    private Connection keepAlive;
+    private MockProducer<String, byte[]> producer;
+    private KafkaOutboxRelay relay;
+
+    /**
+     * Stands in for <code>pg_try_advisory_lock(int, int)</code>
+     */
+    public static boolean tryLock(int namespace, int key) {
+        return LOCK_AVAILABLE.get();
+    }
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        LOCK_AVAILABLE.set(true);
+
+        database = new JdbcDataSource();
+        database.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE");
+        dataSource = postgresCompatible(database);
+        // The in-memory database lives as long as a connection to it is open
+        keepAlive = database.getConnection();
+
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("create table event (global_sequence bigint primary key, aggregate_global_id bigint, class_name varchar, payload varbinary, metadata varbinary)");
+            statement.execute("create table event_checkpoint (processing_group varchar primary key, global_sequence bigint, updated timestamp)");
+            statement.execute("create alias pg_try_advisory_lock for '" + KafkaOutboxRelayTest.class.getName() + ".tryLock'");
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (relay != null) {
+            relay.shutdown();
+            // The producer is closed once the relay thread has stopped
+            await(producer::closed);
+        }
+
+        keepAlive.close();
+    }
+
+    @Test
+    void publishesRowsInOrderFromTheCheckpoint() throws Exception {
+        saveCheckpoint(1);
+        insert(1, 10);
+        insert(2, 20);
+        insert(3, 10);
+
+        start(new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()));
+
+        await(() -> producer.history().size() == 2);
+        await(() -> loadCheckpoint() == 3);
+
+        ProducerRecord<String, byte[]> first = producer.history().get(0);
+        assertEquals(TOPIC, first.topic());
+        assertEquals("20", first.key());
+        assertEquals("{\"sequence\":2}", new String(first.value(), StandardCharsets.UTF_8));
+        assertEquals(2, ByteBuffer.wrap(first.headers().lastHeader(KafkaOutboxRelay.SEQUENCE_HEADER).value()).getLong());
+        assertEquals("TestEvent", new String(first.headers().lastHeader(KafkaOutboxRelay.CLASS_NAME_HEADER).value(), StandardCharsets.UTF_8));
+        assertEquals("{}", new String(first.headers().lastHeader(KafkaOutboxRelay.METADATA_HEADER).value(), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(2L, 3L), publishedSequences());
+    }
+
+    @Test
+    void holdsTheCheckpointBeforeASkippedSequence() throws Exception {
+        insert(1, 10);
+        insert(3, 10);
+
+        start(new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()));
+
+        await(() -> producer.history().size() == 2);
+        await(() -> loadCheckpoint() == 1);
+
+        // Sequence 2 commits late, it is published once found and the checkpoint moves past both
+        insert(2, 10);
+
+        await(() -> loadCheckpoint() == 3);
+        assertEquals(Arrays.asList(1L, 3L, 2L), publishedSequences());
+    }
+
+    @Test
+    void onlyRelaysWhileHoldingTheLock() throws Exception {
+        LOCK_AVAILABLE.set(false);
+        insert(1, 10);
+
+        start(new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()));
+
+        Thread.sleep(300);
+        assertTrue(producer.history().isEmpty());
+
+        LOCK_AVAILABLE.set(true);
+
+        await(() -> loadCheckpoint() == 1);
+        assertEquals(Collections.singletonList(1L), publishedSequences());
+    }
+
+    @Test
+    void republishesTheBatchAfterASendFailure() throws Exception {
+        List<Long> checkpointsOnRetry = new ArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+
+        insert(1, 10);
+        insert(2, 20);
+
+        start(new MockProducer<String, byte[]>(true, new StringSerializer(), new ByteArraySerializer()) {
+            @Override
+            public synchronized Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+                if (sequence(record) == 1 && attempts.incrementAndGet() == 1) {
+                    CompletableFuture<RecordMetadata> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new KafkaException("Broker unavailable"));
+                    return failed;
+                }
+
+                if (sequence(record) == 1) {
+                    checkpointsOnRetry.add(loadCheckpoint());
+                }
+
+                return super.send(record, callback);
+            }
+        });
+
+        await(() -> loadCheckpoint() == 2);
+
+        // Nothing was checkpointed until the whole batch had been acknowledged
+        assertEquals(Collections.singletonList(0L), checkpointsOnRetry);
+        // The record after the failed one went out with the first attempt, and again with the retry
+        assertEquals(Arrays.asList(2L, 1L, 2L), publishedSequences());
+    }
+
+    private void start(MockProducer<String, byte[]> producer) {
+        this.producer = producer;
+        this.relay = KafkaOutboxRelay.builder()
+                .dataSource(dataSource)
+                .topic(TOPIC)
+                .producer(producer)
+                .pollingRate(Duration.ofMillis(10))
+                .gapTimeout(Duration.ofMinutes(1))
+                .build();
+
+        relay.start();
+    }
+
+    private List<Long> publishedSequences() {
+        return producer.history().stream()
+                .map(KafkaOutboxRelayTest::sequence)
+                .collect(Collectors.toList());
+    }
+
+    private static long sequence(ProducerRecord<String, byte[]> record) {
+        return ByteBuffer.wrap(record.headers().lastHeader(KafkaOutboxRelay.SEQUENCE_HEADER).value()).getLong();
+    }
+
+    private void insert(long globalSequence, long aggregateGlobalId) throws SQLException {
+        try (PreparedStatement statement = keepAlive.prepareStatement("insert into event values (?, ?, 'TestEvent', ?, ?)")) {
+            statement.setLong(1, globalSequence);
+            statement.setLong(2, aggregateGlobalId);
+            statement.setBytes(3, ("{\"sequence\":" + globalSequence + "}").getBytes(StandardCharsets.UTF_8));
+            statement.setBytes(4, "{}".getBytes(StandardCharsets.UTF_8));
+            statement.executeUpdate();
+        }
+    }
+
+    private void saveCheckpoint(long globalSequence) throws SQLException {
+        try (PreparedStatement statement = keepAlive.prepareStatement("insert into event_checkpoint values (?, ?, now())")) {
+            statement.setString(1, CHECKPOINT);
+            statement.setLong(2, globalSequence);
+            statement.executeUpdate();
+        }
+    }
+
+    private long loadCheckpoint() {
+        try (Connection connection = database.getConnection();
+             PreparedStatement statement = connection.prepareStatement("select global_sequence from event_checkpoint where processing_group = ?")) {
+            statement.setString(1, CHECKPOINT);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Timed out waiting for the relay");
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    // Rewrites the relay's PostgreSQL only statements into their H2 equivalents. H2 has no "on conflict do update", so the
+    // checkpoint upsert becomes a merge, and can't order or limit a parenthesised query without it being a derived table
+    private static DataSource postgresCompatible(JdbcDataSource database) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+            Object result = invoke(database, method, args);
+
+            if (!method.getName().equals("getConnection")) {
+                return result;
+            }
+
+            Connection connection = (Connection) result;
+
+            return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (connectionProxy, connectionMethod, connectionArgs) -> {
+                if (connectionMethod.getName().equals("prepareStatement")) {
+                    String sql = (String) connectionArgs[0];
+
+                    if (sql.contains("on conflict")) {
+                        connectionArgs[0] = "merge into event_checkpoint (processing_group, global_sequence, updated) key (processing_group) values (?, ?, now());";
+                    } else if (sql.startsWith("(")) {
+                        int order = sql.lastIndexOf(" order by");
+                        connectionArgs[0] = "select * from (" + sql.substring(0, order) + ") rows" + sql.substring(order);
+                    }
+                }
+
+                return invoke(connection, connectionMethod, connectionArgs);
+            });
+        });
+    }
+
+    private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.moppletop.ddd.eventstream.postgres;
+
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventMetadata;
+import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.transformer.TypeRegistry;
+import com.moppletop.ddd.util.ClassResolver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Decodes the messages of the <a href="https://www.postgresql.org/docs/current/protocol-logicalrep-message-formats.html">pgoutput</a>
+ * plugin, protocol version 1, into the events inserted into the event tables.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Column values are sent as text, JSON payloads are deserialised straight from the message without being turned
+ *     into a String first, <code>bytea</code> payloads (see <code>StorageFormat.BINARY</code>) are decoded from hex</li>
+ *     <li>The events of a transaction are only handed over once its commit has been decoded</li>
+ *     <li>Updates, deletes and truncates are ignored, the event table is append only</li>
+ * </ul>
+ */
+class PgOutputDecoder {
+
+    private static final int BYTEA_OID = 17;
+
+    private final Set<String> tables;
+    private final ObjectTransformer objectTransformer;
+    private final TypeRegistry typeRegistry;
+
+    // Relations are described once per session, before their first change
+    private final Map<Integer, Relation> relations = new HashMap<>();
+    private final List<EventContainer<?>> transaction = new ArrayList<>();
+
+    PgOutputDecoder(Set<String> tables, ObjectTransformer objectTransformer, TypeRegistry typeRegistry) {
+        this.tables = tables;
+        this.objectTransformer = objectTransformer;
+        this.typeRegistry = typeRegistry;
+    }
+
+    /**
+     * @param message A message from the replication stream
+     * @param committed The events of a transaction are added to this once it commits
+     * @return The end LSN of the transaction if the message was a commit, otherwise -1
+     * @throws Exception If an event could not be decoded
+     */
+    long decode(ByteBuffer message, List<EventContainer<?>> committed) throws Exception {
+        if (!message.hasArray()) {
+            ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+
+            copy.put(message).flip();
+            message = copy;
+        }
+
+        switch (message.get()) {
+            case 'B':
+                transaction.clear();
+                return -1;
+            case 'R':
+                readRelation(message);
+                return -1;
+            case 'I':
+                readInsert(message);
+                return -1;
+            case 'C':
+                message.get(); // Flags
+                message.getLong(); // Commit LSN
+                long endLsn = message.getLong();
+
+                committed.addAll(transaction);
+                transaction.clear();
+                return endLsn;
+            default:
+                return -1;
+        }
+    }
+
+    private void readRelation(ByteBuffer message) {
+        int id = message.getInt();
+        readString(message); // Namespace
+        String name = readString(message);
+        message.get(); // Replica identity
+        int columnCount = message.getShort();
+
+        Relation relation = new Relation(tables.contains(name));
+
+        for (int i = 0; i < columnCount; i++) {
+            message.get(); // Flags
+            String column = readString(message);
+            int typeOid = message.getInt();
+            message.getInt(); // Type modifier
+
+            relation.columns.put(column, i);
+            relation.typeOids.put(column, typeOid);
+        }
+
+        relations.put(id, relation);
+    }
+
+    private void readInsert(ByteBuffer message) throws Exception {
+        Relation relation = relations.get(message.getInt());
+        message.get(); // 'N', a new tuple follows
+
+        int columnCount = message.getShort();
+        int[] offsets = new int[columnCount];
+        int[] lengths = new int[columnCount];
+
+        for (int i = 0; i < columnCount; i++) {
+            byte kind = message.get();
+
+            if (kind == 't') {
+                lengths[i] = message.getInt();
+                offsets[i] = message.arrayOffset() + message.position();
+                message.position(message.position() + lengths[i]);
+            } else {
+                // Null, or an unchanged TOASTed value which an insert never has
+                lengths[i] = -1;
+            }
+        }
+
+        if (relation == null || !relation.events) {
+            return;
+        }
+
+        Row row = new Row(message.array(), relation, offsets, lengths);
+        Class<?> classOfEvent = row.isNull("type_id") ? ClassResolver.resolve(row.getText("class_name")) : resolveTypeId(row);
+
+        transaction.add(new EventContainer<>(
+                row.getLong("global_sequence"),
+                row.getLong("aggregate_global_id"),
+                deserialise(row, "payload", classOfEvent),
+                deserialise(row, "metadata", EventMetadata.class)
+        ));
+    }
+
+    private Class<?> resolveTypeId(Row row) throws ClassNotFoundException {
+        long globalSequence = row.getLong("global_sequence");
+
+        if (typeRegistry == null) {
+            throw new IllegalStateException("Received event " + globalSequence + " stored with a type id, but no type registry was provided");
+        }
+
+        return typeRegistry.getType((int) row.getLong("type_id"));
+    }
+
+    private <T> T deserialise(Row row, String column, Class<T> classOfT) throws Exception {
+        int index = row.index(column);
+
+        if (row.relation.typeOids.get(column) == BYTEA_OID) {
+            return objectTransformer.deserialise(decodeHex(row.data, row.offsets[index], row.lengths[index]), classOfT);
+        }
+
+        return objectTransformer.deserialise(row.data, row.offsets[index], row.lengths[index], classOfT);
+    }
+
+    // bytea is sent in its hex output format, \x followed by two digits per byte
+    private static byte[] decodeHex(byte[] data, int offset, int length) {
+        byte[] bytes = new byte[(length - 2) / 2];
+
+        for (int i = 0, j = offset + 2; i < bytes.length; i++, j += 2) {
+            bytes[i] = (byte) ((Character.digit(data[j], 16) << 4) | Character.digit(data[j + 1], 16));
+        }
+
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer message) {
+        int start = message.position();
+        int end = start;
+
+        while (message.get(end) != 0) {
+            end++;
+        }
+
+        message.position(end + 1);
+        return new String(message.array(), message.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static class Relation {
+
+        private final boolean events;
+        private final Map<String, Integer> columns = new HashMap<>();
+        private final Map<String, Integer> typeOids = new HashMap<>();
+
+        private Relation(boolean events) {
+            this.events = events;
+        }
+    }
+
+    private static class Row {
+
+        private final byte[] data;
+        private final Relation relation;
+        private final int[] offsets;
+        private final int[] lengths;
+
+        private Row(byte[] data, Relation relation, int[] offsets, int[] lengths) {
+            this.data = data;
+            this.relation = relation;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        private int index(String column) {
+            Integer index = relation.columns.get(column);
+
+            if (index == null || lengths[index] < 0) {
+                throw new IllegalStateException("The event table change has no value for " + column);
+            }
+
+            return index;
+        }
+
+        private boolean isNull(String column) {
+            Integer index = relation.columns.get(column);
+
+            return index == null || lengths[index] < 0;
+        }
+
+        private String getText(String column) {
+            int index = index(column);
+
+            return new String(data, offsets[index], lengths[index], StandardCharsets.UTF_8);
+        }
+
+        private long getLong(String column) {
+            return Long.parseLong(getText(column));
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.moppletop.ddd.eventstream.postgres;
+
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventGateway;
+import com.moppletop.ddd.event.EventStreamer;
+import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.transformer.TypeRegistry;
+import com.moppletop.ddd.util.EventStreamThreadFactory;
+import lombok.Builder;
+import lombok.Singular;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * The <a href="https://www.postgresql.org/docs/current/logical-replication.html">PostgreSQL logical replication</a>
+ * implementation of the event streamer, which reads inserts into the event tables straight from the write-ahead log
+ * with the built in pgoutput plugin, without Debezium or Kafka in between
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Every processing group has a replication slot of its own, named after the slot prefix and the group, so groups
+ *     progress, fail and retry independently. Slots and the publication are created if they don't exist</li>
+ *     <li>Events are only handed over once their transaction has committed, and a transaction's LSN is only acknowledged
+ *     once every one of its events has been handled. Until then the server keeps the WAL, and resends it when the
+ *     stream is restarted</li>
+ *     <li>If a stream event handler throws, the stream is closed and after backing off for 1 second it is restarted from
+ *     the last acknowledged transaction, so events may be handled more than once</li>
+ *     <li>With more than one thread, the events read in one go are split by aggregate so the events of an aggregate are
+ *     still handled in order</li>
+ *     <li>A partitioned event table is published via its root, so its changes arrive as changes to the table itself rather
+ *     than to its partitions, this requires PostgreSQL 13 or above</li>
+ *     <li>A slot of a processing group which is no longer used must be dropped by hand, otherwise the server keeps the
+ *     WAL for it forever</li>
+ * </ul>
+ */
+@Slf4j
+public class PostgresReplicationEventStream implements EventStreamer {
+
+    private static final Pattern NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+    private static final int MAX_SLOT_NAME = 63;
+
+    private static final String GET_PUBLICATION = "select 1 from pg_publication where pubname = '%s'";
+    // Changes to a partitioned event table (see EventPartitionManager) are published as changes to the table itself
+    // rather than to its partitions, which PostgreSQL 13 and above support
+    private static final String GET_PUBLICATION_VIA_ROOT = "select pubviaroot from pg_publication where pubname = '%s'";
+    private static final String CREATE_PUBLICATION = "create publication %s for table %s";
+    private static final String CREATE_PUBLICATION_VIA_ROOT = CREATE_PUBLICATION + " with (publish_via_partition_root = true)";
+    private static final String PUBLISH_VIA_ROOT = "alter publication %s set (publish_via_partition_root = true)";
+    private static final String GET_SLOT = "select 1 from pg_replication_slots where slot_name = '%s'";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String slotPrefix;
+    private final String publication;
+    private final Set<String> tables;
+    private final int maxBatchSize;
+    private final Duration pollingRate;
+    private final Duration statusInterval;
+
+    private final ObjectTransformer objectTransformer;
+    private final TypeRegistry typeRegistry;
+    private final EventGateway eventGateway;
+
+    private final AtomicBoolean running;
+
+    /**
+     * @param url The JDBC url of the database
+     * @param user The user to connect as, it must have the <code>REPLICATION</code> attribute
+     * @param password The password of the user
+     * @param slotPrefix Prefixes the names of the replication slots, by default <code>ddd</code>
+     * @param publication The name of the publication of the event tables, by default <code>ddd_events</code>
+     * @param tables The event tables to stream, by default <code>event</code>. Add the event table of every table group
+     *               when aggregate types are stored in tables of their own
+     * @param maxBatchSize The maximum number of events handled before their transactions are acknowledged, by default 500
+     * @param pollingRate How long to wait when there are no changes waiting, by default 10 milliseconds
+     * @param statusInterval How often acknowledged LSNs are reported to the server, by default 10 seconds
+     * @param objectTransformer The object transformer the events were stored with
+     * @param typeRegistry The type registry the events were stored with, if any
+     * @param eventGateway Handed every event
+     */
+    @Builder
+    public PostgresReplicationEventStream(String url,
+                                          String user,
+                                          String password,
+                                          String slotPrefix,
+                                          String publication,
+                                          @Singular Collection<String> tables,
+                                          Integer maxBatchSize,
+                                          Duration pollingRate,
+                                          Duration statusInterval,
+                                          ObjectTransformer objectTransformer,
+                                          TypeRegistry typeRegistry,
+                                          EventGateway eventGateway
+    ) {
+        if (url == null || objectTransformer == null || eventGateway == null) {
+            throw new IllegalArgumentException("A url, object transformer and event gateway must be provided!");
+        }
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.slotPrefix = slotPrefix == null ? "ddd" : slotPrefix;
+        this.publication = publication == null ? "ddd_events" : publication;
+        this.tables = tables == null || tables.isEmpty() ? Collections.singleton("event") : new LinkedHashSet<>(tables);
+        this.maxBatchSize = Math.max(1, maxBatchSize == null ? 500 : maxBatchSize);
+        this.pollingRate = pollingRate == null ? Duration.ofMillis(10) : pollingRate;
+        this.statusInterval = statusInterval == null ? Duration.ofSeconds(10) : statusInterval;
+        this.objectTransformer = objectTransformer;
+        this.typeRegistry = typeRegistry;
+        this.eventGateway = eventGateway;
+
+        for (String name : this.tables) {
+            validateName(name);
+        }
+
+        validateName(this.slotPrefix);
+        validateName(this.publication);
+
+        this.running = new AtomicBoolean(true);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    }
+
+    @Override
+    public void subscribe(String processingGroup, int threads) {
+        log.debug("Subscribing with {} thread{} to processing group {}", threads, threads == 1 ? "" : "s", processingGroup);
+        ThreadFactory threadFactory = new EventStreamThreadFactory(processingGroup);
+        ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool(threads, threadFactory) : null;
+
+        threadFactory.newThread(new Subscription(processingGroup, getSlotName(processingGroup), threads, workers)).start();
+    }
+
+    @Override
+    public void shutdown() {
+        if (running.compareAndSet(true, false)) {
+            log.info("Shutting down PostgreSQL replication event streamer...");
+        }
+    }
+
+    // Slot names may only contain lower case letters, numbers and underscores
+    private String getSlotName(String processingGroup) {
+        String hash = Integer.toHexString(processingGroup.hashCode());
+        String name = slotPrefix + '_' + processingGroup.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]", "_");
+
+        return name.substring(0, Math.min(name.length(), MAX_SLOT_NAME - hash.length() - 1)) + '_' + hash;
+    }
+
+    private static void validateName(String name) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid name " + name);
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Properties properties = new Properties();
+
+        if (user != null) {
+            PGProperty.USER.set(properties, user);
+        }
+
+        if (password != null) {
+            PGProperty.PASSWORD.set(properties, password);
+        }
+
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "10");
+        PGProperty.REPLICATION.set(properties, "database");
+        // Replication connections only support the simple query protocol
+        PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+
+        return DriverManager.getConnection(url, properties);
+    }
+
+    private class Subscription implements Runnable {
+
+        private final String processingGroup;
+        private final String slot;
+        private final int threads;
+        private final ExecutorService workers;
+        private final PgOutputDecoder decoder;
+
+        private Subscription(String processingGroup, String slot, int threads, ExecutorService workers) {
+            this.processingGroup = processingGroup;
+            this.slot = slot;
+            this.threads = threads;
+            this.workers = workers;
+            this.decoder = new PgOutputDecoder(tables, objectTransformer, typeRegistry);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running.get()) {
+                    try (Connection connection = connect()) {
+                        prepare(connection);
+                        stream(connection);
+                    } catch (Exception ex) {
+                        if (running.get()) {
+                            log.error("Replication of processing group {} stopped, backing off for 1 second and restarting from the last acknowledged transaction...", processingGroup, ex);
+                            sleep(1000);
+                        }
+                    }
+                }
+            } finally {
+                if (workers != null) {
+                    workers.shutdown();
+                }
+            }
+        }
+
+        private void prepare(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                preparePublication(statement, connection.getMetaData().getDatabaseMajorVersion() >= 13);
+
+                if (!exists(statement, String.format(GET_SLOT, slot))) {
+                    connection.unwrap(PGConnection.class).getReplicationAPI()
+                            .createReplicationSlot()
+                            .logical()
+                            .withSlotName(slot)
+                            .withOutputPlugin("pgoutput")
+                            .make();
+
+                    log.info("Created replication slot {} for processing group {}", slot, processingGroup);
+                }
+            }
+        }
+
+        private void preparePublication(Statement statement, boolean viaRoot) throws SQLException {
+            if (!viaRoot) {
+                if (!exists(statement, String.format(GET_PUBLICATION, publication))) {
+                    statement.execute(String.format(CREATE_PUBLICATION, publication, String.join(", ", tables)));
+                    log.info("Created publication {} for {}", publication, tables);
+                }
+
+                return;
+            }
+
+            Boolean publishedViaRoot = null;
+
+            try (ResultSet resultSet = statement.executeQuery(String.format(GET_PUBLICATION_VIA_ROOT, publication))) {
+                if (resultSet.next()) {
+                    publishedViaRoot = resultSet.getBoolean(1);
+                }
+            }
+
+            if (publishedViaRoot == null) {
+                statement.execute(String.format(CREATE_PUBLICATION_VIA_ROOT, publication, String.join(", ", tables)));
+                log.info("Created publication {} for {}", publication, tables);
+            } else if (!publishedViaRoot) {
+                // Otherwise the changes of a partitioned table arrive under the names of its partitions, and are ignored
+                statement.execute(String.format(PUBLISH_VIA_ROOT, publication));
+                log.info("Set publication {} to publish via the partition root", publication);
+            }
+        }
+
+        private boolean exists(Statement statement, String sql) throws SQLException {
+            try (ResultSet resultSet = statement.executeQuery(sql)) {
+                return resultSet.next();
+            }
+        }
+
+        private void stream(Connection connection) throws Exception {
+            PGReplicationStream stream = connection.unwrap(PGConnection.class).getReplicationAPI()
+                    .replicationStream()
+                    .logical()
+                    .withSlotName(slot)
+                    .withSlotOption("proto_version", 1)
+                    .withSlotOption("publication_names", publication)
+                    .withStatusInterval((int) statusInterval.toMillis(), TimeUnit.MILLISECONDS)
+                    .start();
+
+            log.info("Streaming events for processing group {} from replication slot {}", processingGroup, slot);
+
+            try {
+                List<EventContainer<?>> events = new ArrayList<>();
+                long lsn = -1;
+
+                while (running.get()) {
+                    ByteBuffer message = stream.readPending();
+
+                    if (message != null) {
+                        long committed = decoder.decode(message, events);
+
+                        if (committed >= 0) {
+                            lsn = committed;
+                        }
+
+                        // Keep reading while there are changes waiting, so several transactions are handled at once
+                        if (events.size() < maxBatchSize) {
+                            continue;
+                        }
+                    }
+
+                    if (lsn >= 0) {
+                        dispatch(events);
+                        events.clear();
+
+                        stream.setAppliedLSN(LogSequenceNumber.valueOf(lsn));
+                        stream.setFlushedLSN(LogSequenceNumber.valueOf(lsn));
+                        lsn = -1;
+                    } else if (message == null) {
+                        sleep(pollingRate.toMillis());
+                    }
+                }
+
+                stream.forceUpdateStatus();
+            } finally {
+                stream.close();
+            }
+        }
+
+        // Throws the first failure, once every lane has stopped
+        private void dispatch(List<EventContainer<?>> events) throws Exception {
+            if (workers == null || events.size() < 2) {
+                handle(events);
+                return;
+            }
+
+            List<List<EventContainer<?>>> lanes = new ArrayList<>(threads);
+            List<Future<?>> results = new ArrayList<>(threads);
+
+            for (int i = 0; i < threads; i++) {
+                lanes.add(new ArrayList<>());
+            }
+
+            for (EventContainer<?> event : events) {
+                lanes.get(Math.floorMod(Long.hashCode(event.getGlobalAggregateId()), threads)).add(event);
+            }
+
+            for (List<EventContainer<?>> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    results.add(workers.submit(() -> {
+                        handle(lane);
+                        return null;
+                    }));
+                }
+            }
+
+            Exception failure = null;
+
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void handle(List<EventContainer<?>> events) throws Exception {
+            for (EventContainer<?> event : events) {
+                eventGateway.handleStreamedEvent(processingGroup, event);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.moppletop.ddd.eventstream.postgres;
+
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.transformer.TypeRegistry;
+import com.moppletop.ddd.transformer.jackson.JacksonObjectTransformer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PgOutputDecoderTest {
+
+    private static final int TEXT_OID = 25;
+    private static final int INT8_OID = 20;
+    private static final int INT4_OID = 23;
+    private static final int JSONB_OID = 3802;
+    private static final int BYTEA_OID = 17;
+
+    private static final String[] COLUMNS = {"global_sequence", "aggregate_global_id", "class_name", "type_id", "payload", "metadata"};
+
+    private final PgOutputDecoder decoder = new PgOutputDecoder(new HashSet<>(Collections.singletonList("event")),
+            new JacksonObjectTransformer(), new FixedTypeRegistry());
+
+    @Test
+    void handsOverInsertsOnceTheirTransactionCommits() throws Exception {
+        List<EventContainer<?>> committed = new ArrayList<>();
+
+        assertEquals(-1, decoder.decode(begin(), committed));
+        assertEquals(-1, decoder.decode(relation(1, "event", JSONB_OID), committed));
+        assertEquals(-1, decoder.decode(insert(1, "11", "7", TestEvent.class.getName(), null, "{\"name\":\"first\"}", "{}"), committed));
+        assertEquals(-1, decoder.decode(insert(1, "12", "8", TestEvent.class.getName(), null, "{\"name\":\"second\"}", "{}"), committed));
+        assertTrue(committed.isEmpty());
+
+        assertEquals(500, decoder.decode(commit(400, 500), committed));
+        assertEquals(2, committed.size());
+
+        EventContainer<?> first = committed.get(0);
+        assertEquals(11, first.getGlobalSequence());
+        assertEquals(7, first.getGlobalAggregateId());
+        assertEquals("first", ((TestEvent) first.getPayload()).name);
+        assertTrue(first.getMetadata().isEmpty());
+        assertEquals("second", ((TestEvent) committed.get(1).getPayload()).name);
+    }
+
+    @Test
+    void resolvesTypeIdsAndDecodesBytea() throws Exception {
+        List<EventContainer<?>> committed = new ArrayList<>();
+
+        decoder.decode(begin(), committed);
+        decoder.decode(relation(1, "event", BYTEA_OID), committed);
+        decoder.decode(insert(1, "3", "9", null, "1", hex("{\"name\":\"binary\"}"), hex("{}")), committed);
+        decoder.decode(commit(10, 20), committed);
+
+        assertEquals(1, committed.size());
+        assertEquals("binary", ((TestEvent) committed.get(0).getPayload()).name);
+        assertTrue(committed.get(0).getMetadata().isEmpty());
+    }
+
+    @Test
+    void ignoresOtherTables() throws Exception {
+        List<EventContainer<?>> committed = new ArrayList<>();
+
+        decoder.decode(begin(), committed);
+        decoder.decode(relation(2, "aggregate", JSONB_OID), committed);
+        decoder.decode(insert(2, "1", "1", TestEvent.class.getName(), null, "{}", "{}"), committed);
+
+        assertEquals(30, decoder.decode(commit(20, 30), committed));
+        assertTrue(committed.isEmpty());
+    }
+
+    @Test
+    void decodesSlicedBuffers() throws Exception {
+        List<EventContainer<?>> committed = new ArrayList<>();
+
+        decoder.decode(begin(), committed);
+        decoder.decode(slice(relation(1, "event", JSONB_OID)), committed);
+        decoder.decode(slice(insert(1, "5", "6", TestEvent.class.getName(), null, "{\"name\":\"sliced\"}", "{}")), committed);
+        decoder.decode(slice(commit(1, 2)), committed);
+
+        assertEquals("sliced", ((TestEvent) committed.get(0).getPayload()).name);
+    }
+
+    @Test
+    void dropsUncommittedInsertsOnTheNextBegin() throws Exception {
+        List<EventContainer<?>> committed = new ArrayList<>();
+
+        decoder.decode(begin(), committed);
+        decoder.decode(relation(1, "event", JSONB_OID), committed);
+        decoder.decode(insert(1, "1", "1", TestEvent.class.getName(), null, "{}", "{}"), committed);
+        decoder.decode(begin(), committed);
+        decoder.decode(commit(1, 2), committed);
+
+        assertTrue(committed.isEmpty());
+    }
+
+    private static ByteBuffer begin() throws IOException {
+        return message(out -> {
+            out.writeByte('B');
+            out.writeLong(0); // Final LSN
+            out.writeLong(0); // Timestamp
+            out.writeInt(1); // Xid
+        });
+    }
+
+    private static ByteBuffer relation(int id, String name, int payloadOid) throws IOException {
+        int[] oids = {INT8_OID, INT8_OID, TEXT_OID, INT4_OID, payloadOid, payloadOid};
+
+        return message(out -> {
+            out.writeByte('R');
+            out.writeInt(id);
+            writeString(out, "public");
+            writeString(out, name);
+            out.writeByte('d');
+            out.writeShort(COLUMNS.length);
+
+            for (int i = 0; i < COLUMNS.length; i++) {
+                out.writeByte(0);
+                writeString(out, COLUMNS[i]);
+                out.writeInt(oids[i]);
+                out.writeInt(-1);
+            }
+        });
+    }
+
+    private static ByteBuffer insert(int relation, String... values) throws IOException {
+        return message(out -> {
+            out.writeByte('I');
+            out.writeInt(relation);
+            out.writeByte('N');
+            out.writeShort(values.length);
+
+            for (String value : values) {
+                if (value == null) {
+                    out.writeByte('n');
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+                    out.writeByte('t');
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        });
+    }
+
+    private static ByteBuffer commit(long commitLsn, long endLsn) throws IOException {
+        return message(out -> {
+            out.writeByte('C');
+            out.writeByte(0);
+            out.writeLong(commitLsn);
+            out.writeLong(endLsn);
+            out.writeLong(0); // Timestamp
+        });
+    }
+
+    // Wraps the message in a larger array, as the driver's buffers are
+    private static ByteBuffer slice(ByteBuffer message) {
+        byte[] padded = new byte[message.remaining() + 8];
+
+        message.get(padded, 4, message.remaining());
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.position(4).limit(padded.length - 4);
+
+        return buffer.slice();
+    }
+
+    private static String hex(String json) {
+        StringBuilder builder = new StringBuilder("\\x");
+
+        for (byte b : json.getBytes(StandardCharsets.UTF_8)) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+    }
+
+    private static ByteBuffer message(MessageWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        writer.write(new DataOutputStream(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private interface MessageWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    static class TestEvent {
+
+        String name;
+    }
+
+    private static class FixedTypeRegistry implements TypeRegistry {
+
+        @Override
+        public int getTypeId(String className) {
+            return 1;
+        }
+
+        @Override
+        public String getClassName(int typeId) {
+            assertEquals(1, typeId);
+            return TestEvent.class.getName();
+        }
+    }
+}
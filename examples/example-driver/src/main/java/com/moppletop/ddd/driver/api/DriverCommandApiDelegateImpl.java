@@ -13,6 +13,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @RequiredArgsConstructor
@@ -22,31 +23,27 @@ public class DriverCommandApiDelegateImpl implements DriverCommandApiDelegate {
     private final CommandGateway commandGateway;
 
     @Override
-    public ResponseEntity<Driver> registerDriver(RegisterDriverDto registerDriverDto) {
+    public CompletableFuture<ResponseEntity<Driver>> registerDriver(RegisterDriverDto registerDriverDto) {
         RegisterDriver cmd = new RegisterDriver(
                 UUID.randomUUID(),
                 registerDriverDto.getName(),
                 registerDriverDto.getDateOfBirth()
         );
 
-        commandGateway.send(cmd);
-
-        return ResponseEntity.ok(new Driver()
+        return commandGateway.sendAsync(cmd).thenApply(ignored -> ResponseEntity.ok(new Driver()
                 .driverId(cmd.getId())
                 .name(cmd.getName())
                 .dateOfBirth(cmd.getDateOfBirth())
-        );
+        ));
     }
 
     @Override
-    public ResponseEntity<Void> amendDriver(AmendDriverDto amendDriverDto) {
+    public CompletableFuture<ResponseEntity<Void>> amendDriver(AmendDriverDto amendDriverDto) {
         AmendDriverName cmd = new AmendDriverName(
                 amendDriverDto.getDriverId(),
                 amendDriverDto.getName()
         );
 
-        commandGateway.send(cmd);
-
-        return ResponseEntity.ok().build();
+        return commandGateway.sendAsync(cmd).thenApply(ignored -> ResponseEntity.ok().build());
     }
 }
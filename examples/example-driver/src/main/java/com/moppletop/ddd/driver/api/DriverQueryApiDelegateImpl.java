@@ -12,6 +12,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @RequiredArgsConstructor
@@ -21,17 +22,17 @@ public class DriverQueryApiDelegateImpl implements DriverQueryApiDelegate {
     private final QueryGateway queryGateway;
 
     @Override
-    public ResponseEntity<Driver> getDriver(UUID driverId) {
+    public CompletableFuture<ResponseEntity<Driver>> getDriver(UUID driverId) {
         com.moppletop.ddd.driver.types.Driver driver = queryGateway.query(QueryNames.GET_DRIVER_BY_ID, driverId, com.moppletop.ddd.driver.types.Driver.class);
 
         if (driver == null) {
-            return ResponseEntity.notFound().build();
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
         }
 
-        return ResponseEntity.ok(new Driver()
+        return CompletableFuture.completedFuture(ResponseEntity.ok(new Driver()
                 .driverId(driver.getDriverId())
                 .name(driver.getName())
                 .dateOfBirth(driver.getDateOfBirth())
-        );
+        ));
     }
 }
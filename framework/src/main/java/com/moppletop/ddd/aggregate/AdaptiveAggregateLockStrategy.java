@@ -0,0 +1,132 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+import lombok.Builder;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Switches each aggregate between optimistic and pessimistic locking depending on how often it has recently conflicted.
+ * <br>
+ * <br>
+ * Conflicts are counted in a {@link ConflictSketch}. Once an aggregate's estimated conflicts reach the hot threshold it is
+ * loaded with the pessimistic strategy, once they decay to the cool threshold it goes back to being loaded optimistically.
+ * The gap between the two thresholds stops aggregates flapping between the two modes. Cold aggregates, the vast majority,
+ * keep the cheap optimistic path.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Hot aggregates which are never loaded again are only noticed to have cooled when the set fills up, at which point
+ *     every cooled aggregate is pruned so new hot aggregates can still be tracked</li>
+ *     <li>Estimates only fall when the sketch decays, so a full set is pruned at most once per decay interval</li>
+ * </ul>
+ */
+public class AdaptiveAggregateLockStrategy implements AggregateLockStrategy {
+
+    private final AggregateLockStrategy optimisticStrategy;
+    private final AggregateLockStrategy pessimisticStrategy;
+    private final ConflictSketch sketch;
+    private final int hotThreshold;
+    private final int coolThreshold;
+    private final int maxHotAggregates;
+    private final long decayIntervalNanos;
+
+    private final Set<UUID> hotAggregates = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextPrune = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param pessimisticStrategy The strategy used for hot aggregates, by default {@link AdvisoryAggregateLockStrategy}
+     * @param hotThreshold The estimated number of recent conflicts before an aggregate is locked pessimistically, by default 3
+     * @param coolThreshold The estimated number of recent conflicts at which a hot aggregate goes back to optimistic, by default 0
+     * @param decayInterval How often conflict counts are halved, by default 10 seconds
+     * @param maxHotAggregates The maximum number of aggregates locked pessimistically at once, by default 10,000
+     * @param sketchWidth The number of counters per row of the sketch, by default 4096
+     */
+    @Builder
+    public AdaptiveAggregateLockStrategy(AggregateLockStrategy pessimisticStrategy,
+                                         Integer hotThreshold,
+                                         Integer coolThreshold,
+                                         Duration decayInterval,
+                                         Integer maxHotAggregates,
+                                         Integer sketchWidth
+    ) {
+        this.optimisticStrategy = new OptimisticAggregateLockStrategy();
+        this.pessimisticStrategy = pessimisticStrategy == null ? new AdvisoryAggregateLockStrategy() : pessimisticStrategy;
+        this.hotThreshold = hotThreshold == null ? 3 : hotThreshold;
+        this.coolThreshold = coolThreshold == null ? 0 : coolThreshold;
+        this.maxHotAggregates = maxHotAggregates == null ? 10_000 : maxHotAggregates;
+        this.decayIntervalNanos = (decayInterval == null ? Duration.ofSeconds(10) : decayInterval).toNanos();
+        this.sketch = new ConflictSketch(sketchWidth == null ? 4096 : sketchWidth, decayIntervalNanos);
+
+        if (this.coolThreshold >= this.hotThreshold) {
+            throw new IllegalArgumentException("The cool threshold must be less than the hot threshold!");
+        }
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(AggregateRepository repository, ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        if (isHot(aggregateIdentifier)) {
+            return pessimisticStrategy.loadAggregate(repository, connectionProvider, aggregateIdentifier);
+        }
+
+        return optimisticStrategy.loadAggregate(repository, connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public void onConcurrencyConflict(UUID aggregateIdentifier) {
+        int estimate = sketch.increment(aggregateIdentifier);
+
+        if (estimate < hotThreshold || hotAggregates.contains(aggregateIdentifier)) {
+            return;
+        }
+
+        if (hotAggregates.size() >= maxHotAggregates) {
+            pruneCooled();
+        }
+
+        if (hotAggregates.size() < maxHotAggregates) {
+            hotAggregates.add(aggregateIdentifier);
+        }
+    }
+
+    private void pruneCooled() {
+        long due = nextPrune.get();
+        long now = System.nanoTime();
+
+        // Only the thread that moves the deadline does the prune
+        if (now - due < 0 || !nextPrune.compareAndSet(due, now + decayIntervalNanos)) {
+            return;
+        }
+
+        hotAggregates.removeIf(id -> sketch.estimate(id) <= coolThreshold);
+    }
+
+    /**
+     * @param aggregateIdentifier The aggregate
+     * @return Whether the aggregate is currently being locked pessimistically
+     */
+    public boolean isHot(UUID aggregateIdentifier) {
+        if (!hotAggregates.contains(aggregateIdentifier)) {
+            return false;
+        }
+
+        if (sketch.estimate(aggregateIdentifier) <= coolThreshold) {
+            hotAggregates.remove(aggregateIdentifier);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of aggregates currently being locked pessimistically
+     */
+    public int getHotAggregates() {
+        return hotAggregates.size();
+    }
+}
@@ -0,0 +1,51 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * The PostgreSQL implementation of a pessimistic lock strategy, takes a transaction scoped advisory lock on the aggregate
+ * identifier before the aggregate is loaded, the lock is released when the transaction commits or rolls back.
+ * <br>
+ * <br>
+ * Unlike {@link RowAggregateLockStrategy} this also serialises commands against an aggregate which doesn't exist yet,
+ * since the lock does not depend on the aggregate's row existing. Commands handled by an aggregate's constructor are not
+ * loaded, and so take no lock, a duplicate creation fails with a concurrency conflict when it is saved instead.
+ * Advisory locks share a single 64-bit key space, the key used is the exclusive or of the two halves of the aggregate
+ * identifier
+ */
+public class AdvisoryAggregateLockStrategy implements AggregateLockStrategy {
+
+    private static final String ADVISORY_LOCK = "select pg_advisory_xact_lock(?);";
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(AggregateRepository repository, ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        lock(connectionProvider, aggregateIdentifier);
+        return repository.loadAggregate(connectionProvider, aggregateIdentifier);
+    }
+
+    /**
+     * Takes the advisory lock for an aggregate, blocking until it is available
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateIdentifier The aggregate identifier of the aggregate to lock
+     */
+    public void lock(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        Connection connection = connectionProvider.getConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(ADVISORY_LOCK)) {
+            statement.setLong(1, aggregateIdentifier.getMostSignificantBits() ^ aggregateIdentifier.getLeastSignificantBits());
+
+            try (ResultSet ignored = statement.executeQuery()) {
+                // pg_advisory_xact_lock returns void, it's enough that it returned at all
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
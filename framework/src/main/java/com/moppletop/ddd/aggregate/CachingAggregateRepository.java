@@ -0,0 +1,364 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.database.Transaction;
+import com.moppletop.ddd.error.AggregateNotFoundException;
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventRepository;
+import lombok.Builder;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps the deserialised state of recently used aggregates in memory, in front of another {@link AggregateRepository}.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Aggregate instances are mutable and are changed in place by their handlers, so loading an aggregate takes it out
+ *     of the cache. It is only put back once a transaction which saved it has committed, which means a failed or rolled
+ *     back command can never leave partially applied state behind</li>
+ *     <li>Only aggregates saved through a started {@link Transaction} are cached, as that is the only way to know whether
+ *     the save was committed</li>
+ *     <li>By default the event sequence of a cached aggregate is checked against the database with a cheap probe before
+ *     it is used. If every node writing to the aggregates uses this cache, or commands can safely run against slightly
+ *     stale state, the probe can be turned off and the optimistic check when saving is relied upon instead, a stale entry
+ *     then causes a {@link com.moppletop.ddd.error.ConcurrencyConflictException} and the retry loads the latest state</li>
+ *     <li>The cache is split into segments, each an access ordered {@link LinkedHashMap} with its own monitor, the least
+ *     recently used aggregates of a segment are evicted once its total weight exceeds its share of the maximum weight</li>
+ *     <li>Locking loads bypass the cache, since the point of them is to read the row under a lock</li>
+ * </ul>
+ */
+public class CachingAggregateRepository implements AggregateRepository {
+
+    private final AggregateRepository delegate;
+    private final ToLongFunction<Object> weigher;
+    private final boolean validateEventSequence;
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleEntries = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param delegate The repository which actually stores the aggregates
+     * @param maximumWeight The maximum total weight of the cached aggregates, by default 10,000
+     * @param weigher Calculates the weight of an aggregate's state, by default every aggregate weighs 1 so the maximum
+     *                weight is simply the maximum number of aggregates
+     * @param segments The number of independently locked segments, rounded up to a power of two, by default 16
+     * @param validateEventSequence Whether to check the event sequence of a cached aggregate against the database before
+     *                              using it, by default true
+     */
+    @Builder
+    public CachingAggregateRepository(AggregateRepository delegate,
+                                      Long maximumWeight,
+                                      ToLongFunction<Object> weigher,
+                                      Integer segments,
+                                      Boolean validateEventSequence
+    ) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("A delegate repository must be provided!");
+        }
+
+        this.delegate = delegate;
+        this.weigher = weigher == null ? state -> 1 : weigher;
+        this.validateEventSequence = validateEventSequence == null || validateEventSequence;
+
+        int segmentCount = Integer.highestOneBit(Math.max(1, segments == null ? 16 : segments) * 2 - 1);
+        long segmentWeight = Math.max(1, (maximumWeight == null ? 10_000 : maximumWeight) / segmentCount);
+
+        this.segments = new Segment[segmentCount];
+
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment(segmentWeight);
+        }
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        CachedAggregate cached = segmentFor(aggregateIdentifier).remove(aggregateIdentifier);
+
+        if (cached != null) {
+            if (!validateEventSequence || isCurrent(connectionProvider, cached)) {
+                hits.increment();
+                return cached.toAggregate();
+            }
+
+            staleEntries.increment();
+        }
+
+        misses.increment();
+        return delegate.loadAggregate(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public <T> Map<UUID, Aggregate<T>> loadAggregates(ConnectionProvider connectionProvider, Collection<UUID> aggregateIdentifiers) {
+        Map<UUID, Aggregate<T>> aggregates = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+
+        for (UUID aggregateIdentifier : aggregateIdentifiers) {
+            CachedAggregate cached = segmentFor(aggregateIdentifier).remove(aggregateIdentifier);
+
+            // Probing every cached aggregate would cost more than the single bulk query, so when validating just load them
+            if (cached != null && !validateEventSequence) {
+                hits.increment();
+                aggregates.put(aggregateIdentifier, cached.toAggregate());
+            } else {
+                misses.increment();
+                missing.add(aggregateIdentifier);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            aggregates.putAll(delegate.loadAggregates(connectionProvider, missing));
+        }
+
+        return aggregates;
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregateForUpdate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        // The cached copy can't be trusted after this, whatever happens to the transaction
+        invalidate(aggregateIdentifier);
+        return delegate.loadAggregateForUpdate(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public long loadEventSequence(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return delegate.loadEventSequence(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
+        UUID aggregateIdentifier = aggregate.getAggregateIdentifier();
+
+        invalidate(aggregateIdentifier);
+
+        long globalId = delegate.saveAggregate(connectionProvider, aggregate);
+
+        cacheOnCommit(connectionProvider, globalId, aggregate, aggregate.getEventSequence(), null);
+        return globalId;
+    }
+
+    @Override
+    public SavedAggregate saveAggregateAndEvents(ConnectionProvider connectionProvider, Aggregate<?> aggregate, List<? extends EventContainer<?>> events, EventRepository eventRepository) {
+        invalidate(aggregate.getAggregateIdentifier());
+
+        SavedAggregate saved = delegate.saveAggregateAndEvents(connectionProvider, aggregate, events, eventRepository);
+
+        cacheOnCommit(connectionProvider, saved.getGlobalId(), aggregate, saved.getEventSequence(), saved.getSnapshot());
+        return saved;
+    }
+
+    /**
+     * Removes an aggregate from the cache, for example if it was modified outside of the framework
+     *
+     * @param aggregateIdentifier The aggregate identifier of the aggregate
+     */
+    public void invalidate(UUID aggregateIdentifier) {
+        segmentFor(aggregateIdentifier).remove(aggregateIdentifier);
+    }
+
+    /**
+     * Removes every aggregate from the cache
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return The number of loads served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of loads which went to the delegate repository, including those for stale entries
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The fraction of loads served from the cache, or 0 if nothing has been loaded yet
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return The number of cached aggregates found to be out of date by the event sequence probe
+     */
+    public long getStaleEntries() {
+        return staleEntries.sum();
+    }
+
+    /**
+     * @return The number of aggregates evicted to stay within the maximum weight
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of aggregates currently cached
+     */
+    public int getSize() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The total weight of the aggregates currently cached
+     */
+    public long getWeight() {
+        long weight = 0;
+
+        for (Segment segment : segments) {
+            weight += segment.getWeight();
+        }
+
+        return weight;
+    }
+
+    // The snapshot is the one the save reported, a save which couldn't say where the stored state now is isn't cached
+    private void cacheOnCommit(ConnectionProvider connectionProvider, long globalId, Aggregate<?> aggregate, long eventSequence, AggregateSnapshot snapshot) {
+        boolean snapshotKnown = snapshot != null || aggregate.getSnapshot() == null;
+
+        if (snapshotKnown && aggregate.getCurrentState() != null && connectionProvider instanceof Transaction && ((Transaction) connectionProvider).hasStarted()) {
+            Transaction transaction = (Transaction) connectionProvider;
+            UUID aggregateIdentifier = aggregate.getAggregateIdentifier();
+            CachedAggregate cached = new CachedAggregate(globalId, aggregateIdentifier, aggregate.getClassName(), eventSequence, aggregate.getCurrentState(), snapshot);
+
+            transaction.afterCommit(() -> segmentFor(aggregateIdentifier).put(aggregateIdentifier, cached));
+            transaction.afterRollback(() -> invalidate(aggregateIdentifier));
+        }
+    }
+
+    private boolean isCurrent(ConnectionProvider connectionProvider, CachedAggregate cached) {
+        try {
+            return delegate.loadEventSequence(connectionProvider, cached.aggregateIdentifier) == cached.eventSequence;
+        } catch (AggregateNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private Segment segmentFor(UUID aggregateIdentifier) {
+        int hash = aggregateIdentifier.hashCode();
+
+        // Spread the higher bits down, as only the lowest bits select the segment
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private static class CachedAggregate {
+
+        private final long globalId;
+        private final UUID aggregateIdentifier;
+        private final String className;
+        private final long eventSequence;
+        private final Object currentState;
+        private final AggregateSnapshot snapshot;
+        private long weight;
+
+        private CachedAggregate(long globalId, UUID aggregateIdentifier, String className, long eventSequence, Object currentState, AggregateSnapshot snapshot) {
+            this.globalId = globalId;
+            this.aggregateIdentifier = aggregateIdentifier;
+            this.className = className;
+            this.eventSequence = eventSequence;
+            this.currentState = currentState;
+            this.snapshot = snapshot;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> Aggregate<T> toAggregate() {
+            return SimpleAggregate.<T>builder()
+                    .globalId(globalId)
+                    .aggregateIdentifier(aggregateIdentifier)
+                    .className(className)
+                    .initialEventSequence(eventSequence)
+                    .eventSequence(eventSequence)
+                    .currentState((T) currentState)
+                    .snapshot(snapshot)
+                    .build();
+        }
+    }
+
+    private class Segment {
+
+        private final LinkedHashMap<UUID, CachedAggregate> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maximumWeight;
+        private long weight;
+
+        private Segment(long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+        }
+
+        private void put(UUID aggregateIdentifier, CachedAggregate cached) {
+            // Weigh outside of the monitor, the weigher may be expensive
+            cached.weight = weigher.applyAsLong(cached.currentState);
+
+            synchronized (this) {
+                CachedAggregate previous = entries.remove(aggregateIdentifier);
+
+                if (previous != null) {
+                    weight -= previous.weight;
+                }
+
+                // Never worth caching something which would evict everything else
+                if (cached.weight > maximumWeight) {
+                    return;
+                }
+
+                entries.put(aggregateIdentifier, cached);
+                weight += cached.weight;
+
+                Iterator<Map.Entry<UUID, CachedAggregate>> iterator = entries.entrySet().iterator();
+
+                while (weight > maximumWeight && iterator.hasNext()) {
+                    CachedAggregate eldest = iterator.next().getValue();
+
+                    iterator.remove();
+                    weight -= eldest.weight;
+                    evictions.increment();
+                }
+            }
+        }
+
+        private synchronized CachedAggregate remove(UUID aggregateIdentifier) {
+            CachedAggregate removed = entries.remove(aggregateIdentifier);
+
+            if (removed != null) {
+                weight -= removed.weight;
+            }
+
+            return removed;
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        private synchronized int size() {
+            return entries.size();
+        }
+
+        private synchronized long getWeight() {
+            return weight;
+        }
+    }
+}
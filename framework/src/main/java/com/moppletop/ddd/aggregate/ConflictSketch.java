@@ -0,0 +1,117 @@
+package com.moppletop.ddd.aggregate;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count-min sketch of concurrency conflicts per aggregate. The memory used is fixed regardless of how many aggregates
+ * are tracked, at the cost of estimates that may be slightly too high (never too low) when aggregates share counters.
+ * <br>
+ * <br>
+ * Every decay interval all counters are halved, so an estimate is roughly the number of conflicts an aggregate has had
+ * over the last couple of intervals and aggregates which stop conflicting cool off on their own
+ */
+public class ConflictSketch {
+
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final AtomicIntegerArray counters;
+    private final int mask;
+    private final long decayIntervalNanos;
+    private final AtomicLong nextDecay;
+
+    /**
+     * @param width The number of counters per row, rounded up to a power of two
+     * @param decayIntervalNanos How often counters are halved
+     */
+    public ConflictSketch(int width, long decayIntervalNanos) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("The width of the sketch must be a positive number!");
+        }
+
+        int roundedWidth = Integer.highestOneBit(width - 1) << 1;
+
+        if (width == 1) {
+            roundedWidth = 1;
+        }
+
+        this.counters = new AtomicIntegerArray(roundedWidth * DEPTH);
+        this.mask = roundedWidth - 1;
+        this.decayIntervalNanos = decayIntervalNanos;
+        this.nextDecay = new AtomicLong(System.nanoTime() + decayIntervalNanos);
+    }
+
+    /**
+     * Records a conflict against an aggregate
+     *
+     * @param aggregateIdentifier The aggregate that conflicted
+     * @return The estimated number of recent conflicts, including this one
+     */
+    public int increment(UUID aggregateIdentifier) {
+        decayIfDue();
+
+        long hash = hash(aggregateIdentifier);
+        int estimate = Integer.MAX_VALUE;
+
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(hash, row)));
+        }
+
+        return estimate;
+    }
+
+    /**
+     * @param aggregateIdentifier The aggregate
+     * @return The estimated number of recent conflicts
+     */
+    public int estimate(UUID aggregateIdentifier) {
+        decayIfDue();
+
+        long hash = hash(aggregateIdentifier);
+        int estimate = Integer.MAX_VALUE;
+
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.get(index(hash, row)));
+        }
+
+        return estimate;
+    }
+
+    private void decayIfDue() {
+        long due = nextDecay.get();
+        long now = System.nanoTime();
+
+        // Only the thread that moves the deadline does the decay
+        if (now - due < 0 || !nextDecay.compareAndSet(due, now + decayIntervalNanos)) {
+            return;
+        }
+
+        for (int i = 0; i < counters.length(); i++) {
+            int value;
+
+            do {
+                value = counters.get(i);
+            } while (value != 0 && !counters.compareAndSet(i, value, value >>> 1));
+        }
+    }
+
+    private int index(long hash, int row) {
+        return row * (mask + 1) + (int) (mix(hash ^ SEEDS[row]) & mask);
+    }
+
+    private static long hash(UUID aggregateIdentifier) {
+        return aggregateIdentifier.getMostSignificantBits() * 31 + aggregateIdentifier.getLeastSignificantBits();
+    }
+
+    // The finaliser of MurmurHash3
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,428 @@
+package com.moppletop.ddd.aggregate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.database.Transaction;
+import com.moppletop.ddd.error.AggregateSerialisationException;
+import com.moppletop.ddd.error.ConcurrencyConflictException;
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventRepository;
+import com.moppletop.ddd.transformer.jackson.JacksonObjectTransformer;
+import com.moppletop.ddd.transformer.jackson.JsonPatch;
+import com.moppletop.ddd.util.ClassResolver;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Stores changes to the state of aggregates as <a href="https://datatracker.ietf.org/doc/html/rfc6902">JSON Patch</a>
+ * deltas, in front of another {@link AggregateRepository}. Commands which change a few fields of a large aggregate then
+ * write a small delta instead of the whole state, and once enough deltas have built up they are merged back into the
+ * stored state in the background.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>The delegate must support snapshots, for example a {@link JdbcAggregateRepository} with snapshots enabled. It
+ *     is given aggregates without their current state when a delta is stored, and the snapshot sequence of the stored
+ *     state decides which deltas still have to be applied to it</li>
+ *     <li>Deltas are the difference between the state as it was loaded, which is kept in the {@link Transaction}, and the
+ *     state being saved. Aggregates loaded outside of the transaction, for example from a cache in front of this
+ *     repository, and new aggregates are stored in full</li>
+ *     <li>Every save of an existing aggregate stores a delta, even an empty one, so a load can tell whether it missed
+ *     deltas merged by a compaction committed between reading the aggregate and reading its deltas. That load fails
+ *     with a {@link ConcurrencyConflictException}, so the command is retried</li>
+ *     <li>Compaction locks the aggregate row, so it waits for and is waited on by commands using a locking strategy,
+ *     and it never changes the event sequence, so it doesn't conflict with optimistic commands</li>
+ *     <li>Without a data source there is no background compaction, the state is stored in full by the command which
+ *     reaches the threshold instead</li>
+ *     <li>This is an alternative to the {@link SnapshottingAggregateRepository}, the two can't be combined as both use
+ *     the snapshot columns of the delegate</li>
+ * </ul>
+ */
+@Slf4j
+public class DeltaAggregateRepository implements AggregateRepository {
+
+    private static final String INSERT_DELTA = "insert into aggregate_delta (aggregate_global_id, event_sequence, patch) values (?, ?, ?::json);";
+    private static final String GET_DELTAS = "select event_sequence, patch from aggregate_delta where aggregate_global_id = ? and event_sequence > ? order by event_sequence;";
+    private static final String DELETE_DELTAS = "delete from aggregate_delta where aggregate_global_id = ? and event_sequence <= ?;";
+
+    private final AggregateRepository delegate;
+    private final JacksonObjectTransformer transformer;
+    private final DataSource dataSource;
+    private final int compactionThreshold;
+    private final Executor compactionExecutor;
+
+    private final Set<Long> compacting = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param delegate The repository which actually stores the aggregates, which must support snapshots
+     * @param transformer Used to convert aggregate state to and from JSON trees, and to store the deltas
+     * @param dataSource The database to compact deltas in, if null deltas are compacted by commands instead
+     * @param compactionThreshold The number of deltas an aggregate can have before they're compacted, by default 16
+     * @param compactionExecutor Runs the compactions, by default a single daemon thread
+     */
+    @Builder
+    public DeltaAggregateRepository(AggregateRepository delegate,
+                                    JacksonObjectTransformer transformer,
+                                    DataSource dataSource,
+                                    Integer compactionThreshold,
+                                    Executor compactionExecutor
+    ) {
+        if (delegate == null || transformer == null) {
+            throw new IllegalArgumentException("A delegate repository and object transformer must be provided!");
+        }
+
+        this.delegate = delegate;
+        this.transformer = transformer;
+        this.dataSource = dataSource;
+        this.compactionThreshold = Math.max(1, compactionThreshold == null ? 16 : compactionThreshold);
+        this.compactionExecutor = compactionExecutor != null ? compactionExecutor : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aggregate-delta-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return applyDeltas(connectionProvider, delegate.loadAggregate(connectionProvider, aggregateIdentifier));
+    }
+
+    @Override
+    public <T> Map<UUID, Aggregate<T>> loadAggregates(ConnectionProvider connectionProvider, Collection<UUID> aggregateIdentifiers) {
+        Map<UUID, Aggregate<T>> aggregates = delegate.loadAggregates(connectionProvider, aggregateIdentifiers);
+
+        aggregates.replaceAll((aggregateIdentifier, aggregate) -> applyDeltas(connectionProvider, aggregate));
+        return aggregates;
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregateForUpdate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return applyDeltas(connectionProvider, delegate.loadAggregateForUpdate(connectionProvider, aggregateIdentifier));
+    }
+
+    @Override
+    public long loadEventSequence(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return delegate.loadEventSequence(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
+        Delta delta = diff(connectionProvider, aggregate);
+
+        if (delta == null) {
+            long globalId = delegate.saveAggregate(connectionProvider, aggregate);
+
+            afterFullSave(connectionProvider, aggregate, globalId, aggregate.getEventSequence());
+            return globalId;
+        }
+
+        long globalId = delegate.saveAggregate(connectionProvider, withoutState(aggregate));
+
+        saveDelta(connectionProvider, aggregate, globalId, aggregate.getEventSequence(), delta);
+        return globalId;
+    }
+
+    @Override
+    public SavedAggregate saveAggregateAndEvents(ConnectionProvider connectionProvider, Aggregate<?> aggregate, List<? extends EventContainer<?>> events, EventRepository eventRepository) {
+        Delta delta = diff(connectionProvider, aggregate);
+
+        if (delta == null) {
+            SavedAggregate saved = delegate.saveAggregateAndEvents(connectionProvider, aggregate, events, eventRepository);
+
+            afterFullSave(connectionProvider, aggregate, saved.getGlobalId(), saved.getEventSequence());
+            return saved;
+        }
+
+        SavedAggregate saved = delegate.saveAggregateAndEvents(connectionProvider, withoutState(aggregate), events, eventRepository);
+
+        saveDelta(connectionProvider, aggregate, saved.getGlobalId(), saved.getEventSequence(), delta);
+        return saved;
+    }
+
+    /**
+     * Merges the deltas of an aggregate into its stored state now, in a transaction of its own
+     *
+     * @param aggregateIdentifier The aggregate identifier of the aggregate
+     */
+    public void compact(UUID aggregateIdentifier) {
+        if (dataSource == null) {
+            throw new IllegalStateException("Compacting outside of a command requires a data source!");
+        }
+
+        Transaction transaction = Transaction.createAndStart(dataSource);
+        boolean compacted;
+
+        try {
+            compacted = compact(transaction, aggregateIdentifier);
+        } catch (RuntimeException ex) {
+            Transaction.stopAndRollback();
+            throw ex;
+        }
+
+        if (compacted) {
+            Transaction.stopAndCommit();
+        } else {
+            Transaction.stopAndRollback();
+        }
+    }
+
+    private boolean compact(Transaction transaction, UUID aggregateIdentifier) {
+        Aggregate<Object> aggregate = loadAggregateForUpdate(transaction, aggregateIdentifier);
+        AggregateSnapshot snapshot = aggregate.getSnapshot();
+
+        if (snapshot == null || snapshot.getEventsSince() == 0) {
+            return false;
+        }
+
+        // The event sequence stays as it is, only the stored state catches up with it
+        delegate.saveAggregate(transaction, SimpleAggregate.builder()
+                .globalId(aggregate.getGlobalId())
+                .aggregateIdentifier(aggregateIdentifier)
+                .className(aggregate.getClassName())
+                .initialEventSequence(aggregate.getEventSequence())
+                .eventSequence(aggregate.getEventSequence())
+                .currentState(aggregate.getCurrentState())
+                .build());
+
+        deleteDeltas(transaction, aggregate.getGlobalId(), aggregate.getEventSequence());
+        return true;
+    }
+
+    private <T> Aggregate<T> applyDeltas(ConnectionProvider connectionProvider, Aggregate<T> aggregate) {
+        AggregateSnapshot snapshot = aggregate.getSnapshot();
+
+        // Without snapshot support the delegate only ever stores full state
+        if (snapshot == null) {
+            return aggregate;
+        }
+
+        JsonNode tree = transformer.toTree(aggregate.getCurrentState());
+        T state = aggregate.getCurrentState();
+        int applied = 0;
+
+        if (snapshot.getEventSequence() < aggregate.getEventSequence()) {
+            long appliedSequence = snapshot.getEventSequence();
+
+            for (Map.Entry<Long, JsonNode> delta : loadDeltas(connectionProvider, aggregate.getGlobalId(), snapshot.getEventSequence()).entrySet()) {
+                // Deltas committed since the aggregate row was read belong to a later version of the aggregate
+                if (delta.getKey() > aggregate.getEventSequence()) {
+                    break;
+                }
+
+                tree = JsonPatch.apply(tree, delta.getValue());
+                appliedSequence = delta.getKey();
+                applied++;
+            }
+
+            if (appliedSequence != aggregate.getEventSequence()) {
+                throw new ConcurrencyConflictException("Deltas for aggregate: {" + aggregate + "} were compacted while it was being loaded.");
+            }
+
+            state = fromTree(tree, aggregate.getClassName());
+        }
+
+        Map<UUID, LoadedState> loaded = getLoadedStates(connectionProvider);
+
+        if (loaded != null) {
+            loaded.put(aggregate.getAggregateIdentifier(), new LoadedState(tree, applied));
+        }
+
+        return SimpleAggregate.<T>builder()
+                .globalId(aggregate.getGlobalId())
+                .aggregateIdentifier(aggregate.getAggregateIdentifier())
+                .className(aggregate.getClassName())
+                .initialEventSequence(aggregate.getInitialEventSequence())
+                .eventSequence(aggregate.getEventSequence())
+                .currentState(state)
+                .snapshot(new AggregateSnapshot(snapshot.getEventSequence(), snapshot.getTime(), applied))
+                .build();
+    }
+
+    // Returns null when the aggregate should be stored in full
+    private Delta diff(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
+        Map<UUID, LoadedState> loaded = getLoadedStates(connectionProvider);
+
+        if (!aggregate.exists() || aggregate.getSnapshot() == null || aggregate.getCurrentState() == null || loaded == null) {
+            return null;
+        }
+
+        LoadedState state = loaded.get(aggregate.getAggregateIdentifier());
+
+        if (state == null || (dataSource == null && state.deltas >= compactionThreshold)) {
+            return null;
+        }
+
+        JsonNode tree = transformer.toTree(aggregate.getCurrentState());
+        ArrayNode patch = JsonPatch.diff(state.tree, tree);
+
+        // A delta replacing the whole state is only bigger than the state itself
+        if (patch.size() == 1 && patch.get(0).path("path").asText().isEmpty()) {
+            return null;
+        }
+
+        return new Delta(tree, patch, state.deltas + 1);
+    }
+
+    private void saveDelta(ConnectionProvider connectionProvider, Aggregate<?> aggregate, long globalId, long eventSequence, Delta delta) {
+        Connection connection = connectionProvider.getConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_DELTA)) {
+            statement.setLong(1, globalId);
+            statement.setLong(2, eventSequence);
+            statement.setString(3, transformer.serialise(delta.patch));
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } catch (Exception ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+
+        UUID aggregateIdentifier = aggregate.getAggregateIdentifier();
+        Transaction transaction = (Transaction) connectionProvider;
+
+        getLoadedStates(connectionProvider).put(aggregateIdentifier, new LoadedState(delta.tree, delta.deltas));
+
+        if (dataSource != null && delta.deltas >= compactionThreshold) {
+            transaction.afterCommit(() -> scheduleCompaction(globalId, aggregateIdentifier));
+        }
+    }
+
+    private void afterFullSave(ConnectionProvider connectionProvider, Aggregate<?> aggregate, long globalId, long eventSequence) {
+        Map<UUID, LoadedState> loaded = getLoadedStates(connectionProvider);
+        LoadedState state = loaded == null ? null : loaded.remove(aggregate.getAggregateIdentifier());
+
+        // The stored state now includes every delta, unless the aggregate was loaded without any there is nothing left to keep
+        if (aggregate.exists() && aggregate.getSnapshot() != null && (state == null || state.deltas > 0)) {
+            deleteDeltas(connectionProvider, globalId, eventSequence);
+        }
+    }
+
+    private void scheduleCompaction(long globalId, UUID aggregateIdentifier) {
+        if (!compacting.add(globalId)) {
+            return;
+        }
+
+        try {
+            compactionExecutor.execute(() -> {
+                try {
+                    compact(aggregateIdentifier);
+                } catch (RuntimeException ex) {
+                    log.warn("Failed to compact the deltas of aggregate {}", aggregateIdentifier, ex);
+                } finally {
+                    compacting.remove(globalId);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            compacting.remove(globalId);
+            log.warn("Compaction of the deltas of aggregate {} was rejected", aggregateIdentifier, ex);
+        }
+    }
+
+    private Map<Long, JsonNode> loadDeltas(ConnectionProvider connectionProvider, long globalId, long afterEventSequence) {
+        Connection connection = connectionProvider.getConnection();
+        Map<Long, JsonNode> deltas = new LinkedHashMap<>();
+
+        try (PreparedStatement statement = connection.prepareStatement(GET_DELTAS)) {
+            statement.setLong(1, globalId);
+            statement.setLong(2, afterEventSequence);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    deltas.put(resultSet.getLong("event_sequence"), transformer.deserialise(resultSet.getString("patch"), JsonNode.class));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } catch (Exception ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+
+        return deltas;
+    }
+
+    private void deleteDeltas(ConnectionProvider connectionProvider, long globalId, long upToEventSequence) {
+        Connection connection = connectionProvider.getConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_DELTAS)) {
+            statement.setLong(1, globalId);
+            statement.setLong(2, upToEventSequence);
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T fromTree(JsonNode tree, String className) {
+        try {
+            return (T) transformer.fromTree(tree, ClassResolver.resolve(className));
+        } catch (Exception ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+    }
+
+    // The state of the aggregates loaded in the transaction, keyed by this repository
+    private Map<UUID, LoadedState> getLoadedStates(ConnectionProvider connectionProvider) {
+        if (!(connectionProvider instanceof Transaction) || !((Transaction) connectionProvider).hasStarted()) {
+            return null;
+        }
+
+        Transaction transaction = (Transaction) connectionProvider;
+        Map<UUID, LoadedState> loaded = transaction.getResource(this);
+
+        if (loaded == null) {
+            loaded = new HashMap<>();
+            transaction.putResource(this, loaded);
+        }
+
+        return loaded;
+    }
+
+    private static Aggregate<?> withoutState(Aggregate<?> aggregate) {
+        return SimpleAggregate.builder()
+                .globalId(aggregate.getGlobalId())
+                .aggregateIdentifier(aggregate.getAggregateIdentifier())
+                .className(aggregate.getClassName())
+                .initialEventSequence(aggregate.getInitialEventSequence())
+                .eventSequence(aggregate.getEventSequence())
+                .snapshot(aggregate.getSnapshot())
+                .build();
+    }
+
+    private static class LoadedState {
+
+        private final JsonNode tree;
+        private final int deltas;
+
+        private LoadedState(JsonNode tree, int deltas) {
+            this.tree = tree;
+            this.deltas = deltas;
+        }
+    }
+
+    private static class Delta {
+
+        private final JsonNode tree;
+        private final ArrayNode patch;
+        private final int deltas;
+
+        private Delta(JsonNode tree, ArrayNode patch, int deltas) {
+            this.tree = tree;
+            this.patch = patch;
+            this.deltas = deltas;
+        }
+    }
+}
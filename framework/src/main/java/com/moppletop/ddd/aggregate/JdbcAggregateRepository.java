@@ -1,47 +1,287 @@
 package com.moppletop.ddd.aggregate;
 
 import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.database.StorageFormat;
+import com.moppletop.ddd.database.TableRouting;
+import com.moppletop.ddd.database.TypeColumn;
 import com.moppletop.ddd.error.AggregateNotFoundException;
 import com.moppletop.ddd.error.AggregateSerialisationException;
+import com.moppletop.ddd.error.ConcurrencyConflictException;
+import com.moppletop.ddd.error.EventSerialisationException;
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventRepository;
+import com.moppletop.ddd.event.JdbcEventRepository;
 import com.moppletop.ddd.transformer.ObjectTransformer;
-import lombok.RequiredArgsConstructor;
+import com.moppletop.ddd.transformer.TypeRegistry;
+
+import lombok.Builder;
 
 import java.sql.*;
-import java.util.UUID;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * The JDBC implementation of the aggregate repository
+ * <br>
+ * <br>
+ * With snapshots enabled the aggregate table has two more columns, <code>snapshot_sequence</code> (nullable) and
+ * <code>snapshot_time</code>, recording where the stored state was taken. An aggregate saved without its current state
+ * then only has its event sequence updated, leaving the stored state as a snapshot, see
+ * {@link SnapshottingAggregateRepository}
+ * <br>
+ * <br>
+ * Aggregate types can be stored in tables of their own, see {@link TableRouting}. Their events are then stored in the
+ * event table of the same group, as long as they are saved together with the aggregate through a
+ * {@link JdbcEventRepository}
  */
-@RequiredArgsConstructor
 public class JdbcAggregateRepository implements AggregateRepository {
 
-    private static final String GET_AGGREGATE_BY_ID = "select global_id, class_name, event_sequence, current_state from aggregate where aggregate_identifier = ?;";
-    private static final String UPDATE_STATE = "update aggregate set current_state = ?, event_sequence = ? where global_id = ? and event_sequence = ?;";
-    private static final String INSERT_STATE = "insert into aggregate (aggregate_identifier, class_name, event_sequence, current_state) values (?,?,?,?);";
+    // %4$s is the type column of the aggregate table, see TypeColumn, %7$s the snapshot columns if snapshots are enabled
+    private static final String GET_AGGREGATE_BY_ID = "select global_id, %4$s, event_sequence, current_state%7$s from %9$s where aggregate_identifier = ?;";
+    private static final String GET_AGGREGATE_BY_ID_FOR_UPDATE = "select global_id, %4$s, event_sequence, current_state%7$s from %9$s where aggregate_identifier = ? for update;";
+    private static final String GET_AGGREGATES_BY_IDS = "select aggregate_identifier, global_id, %4$s, event_sequence, current_state%7$s from %9$s where aggregate_identifier = any(?);";
+    private static final String GET_EVENT_SEQUENCE_BY_ID = "select event_sequence from %9$s where aggregate_identifier = ?;";
+    // %11$s is the group of the tables, see TableRouting
+    private static final String GET_GROUP_BY_ID = "select '%11$s' as table_group from %9$s where aggregate_identifier = ?;";
+    // %1$s is the current state parameter, see StorageFormat, %8$s marks the state as a new snapshot if snapshots are enabled
+    private static final String UPDATE_STATE = "update %9$s set current_state = %1$s, event_sequence = ?%8$s where global_id = ? and event_sequence = ?;";
+    // Keeps the stored state, a null snapshot sequence means the state was taken at the event sequence
+    private static final String UPDATE_SEQUENCE = "update %9$s set event_sequence = ?, snapshot_sequence = coalesce(snapshot_sequence, event_sequence) " +
+            "where global_id = ? and event_sequence = ?;";
+    private static final String INSERT_STATE = "insert into %9$s (aggregate_identifier, %4$s, event_sequence, current_state) values (?,?,?,%1$s);";
+
+    // Assigns the event sequences up front, in the order the events were given, so the aggregate row can be written with
+    // the last of them in the same statement. %6$s is the SQL type of the event type column. The event tables of every
+    // group share the sequence of the default event table. %12$s is the element type of the payload and metadata arrays
+    private static final String NEW_EVENTS = "with new_event as (" +
+            "select nextval(pg_get_serial_sequence('event', 'global_sequence')) as global_sequence, ordered.* " +
+            "from (select * from unnest(?::%6$s[], ?::%12$s[], ?::%12$s[]) with ordinality as e(type, payload, metadata, ord) order by ord) ordered" +
+            "), ";
+    // %2$s and %3$s convert the payload and metadata array elements to the event storage format, %5$s is the event type column
+    private static final String SAVE_EVENTS = ", saved_event as (" +
+            "insert into %10$s (global_sequence, aggregate_global_id, %5$s, payload, metadata) " +
+            "select new_event.global_sequence, saved_aggregate.global_id, new_event.type, %2$s, %3$s " +
+            "from new_event, saved_aggregate" +
+            ") select saved_aggregate.global_id, new_event.global_sequence from saved_aggregate, new_event order by new_event.ord;";
+    private static final String INSERT_STATE_AND_EVENTS = NEW_EVENTS + "saved_aggregate as (" +
+            "insert into %9$s (aggregate_identifier, %4$s, event_sequence, current_state) " +
+            "select ?, ?, max(global_sequence), %1$s from new_event returning global_id" +
+            ")" + SAVE_EVENTS;
+    // If the event sequence check fails no aggregate row is returned, so no events are inserted either
+    private static final String UPDATE_STATE_AND_EVENTS = NEW_EVENTS + "saved_aggregate as (" +
+            "update %9$s set current_state = %1$s, event_sequence = (select max(global_sequence) from new_event)%8$s " +
+            "where global_id = ? and event_sequence = ? returning global_id" +
+            ")" + SAVE_EVENTS;
+    private static final String UPDATE_SEQUENCE_AND_EVENTS = NEW_EVENTS + "saved_aggregate as (" +
+            "update %9$s set event_sequence = (select max(global_sequence) from new_event), snapshot_sequence = coalesce(snapshot_sequence, event_sequence) " +
+            "where global_id = ? and event_sequence = ? returning global_id" +
+            ")" + SAVE_EVENTS;
+
+    private static final String SNAPSHOT_COLUMNS = ", coalesce(snapshot_sequence, event_sequence) as snapshot_sequence, snapshot_time";
+    private static final String NEW_SNAPSHOT = ", snapshot_sequence = null, snapshot_time = now()";
+
+    // Results larger than this are deserialised in parallel
+    private static final int PARALLEL_DESERIALISATION_THRESHOLD = 256;
+
+    // The SQLSTATE for a unique constraint violation, in this case another transaction created the aggregate first
+    private static final String UNIQUE_VIOLATION = "23505";
 
     private final ObjectTransformer transformer;
+    private final StorageFormat storageFormat;
+    private final TypeColumn typeColumn;
+    private final boolean snapshots;
+    private final TableRouting tableRouting;
+
+    // The statements of each group of tables, the default tables are under an empty group
+    private final Map<String, Tables> tables;
+    // Aggregates loaded by their identifier could be in any aggregate table, these have a parameter for each of them
+    private final String getAggregateById;
+    private final String getAggregatesByIds;
+    private final String getEventSequenceById;
+    private final String getGroupById;
+
+    public JdbcAggregateRepository(ObjectTransformer transformer) {
+        this(transformer, StorageFormat.JSON);
+    }
+
+    /**
+     * @param transformer Used to serialise and deserialise aggregate state
+     * @param storageFormat How aggregate state is stored, the <code>current_state</code> column must be of the matching type
+     */
+    public JdbcAggregateRepository(ObjectTransformer transformer, StorageFormat storageFormat) {
+        this(transformer, storageFormat, null);
+    }
+
+    /**
+     * @param transformer Used to serialise and deserialise aggregate state
+     * @param storageFormat How aggregate state is stored, the <code>current_state</code> column must be of the matching type
+     * @param typeRegistry If not null, aggregate types are stored by their id in the registry in a <code>type_id</code>
+     *                     column rather than by class name, see {@link TypeColumn}
+     */
+    public JdbcAggregateRepository(ObjectTransformer transformer, StorageFormat storageFormat, TypeRegistry typeRegistry) {
+        this(transformer, storageFormat, typeRegistry, null, null);
+    }
+
+    /**
+     * @param transformer Used to serialise and deserialise aggregate state
+     * @param storageFormat How aggregate state is stored, the <code>current_state</code> column must be of the matching
+     *                      type, by default JSON
+     * @param typeRegistry If not null, aggregate types are stored by their id in the registry in a <code>type_id</code>
+     *                     column rather than by class name, see {@link TypeColumn}
+     * @param snapshots Whether the aggregate table has the snapshot columns, by default false
+     * @param tableRouting Which tables each aggregate type and its events are stored in, by default everything is stored
+     *                     in the default tables
+     */
+    @Builder
+    public JdbcAggregateRepository(ObjectTransformer transformer, StorageFormat storageFormat, TypeRegistry typeRegistry, Boolean snapshots, TableRouting tableRouting) {
+        this.transformer = transformer;
+        this.storageFormat = storageFormat == null ? StorageFormat.JSON : storageFormat;
+        this.typeColumn = TypeColumn.of(typeRegistry);
+        this.snapshots = snapshots != null && snapshots;
+        this.tableRouting = tableRouting == null ? TableRouting.none() : tableRouting;
+        this.tables = new LinkedHashMap<>();
+
+        List<String> groups = new ArrayList<>();
+
+        groups.add(null);
+        groups.addAll(this.tableRouting.getGroups());
+
+        for (String group : groups) {
+            tables.put(group == null ? "" : group, new Tables(group));
+        }
+
+        this.getAggregateById = unionAll(table -> table.getAggregateById);
+        this.getAggregatesByIds = unionAll(table -> table.getAggregatesByIds);
+        this.getEventSequenceById = unionAll(table -> table.getEventSequenceById);
+        this.getGroupById = unionAll(table -> table.getGroupById);
+    }
+
+    /**
+     * @return Which tables each aggregate type and its events are stored in
+     */
+    public TableRouting getTableRouting() {
+        return tableRouting;
+    }
 
     @Override
     public <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return loadAggregate(connectionProvider, aggregateIdentifier, getAggregateById, tables.size());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Map<UUID, Aggregate<T>> loadAggregates(ConnectionProvider connectionProvider, Collection<UUID> aggregateIdentifiers) {
+        if (aggregateIdentifiers.isEmpty()) {
+            return new HashMap<>();
+        }
+
         Connection connection = connectionProvider.getConnection();
+        List<UUID> identifiers = new ArrayList<>();
+        List<Long> globalIds = new ArrayList<>();
+        List<Class<?>> types = new ArrayList<>();
+        List<Long> eventSequences = new ArrayList<>();
+        List<Object> states = new ArrayList<>();
+        List<AggregateSnapshot> snapshots = new ArrayList<>();
 
-        try (PreparedStatement statement = connection.prepareStatement(GET_AGGREGATE_BY_ID)) {
-            statement.setObject(1, aggregateIdentifier);
+        // One round trip for every aggregate. The rows are only read here, so the statement and result set are closed
+        // before the more expensive deserialisation, the connection itself stays with the transaction
+        try (PreparedStatement statement = connection.prepareStatement(getAggregatesByIds)) {
+            bindToEveryTable(statement, connection.createArrayOf("uuid", new LinkedHashSet<>(aggregateIdentifiers).toArray()));
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    identifiers.add((UUID) resultSet.getObject("aggregate_identifier"));
+                    globalIds.add(resultSet.getLong("global_id"));
+                    types.add(typeColumn.read(resultSet));
+                    eventSequences.add(resultSet.getLong("event_sequence"));
+                    states.add(storageFormat.read(resultSet, "current_state"));
+                    snapshots.add(readSnapshot(resultSet));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+
+        int rows = identifiers.size();
+        Object[] currentStates = new Object[rows];
+        IntStream indexes = IntStream.range(0, rows);
+
+        if (rows >= PARALLEL_DESERIALISATION_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+
+        indexes.forEach(i -> currentStates[i] = deserialise(states.get(i), types.get(i)));
+
+        Map<UUID, Aggregate<T>> aggregates = new HashMap<>(rows * 4 / 3 + 1);
+
+        for (int i = 0; i < rows; i++) {
+            aggregates.put(identifiers.get(i), SimpleAggregate.<T>builder()
+                    .globalId(globalIds.get(i))
+                    .aggregateIdentifier(identifiers.get(i))
+                    .className(types.get(i).getName())
+                    .initialEventSequence(eventSequences.get(i))
+                    .eventSequence(eventSequences.get(i))
+                    .currentState((T) currentStates[i])
+                    .snapshot(snapshots.get(i))
+                    .build());
+        }
+
+        return aggregates;
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregateForUpdate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        // Rows can't be locked through a union, so when there are several aggregate tables find the right one first
+        Tables table = tables.size() == 1 ? tables.get("") : findTables(connectionProvider, aggregateIdentifier);
+
+        return loadAggregate(connectionProvider, aggregateIdentifier, table.getAggregateByIdForUpdate, 1);
+    }
+
+    private Tables findTables(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        Connection connection = connectionProvider.getConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(getGroupById)) {
+            bindToEveryTable(statement, aggregateIdentifier);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return tables.get(resultSet.getString("table_group"));
+                } else {
+                    throw new AggregateNotFoundException("The aggregate with id " + aggregateIdentifier + " was not found.");
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier, String sql, int parameters) {
+        Connection connection = connectionProvider.getConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 1; i <= parameters; i++) {
+                statement.setObject(i, aggregateIdentifier);
+            }
 
             try (ResultSet resultSet = statement.executeQuery()) {
                 if (resultSet.next()) {
                     long globalIndex = resultSet.getLong("global_id");
-                    String className = resultSet.getString("class_name");
+                    Class<?> type = typeColumn.read(resultSet);
                     long eventSequence = resultSet.getLong("event_sequence");
-                    String json = resultSet.getString("current_state");
+                    Object state = storageFormat.read(resultSet, "current_state");
 
                     return SimpleAggregate.<T>builder()
                             .globalId(globalIndex)
                             .aggregateIdentifier(aggregateIdentifier)
-                            .className(className)
+                            .className(type.getName())
                             .initialEventSequence(eventSequence)
                             .eventSequence(eventSequence)
-                            .currentState(deserialise(json, className))
+                            .currentState(deserialise(state, type))
+                            .snapshot(readSnapshot(resultSet))
                             .build();
                 } else {
                     throw new AggregateNotFoundException("The aggregate with id " + aggregateIdentifier + " was not found.");
@@ -49,18 +289,57 @@ public class JdbcAggregateRepository implements AggregateRepository {
             }
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+    }
+
+    @Override
+    public long loadEventSequence(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        Connection connection = connectionProvider.getConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(getEventSequenceById)) {
+            bindToEveryTable(statement, aggregateIdentifier);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getLong("event_sequence");
+                } else {
+                    throw new AggregateNotFoundException("The aggregate with id " + aggregateIdentifier + " was not found.");
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
         }
     }
 
     @Override
     public long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
         Connection connection = connectionProvider.getConnection();
-        String json = serialise(aggregate.getCurrentState());
+        Tables table = tablesFor(aggregate);
+
+        if (isKeepingSnapshot(aggregate)) {
+            try (PreparedStatement statement = connection.prepareStatement(table.updateSequence)) {
+                statement.setLong(1, aggregate.getEventSequence());
+                statement.setLong(2, aggregate.getGlobalId());
+                statement.setLong(3, aggregate.getInitialEventSequence());
+
+                if (statement.executeUpdate() == 0) {
+                    throw new ConcurrencyConflictException("Event sequence for aggregate: {" + aggregate + "} was modified during processing time.");
+                }
+
+                return aggregate.getGlobalId();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        Object state = serialise(aggregate.getCurrentState());
 
         // If the aggregate already exists when we'll just update
         if (aggregate.exists()) {
-            try (PreparedStatement statement = connection.prepareStatement(UPDATE_STATE)) {
-                statement.setString(1, json);
+            try (PreparedStatement statement = connection.prepareStatement(table.updateState)) {
+                storageFormat.bind(statement, 1, state);
                 statement.setLong(2, aggregate.getEventSequence());
                 statement.setLong(3, aggregate.getGlobalId());
                 statement.setLong(4, aggregate.getInitialEventSequence());
@@ -69,7 +348,7 @@ public class JdbcAggregateRepository implements AggregateRepository {
                 // we got the aggregate, if no rows were updated, we know that the aggregate was modified while this node was
                 // processing it
                 if (statement.executeUpdate() == 0) {
-                    throw new SQLException("Event sequence for aggregate: {" + aggregate + "} was modified during processing time.");
+                    throw new ConcurrencyConflictException("Event sequence for aggregate: {" + aggregate + "} was modified during processing time.");
                 }
 
                 return aggregate.getGlobalId();
@@ -78,11 +357,11 @@ public class JdbcAggregateRepository implements AggregateRepository {
             }
         } else {
             // Otherwise insert a new row
-            try (PreparedStatement statement = connection.prepareStatement(INSERT_STATE, Statement.RETURN_GENERATED_KEYS)) {
+            try (PreparedStatement statement = connection.prepareStatement(table.insertState, Statement.RETURN_GENERATED_KEYS)) {
                 statement.setObject(1, aggregate.getAggregateIdentifier());
-                statement.setString(2, aggregate.getClassName());
+                typeColumn.bind(statement, 2, aggregate.getClassName());
                 statement.setLong(3, aggregate.getEventSequence());
-                statement.setString(4, json);
+                storageFormat.bind(statement, 4, state);
 
                 statement.executeUpdate();
 
@@ -94,25 +373,239 @@ public class JdbcAggregateRepository implements AggregateRepository {
                     }
                 }
             } catch (SQLException ex) {
+                if (UNIQUE_VIOLATION.equals(ex.getSQLState())) {
+                    throw new ConcurrencyConflictException("Aggregate " + aggregate.getAggregateIdentifier() + " was created by another transaction during processing time.", ex);
+                }
+
                 throw new RuntimeException(ex);
             }
         }
     }
 
+    /**
+     * When the events are also stored by a {@link JdbcEventRepository}, the aggregate and all of its events are written
+     * with a single statement, otherwise this falls back to saving them separately.
+     * With snapshots enabled, an existing aggregate without a current state only has its event sequence updated
+     */
+    @Override
+    public SavedAggregate saveAggregateAndEvents(ConnectionProvider connectionProvider, Aggregate<?> aggregate, List<? extends EventContainer<?>> events, EventRepository eventRepository) {
+        if (!(eventRepository instanceof JdbcEventRepository)) {
+            return AggregateRepository.super.saveAggregateAndEvents(connectionProvider, aggregate, events, eventRepository);
+        }
+
+        Connection connection = connectionProvider.getConnection();
+        JdbcEventRepository jdbcEventRepository = (JdbcEventRepository) eventRepository;
+        ObjectTransformer eventTransformer = jdbcEventRepository.getTransformer();
+        StorageFormat eventFormat = jdbcEventRepository.getStorageFormat();
+        TypeColumn eventTypeColumn = jdbcEventRepository.getTypeColumn();
+        boolean keepingSnapshot = isKeepingSnapshot(aggregate);
+        Object state = keepingSnapshot ? null : serialise(aggregate.getCurrentState());
+        Object[] eventTypes = new Object[events.size()];
+        Object[] payloads = eventFormat.newArray(events.size());
+        Object[] metadata = eventFormat.newArray(events.size());
+
+        for (int i = 0; i < eventTypes.length; i++) {
+            EventContainer<?> event = events.get(i);
+
+            eventTypes[i] = eventTypeColumn.toValue(event.getEventName());
+            payloads[i] = serialiseEvent(eventTransformer, eventFormat, event.getPayload());
+            metadata[i] = serialiseEvent(eventTransformer, eventFormat, event.getMetadata());
+        }
+
+        int index = statementIndex(eventFormat, eventTypeColumn.isRegistered());
+        Tables table = tablesFor(aggregate);
+        String sql;
+
+        if (keepingSnapshot) {
+            sql = table.updateSequenceAndEvents[index];
+        } else {
+            sql = aggregate.exists() ? table.updateStateAndEvents[index] : table.insertStateAndEvents[index];
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setArray(1, connection.createArrayOf(eventTypeColumn.getSqlType(), eventTypes));
+            statement.setArray(2, eventFormat.createArray(connection, payloads));
+            statement.setArray(3, eventFormat.createArray(connection, metadata));
+
+            if (keepingSnapshot) {
+                statement.setLong(4, aggregate.getGlobalId());
+                statement.setLong(5, aggregate.getInitialEventSequence());
+            } else if (aggregate.exists()) {
+                storageFormat.bind(statement, 4, state);
+                statement.setLong(5, aggregate.getGlobalId());
+                statement.setLong(6, aggregate.getInitialEventSequence());
+            } else {
+                statement.setObject(4, aggregate.getAggregateIdentifier());
+                typeColumn.bind(statement, 5, aggregate.getClassName());
+                storageFormat.bind(statement, 6, state);
+            }
+
+            long globalId = 0;
+            long[] eventSequences = new long[events.size()];
+            int count = 0;
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    globalId = resultSet.getLong(1);
+                    eventSequences[count++] = resultSet.getLong(2);
+                }
+            }
+
+            if (count == 0) {
+                // Only an update can affect no rows, an insert would have failed with a unique violation
+                throw new ConcurrencyConflictException("Event sequence for aggregate: {" + aggregate + "} was modified during processing time.");
+            }
+
+            return new SavedAggregate(globalId, eventSequences, snapshotAfterSave(aggregate, eventSequences));
+        } catch (SQLException ex) {
+            if (UNIQUE_VIOLATION.equals(ex.getSQLState())) {
+                throw new ConcurrencyConflictException("Aggregate " + aggregate.getAggregateIdentifier() + " was created by another transaction during processing time.", ex);
+            }
+
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Without its current state an existing aggregate is saved keeping the stored state as a snapshot
+    private boolean isKeepingSnapshot(Aggregate<?> aggregate) {
+        return snapshots && aggregate.exists() && aggregate.getCurrentState() == null;
+    }
+
+    // Where the stored state is once the save commits, so callers caching the aggregate don't keep the snapshot it was loaded with
+    private AggregateSnapshot snapshotAfterSave(Aggregate<?> aggregate, long[] eventSequences) {
+        if (!snapshots) {
+            return null;
+        }
+
+        AggregateSnapshot snapshot = aggregate.getSnapshot();
+
+        if (isKeepingSnapshot(aggregate)) {
+            return snapshot == null ? null : new AggregateSnapshot(snapshot.getEventSequence(), snapshot.getTime(), snapshot.getEventsSince() + eventSequences.length);
+        }
+
+        return new AggregateSnapshot(eventSequences[eventSequences.length - 1], Instant.now(), 0);
+    }
+
+    private AggregateSnapshot readSnapshot(ResultSet resultSet) throws SQLException {
+        if (!snapshots) {
+            return null;
+        }
+
+        Timestamp time = resultSet.getTimestamp("snapshot_time");
+
+        return new AggregateSnapshot(resultSet.getLong("snapshot_sequence"), time == null ? null : time.toInstant(), 0);
+    }
+
     @SuppressWarnings("unchecked")
-    private <T> T deserialise(String json, String className) {
+    private <T> T deserialise(Object state, Class<?> type) {
         try {
-            return (T) transformer.deserialise(json, Class.forName(className));
+            return (T) storageFormat.deserialise(transformer, state, type);
         } catch (Exception ex) {
             throw new AggregateSerialisationException(ex);
         }
     }
 
-    private String serialise(Object aggregate) {
+    private Object serialise(Object aggregate) {
         try {
-            return transformer.serialise(aggregate);
+            return storageFormat.serialise(transformer, aggregate);
         } catch (Exception ex) {
             throw new AggregateSerialisationException(ex);
         }
     }
+
+    private Tables tablesFor(Aggregate<?> aggregate) {
+        String group = tableRouting.getGroup(aggregate.getClassName());
+        Tables table = tables.get(group == null ? "" : group);
+
+        if (table == null) {
+            throw new IllegalStateException("Aggregate type " + aggregate.getClassName() + " was routed to the unknown table group " + group);
+        }
+
+        return table;
+    }
+
+    private String unionAll(Function<Tables, String> statement) {
+        StringJoiner union = new StringJoiner(" union all ", "", ";");
+
+        for (Tables table : tables.values()) {
+            String sql = statement.apply(table);
+
+            union.add(sql.substring(0, sql.length() - 1));
+        }
+
+        return union.toString();
+    }
+
+    private void bindToEveryTable(PreparedStatement statement, Object value) throws SQLException {
+        for (int i = 1; i <= tables.size(); i++) {
+            statement.setObject(i, value);
+        }
+    }
+
+    private static int statementIndex(StorageFormat eventFormat, boolean eventTypesRegistered) {
+        return eventFormat.ordinal() * 2 + (eventTypesRegistered ? 1 : 0);
+    }
+
+    private static Object serialiseEvent(ObjectTransformer transformer, StorageFormat eventFormat, Object event) {
+        try {
+            return eventFormat.serialise(transformer, event);
+        } catch (Exception ex) {
+            throw new EventSerialisationException(ex);
+        }
+    }
+
+    // The statements for one group of tables
+    private class Tables {
+
+        private final String getAggregateById;
+        private final String getAggregateByIdForUpdate;
+        private final String getAggregatesByIds;
+        private final String getEventSequenceById;
+        private final String getGroupById;
+        private final String updateState;
+        private final String updateSequence;
+        private final String insertState;
+        // Indexed by the ordinal of the event storage format and whether the event types are registered, see statementIndex
+        private final String[] updateStateAndEvents;
+        private final String[] insertStateAndEvents;
+        private final String[] updateSequenceAndEvents;
+
+        private Tables(String group) {
+            String parameter = storageFormat.parameter();
+            String type = typeColumn.getName();
+            String snapshotColumns = snapshots ? SNAPSHOT_COLUMNS : "";
+            String newSnapshot = snapshots ? NEW_SNAPSHOT : "";
+            String aggregateTable = TableRouting.getAggregateTable(group);
+            String eventTable = TableRouting.getEventTable(group);
+            String groupName = group == null ? "" : group;
+            StorageFormat[] eventFormats = StorageFormat.values();
+            Object[] arguments = {parameter, null, null, type, null, null, snapshotColumns, newSnapshot, aggregateTable, eventTable, groupName, null};
+
+            this.getAggregateById = String.format(GET_AGGREGATE_BY_ID, arguments);
+            this.getAggregateByIdForUpdate = String.format(GET_AGGREGATE_BY_ID_FOR_UPDATE, arguments);
+            this.getAggregatesByIds = String.format(GET_AGGREGATES_BY_IDS, arguments);
+            this.getEventSequenceById = String.format(GET_EVENT_SEQUENCE_BY_ID, arguments);
+            this.getGroupById = String.format(GET_GROUP_BY_ID, arguments);
+            this.updateState = String.format(UPDATE_STATE, arguments);
+            this.updateSequence = String.format(UPDATE_SEQUENCE, arguments);
+            this.insertState = String.format(INSERT_STATE, arguments);
+            this.updateStateAndEvents = new String[eventFormats.length * 2];
+            this.insertStateAndEvents = new String[eventFormats.length * 2];
+            this.updateSequenceAndEvents = new String[eventFormats.length * 2];
+
+            for (StorageFormat eventFormat : eventFormats) {
+                String payload = eventFormat.fromArray("new_event.payload");
+                String metadata = eventFormat.fromArray("new_event.metadata");
+
+                for (boolean registered : new boolean[]{false, true}) {
+                    int index = statementIndex(eventFormat, registered);
+                    Object[] eventArguments = {parameter, payload, metadata, type, TypeColumn.getName(registered), TypeColumn.getSqlType(registered), snapshotColumns, newSnapshot, aggregateTable, eventTable, groupName, eventFormat.getArrayType()};
+
+                    updateStateAndEvents[index] = String.format(UPDATE_STATE_AND_EVENTS, eventArguments);
+                    insertStateAndEvents[index] = String.format(INSERT_STATE_AND_EVENTS, eventArguments);
+                    updateSequenceAndEvents[index] = String.format(UPDATE_SEQUENCE_AND_EVENTS, eventArguments);
+                }
+            }
+        }
+    }
 }
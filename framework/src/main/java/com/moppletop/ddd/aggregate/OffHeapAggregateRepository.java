@@ -0,0 +1,258 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.database.Transaction;
+import com.moppletop.ddd.error.AggregateNotFoundException;
+import com.moppletop.ddd.error.AggregateSerialisationException;
+import com.moppletop.ddd.error.ConcurrencyConflictException;
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventRepository;
+import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.util.ClassResolver;
+import lombok.Builder;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the serialised state of aggregates in an {@link OffHeapAggregateStore}, in front of another
+ * {@link AggregateRepository}. A hit skips the database entirely and only pays for deserialisation, while the heap
+ * footprint stays the same however many aggregates are cached.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Aggregates are written to the store once the transaction which saved them has committed, and removed if a
+ *     transaction which loaded or saved them rolls back</li>
+ *     <li>Every hit deserialises a new instance, so handlers mutating it can never corrupt the stored copy</li>
+ *     <li>State is stored as {@link ObjectTransformer#serialiseToBytes(Object)}, so a binary transformer also makes
+ *     entries smaller</li>
+ *     <li>By default a hit is trusted and a stale entry, left by another node modifying the aggregate, is caught by the
+ *     optimistic check when saving. The entry is removed as soon as the {@link ConcurrencyConflictException} is thrown,
+ *     whether the transaction or only a savepoint of it is rolled back, so the retry loads the latest state from the
+ *     database. Enable <code>validateEventSequence</code> to check the event sequence of every hit against the database
+ *     instead</li>
+ *     <li>Locking loads bypass the store, since the point of them is to read the row under a lock</li>
+ * </ul>
+ */
+public class OffHeapAggregateRepository implements AggregateRepository {
+
+    private final AggregateRepository delegate;
+    private final ObjectTransformer transformer;
+    private final OffHeapAggregateStore store;
+    private final boolean validateEventSequence;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param delegate The repository which actually stores the aggregates
+     * @param transformer Used to serialise and deserialise aggregate state
+     * @param capacity The number of bytes of off-heap memory to allocate, by default 256MiB
+     * @param slotSize The maximum size of an entry in bytes including its 64 byte header, by default 1KiB. Aggregates which
+     *                 serialise to more than this are not stored
+     * @param stripes The number of independently locked stripes, by default 64
+     * @param validateEventSequence Whether to check the event sequence of an entry against the database before using it,
+     *                              by default false
+     */
+    @Builder
+    public OffHeapAggregateRepository(AggregateRepository delegate,
+                                      ObjectTransformer transformer,
+                                      Long capacity,
+                                      Integer slotSize,
+                                      Integer stripes,
+                                      Boolean validateEventSequence
+    ) {
+        if (delegate == null || transformer == null) {
+            throw new IllegalArgumentException("A delegate repository and object transformer must be provided!");
+        }
+
+        this.delegate = delegate;
+        this.transformer = transformer;
+        this.validateEventSequence = validateEventSequence != null && validateEventSequence;
+        this.store = new OffHeapAggregateStore(
+                capacity == null ? 256L << 20 : capacity,
+                slotSize == null ? 1024 : slotSize,
+                stripes == null ? 64 : stripes
+        );
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        OffHeapAggregateStore.Entry entry = store.get(aggregateIdentifier);
+
+        if (entry != null && (!validateEventSequence || isCurrent(connectionProvider, aggregateIdentifier, entry))) {
+            hits.increment();
+            return fromEntry(connectionProvider, aggregateIdentifier, entry);
+        }
+
+        misses.increment();
+        return delegate.loadAggregate(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public <T> Map<UUID, Aggregate<T>> loadAggregates(ConnectionProvider connectionProvider, Collection<UUID> aggregateIdentifiers) {
+        Map<UUID, Aggregate<T>> aggregates = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+
+        for (UUID aggregateIdentifier : aggregateIdentifiers) {
+            // Probing every entry would cost more than the single bulk query, so when validating just load them
+            OffHeapAggregateStore.Entry entry = validateEventSequence ? null : store.get(aggregateIdentifier);
+
+            if (entry != null) {
+                hits.increment();
+                aggregates.put(aggregateIdentifier, fromEntry(connectionProvider, aggregateIdentifier, entry));
+            } else {
+                misses.increment();
+                missing.add(aggregateIdentifier);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            aggregates.putAll(delegate.loadAggregates(connectionProvider, missing));
+        }
+
+        return aggregates;
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregateForUpdate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return delegate.loadAggregateForUpdate(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public long loadEventSequence(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return delegate.loadEventSequence(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
+        long globalId;
+
+        try {
+            globalId = delegate.saveAggregate(connectionProvider, aggregate);
+        } catch (ConcurrencyConflictException ex) {
+            store.remove(aggregate.getAggregateIdentifier());
+            throw ex;
+        }
+
+        storeOnCommit(connectionProvider, globalId, aggregate, aggregate.getEventSequence(), null);
+        return globalId;
+    }
+
+    @Override
+    public SavedAggregate saveAggregateAndEvents(ConnectionProvider connectionProvider, Aggregate<?> aggregate, List<? extends EventContainer<?>> events, EventRepository eventRepository) {
+        SavedAggregate saved;
+
+        try {
+            saved = delegate.saveAggregateAndEvents(connectionProvider, aggregate, events, eventRepository);
+        } catch (ConcurrencyConflictException ex) {
+            // The entry is stale, the retry must not be served it again
+            store.remove(aggregate.getAggregateIdentifier());
+            throw ex;
+        }
+
+        storeOnCommit(connectionProvider, saved.getGlobalId(), aggregate, saved.getEventSequence(), saved.getSnapshot());
+        return saved;
+    }
+
+    /**
+     * Removes an aggregate from the store, for example if it was modified outside of the framework
+     *
+     * @param aggregateIdentifier The aggregate identifier of the aggregate
+     */
+    public void invalidate(UUID aggregateIdentifier) {
+        store.remove(aggregateIdentifier);
+    }
+
+    /**
+     * Removes every aggregate from the store
+     */
+    public void invalidateAll() {
+        store.clear();
+    }
+
+    /**
+     * @return The store backing this repository, for its size and eviction metrics
+     */
+    public OffHeapAggregateStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The number of loads served from the store
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of loads which went to the delegate repository
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private <T> Aggregate<T> fromEntry(ConnectionProvider connectionProvider, UUID aggregateIdentifier, OffHeapAggregateStore.Entry entry) {
+        // Handlers may fail after loading it for reasons other than a conflict, don't keep serving the entry then either
+        evictOnRollback(connectionProvider, aggregateIdentifier);
+
+        return SimpleAggregate.<T>builder()
+                .globalId(entry.getGlobalId())
+                .aggregateIdentifier(aggregateIdentifier)
+                .className(entry.getClassName())
+                .initialEventSequence(entry.getEventSequence())
+                .eventSequence(entry.getEventSequence())
+                .currentState(deserialise(entry.getState(), entry.getClassName()))
+                .snapshot(entry.getSnapshot())
+                .build();
+    }
+
+    private void storeOnCommit(ConnectionProvider connectionProvider, long globalId, Aggregate<?> aggregate, long eventSequence, AggregateSnapshot snapshot) {
+        UUID aggregateIdentifier = aggregate.getAggregateIdentifier();
+
+        // Without the events a save of an aggregate with a snapshot can't tell where the stored state now is
+        boolean snapshotKnown = snapshot != null || aggregate.getSnapshot() == null;
+
+        if (snapshotKnown && aggregate.getCurrentState() != null && connectionProvider instanceof Transaction && ((Transaction) connectionProvider).hasStarted()) {
+            // Serialise now, the instance may be changed again before the transaction commits
+            OffHeapAggregateStore.Entry entry = new OffHeapAggregateStore.Entry(globalId, aggregate.getClassName(), eventSequence, snapshot, serialise(aggregate.getCurrentState()));
+
+            ((Transaction) connectionProvider).afterCommit(() -> store.put(aggregateIdentifier, entry));
+            evictOnRollback(connectionProvider, aggregateIdentifier);
+        } else {
+            store.remove(aggregateIdentifier);
+        }
+    }
+
+    private void evictOnRollback(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        if (connectionProvider instanceof Transaction && ((Transaction) connectionProvider).hasStarted()) {
+            ((Transaction) connectionProvider).afterRollback(() -> store.remove(aggregateIdentifier));
+        }
+    }
+
+    private boolean isCurrent(ConnectionProvider connectionProvider, UUID aggregateIdentifier, OffHeapAggregateStore.Entry entry) {
+        try {
+            return delegate.loadEventSequence(connectionProvider, aggregateIdentifier) == entry.getEventSequence();
+        } catch (AggregateNotFoundException ex) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T deserialise(byte[] state, String className) {
+        try {
+            return (T) transformer.deserialise(state, ClassResolver.resolve(className));
+        } catch (Exception ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+    }
+
+    private byte[] serialise(Object aggregate) {
+        try {
+            return transformer.serialiseToBytes(aggregate);
+        } catch (Exception ex) {
+            throw new AggregateSerialisationException(ex);
+        }
+    }
+}
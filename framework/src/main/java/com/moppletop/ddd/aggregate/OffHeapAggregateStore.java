@@ -0,0 +1,356 @@
+package com.moppletop.ddd.aggregate;
+
+import lombok.Value;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed capacity hash table of serialised aggregate states held outside of the Java heap, so the number of entries has
+ * no effect on garbage collection.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Memory is allocated up front as direct {@link ByteBuffer} slabs of at most 1GiB, divided into fixed size slots.
+ *     An entry occupies one slot, entries which don't fit in a slot are not stored</li>
+ *     <li>The slots are split into stripes, each guarded by its own monitor. An aggregate identifier hashes to a stripe
+ *     and a starting slot within it, and may live in any slot of the probe window which follows</li>
+ *     <li>Each slot has a reference bit which is set when it is read. When the probe window is full an entry is evicted
+ *     clock style, the window is swept clearing reference bits until a slot which hasn't been read since the last sweep
+ *     is found</li>
+ *     <li>Nothing is stored on the heap per entry, the aggregate identifier is stored as two longs in the slot itself</li>
+ * </ul>
+ *
+ * <pre>
+ *     Slot layout
+ *     0   byte   occupied
+ *     1   byte   referenced
+ *     2   short  class name length
+ *     4   int    state length
+ *     8   long   aggregate identifier, most significant bits
+ *     16  long   aggregate identifier, least significant bits
+ *     24  long   global id
+ *     32  long   event sequence
+ *     40  long   snapshot event sequence
+ *     48  long   snapshot time, epoch milliseconds or Long.MIN_VALUE if unknown
+ *     56  int    events since the snapshot
+ *     60  byte   whether there is a snapshot
+ *     64  ...    class name (UTF-8), then state
+ * </pre>
+ */
+public class OffHeapAggregateStore {
+
+    private static final int HEADER_SIZE = 64;
+    private static final int PROBE_WINDOW = 8;
+    private static final int MAX_SLAB_SIZE = 1 << 30;
+
+    private final ByteBuffer[] slabs;
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final int slotsPerStripe;
+    private final Object[] stripes;
+
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param capacity The number of bytes to allocate
+     * @param slotSize The size of each slot in bytes, entries larger than this minus a 64 byte header are not stored
+     * @param stripes The number of independently locked stripes
+     */
+    public OffHeapAggregateStore(long capacity, int slotSize, int stripes) {
+        if (slotSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("The slot size must be more than " + HEADER_SIZE + " bytes!");
+        }
+
+        long totalSlots = capacity / slotSize;
+
+        if (totalSlots < PROBE_WINDOW) {
+            throw new IllegalArgumentException("The capacity must fit at least " + PROBE_WINDOW + " slots!");
+        }
+
+        int stripeCount = (int) Math.max(1, Math.min(stripes, totalSlots / PROBE_WINDOW));
+
+        this.slotSize = slotSize;
+        this.slotsPerSlab = MAX_SLAB_SIZE / slotSize;
+        this.slotsPerStripe = (int) Math.min(Integer.MAX_VALUE, totalSlots / stripeCount);
+        this.stripes = new Object[stripeCount];
+
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Object();
+        }
+
+        long usedSlots = (long) slotsPerStripe * stripeCount;
+        int slabCount = (int) ((usedSlots + slotsPerSlab - 1) / slotsPerSlab);
+
+        this.slabs = new ByteBuffer[slabCount];
+
+        for (int i = 0; i < slabCount; i++) {
+            long slabSlots = Math.min(slotsPerSlab, usedSlots - (long) i * slotsPerSlab);
+            this.slabs[i] = ByteBuffer.allocateDirect((int) (slabSlots * slotSize));
+        }
+    }
+
+    /**
+     * @param aggregateIdentifier The aggregate identifier
+     * @return The stored entry, or null if there isn't one
+     */
+    public Entry get(UUID aggregateIdentifier) {
+        long msb = aggregateIdentifier.getMostSignificantBits();
+        long lsb = aggregateIdentifier.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+
+        synchronized (stripeFor(hash)) {
+            long slot = find(hash, msb, lsb);
+
+            if (slot == -1) {
+                return null;
+            }
+
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+
+            slab.put(offset + 1, (byte) 1);
+
+            byte[] className = new byte[slab.getShort(offset + 2)];
+            byte[] state = new byte[slab.getInt(offset + 4)];
+
+            ByteBuffer view = slab.duplicate();
+            view.position(offset + HEADER_SIZE);
+            view.get(className);
+            view.get(state);
+
+            return new Entry(slab.getLong(offset + 24), new String(className, StandardCharsets.UTF_8), slab.getLong(offset + 32), readSnapshot(slab, offset), state);
+        }
+    }
+
+    /**
+     * Stores an entry, replacing any existing entry for the aggregate
+     *
+     * @param aggregateIdentifier The aggregate identifier
+     * @param entry The entry to store
+     * @return Whether the entry was stored, false if it was too large for a slot
+     */
+    public boolean put(UUID aggregateIdentifier, Entry entry) {
+        long msb = aggregateIdentifier.getMostSignificantBits();
+        long lsb = aggregateIdentifier.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        byte[] className = entry.className.getBytes(StandardCharsets.UTF_8);
+
+        if (HEADER_SIZE + className.length + entry.state.length > slotSize || className.length > Short.MAX_VALUE) {
+            // Don't leave an older version behind
+            remove(aggregateIdentifier);
+            rejections.increment();
+            return false;
+        }
+
+        synchronized (stripeFor(hash)) {
+            long slot = find(hash, msb, lsb);
+
+            if (slot == -1) {
+                slot = claim(hash);
+            }
+
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+
+            slab.put(offset, (byte) 1);
+            slab.put(offset + 1, (byte) 0);
+            slab.putShort(offset + 2, (short) className.length);
+            slab.putInt(offset + 4, entry.state.length);
+            slab.putLong(offset + 8, msb);
+            slab.putLong(offset + 16, lsb);
+            slab.putLong(offset + 24, entry.globalId);
+            slab.putLong(offset + 32, entry.eventSequence);
+            writeSnapshot(slab, offset, entry.snapshot);
+
+            ByteBuffer view = slab.duplicate();
+            view.position(offset + HEADER_SIZE);
+            view.put(className);
+            view.put(entry.state);
+        }
+
+        return true;
+    }
+
+    /**
+     * @param aggregateIdentifier The aggregate identifier of the entry to remove
+     */
+    public void remove(UUID aggregateIdentifier) {
+        long msb = aggregateIdentifier.getMostSignificantBits();
+        long lsb = aggregateIdentifier.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+
+        synchronized (stripeFor(hash)) {
+            long slot = find(hash, msb, lsb);
+
+            if (slot != -1) {
+                slabOf(slot).put(offsetOf(slot), (byte) 0);
+                entries.decrement();
+            }
+        }
+    }
+
+    /**
+     * Removes every entry
+     */
+    public void clear() {
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            synchronized (stripes[stripe]) {
+                for (int i = 0; i < slotsPerStripe; i++) {
+                    long slot = (long) stripe * slotsPerStripe + i;
+                    ByteBuffer slab = slabOf(slot);
+                    int offset = offsetOf(slot);
+
+                    if (slab.get(offset) != 0) {
+                        slab.put(offset, (byte) 0);
+                        entries.decrement();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes allocated
+     */
+    public long getCapacity() {
+        return (long) slotsPerStripe * stripes.length * slotSize;
+    }
+
+    /**
+     * @return The number of stored entries
+     */
+    public long getEntries() {
+        return entries.sum();
+    }
+
+    /**
+     * @return The number of entries evicted to make room for others
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of entries not stored as they were too large for a slot
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    private static AggregateSnapshot readSnapshot(ByteBuffer slab, int offset) {
+        if (slab.get(offset + 60) == 0) {
+            return null;
+        }
+
+        long time = slab.getLong(offset + 48);
+
+        return new AggregateSnapshot(slab.getLong(offset + 40), time == Long.MIN_VALUE ? null : Instant.ofEpochMilli(time), slab.getInt(offset + 56));
+    }
+
+    private static void writeSnapshot(ByteBuffer slab, int offset, AggregateSnapshot snapshot) {
+        slab.put(offset + 60, (byte) (snapshot == null ? 0 : 1));
+
+        if (snapshot != null) {
+            slab.putLong(offset + 40, snapshot.getEventSequence());
+            slab.putLong(offset + 48, snapshot.getTime() == null ? Long.MIN_VALUE : snapshot.getTime().toEpochMilli());
+            slab.putInt(offset + 56, snapshot.getEventsSince());
+        }
+    }
+
+    // Must be called while holding the stripe's monitor
+    private long find(long hash, long msb, long lsb) {
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            long slot = slotInWindow(hash, i);
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+
+            // Removals leave holes, so the whole window is always searched
+            if (slab.get(offset) != 0 && slab.getLong(offset + 8) == msb && slab.getLong(offset + 16) == lsb) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    // Must be called while holding the stripe's monitor
+    private long claim(long hash) {
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            long slot = slotInWindow(hash, i);
+
+            if (slabOf(slot).get(offsetOf(slot)) == 0) {
+                entries.increment();
+                return slot;
+            }
+        }
+
+        // The window is full, give every referenced slot a second chance. The second sweep is guaranteed to find a
+        // victim as the first cleared every reference bit
+        for (int i = 0; i < PROBE_WINDOW * 2; i++) {
+            long slot = slotInWindow(hash, i % PROBE_WINDOW);
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+
+            if (slab.get(offset + 1) == 0) {
+                evictions.increment();
+                return slot;
+            }
+
+            slab.put(offset + 1, (byte) 0);
+        }
+
+        throw new IllegalStateException("Unreachable, the second sweep always finds a slot");
+    }
+
+    private long slotInWindow(long hash, int i) {
+        int stripe = (int) ((hash >>> 33) % stripes.length);
+        int start = (int) ((hash & Integer.MAX_VALUE) % slotsPerStripe);
+
+        return (long) stripe * slotsPerStripe + (start + i) % slotsPerStripe;
+    }
+
+    private Object stripeFor(long hash) {
+        return stripes[(int) ((hash >>> 33) % stripes.length)];
+    }
+
+    private ByteBuffer slabOf(long slot) {
+        return slabs[(int) (slot / slotsPerSlab)];
+    }
+
+    private int offsetOf(long slot) {
+        return (int) (slot % slotsPerSlab) * slotSize;
+    }
+
+    private static long hash(long msb, long lsb) {
+        // The finaliser of MurmurHash3
+        long hash = msb * 31 + lsb;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * A copy of a stored aggregate
+     */
+    @Value
+    public static class Entry {
+
+        long globalId;
+        String className;
+        long eventSequence;
+        // Where the stored state of the aggregate was taken, null if its state is stored on every command
+        AggregateSnapshot snapshot;
+        byte[] state;
+
+    }
+}
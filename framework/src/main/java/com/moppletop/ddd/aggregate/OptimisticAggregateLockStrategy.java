@@ -0,0 +1,18 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+
+import java.util.UUID;
+
+/**
+ * Takes no database locks, concurrent modification is detected by the event sequence check when the aggregate is saved.
+ * This is the cheapest strategy when aggregates rarely receive concurrent commands
+ */
+public class OptimisticAggregateLockStrategy implements AggregateLockStrategy {
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(AggregateRepository repository, ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return repository.loadAggregate(connectionProvider, aggregateIdentifier);
+    }
+
+}
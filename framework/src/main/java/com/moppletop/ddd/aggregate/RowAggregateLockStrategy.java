@@ -0,0 +1,22 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+
+import java.util.UUID;
+
+/**
+ * Locks the aggregate's row when it is loaded (<code>select ... for update</code>), the lock is held until the transaction
+ * ends.
+ * <br>
+ * <br>
+ * Since there is no row to lock before an aggregate is created, two transactions creating the same aggregate are still
+ * only caught by the unique constraint when it is saved
+ */
+public class RowAggregateLockStrategy implements AggregateLockStrategy {
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(AggregateRepository repository, ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return repository.loadAggregateForUpdate(connectionProvider, aggregateIdentifier);
+    }
+
+}
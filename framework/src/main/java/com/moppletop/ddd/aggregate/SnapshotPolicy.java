@@ -0,0 +1,56 @@
+package com.moppletop.ddd.aggregate;
+
+import lombok.Value;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * How often the state of an aggregate is stored by a {@link SnapshottingAggregateRepository}, whichever of the number of
+ * events or the interval is reached first
+ */
+@Value
+public class SnapshotPolicy {
+
+    /**
+     * The number of events after which the state is stored again, 0 or less to never store it because of the number of
+     * events
+     */
+    int events;
+
+    /**
+     * The time after which the state is stored again, null to never store it because of time
+     */
+    Duration interval;
+
+    /**
+     * @param events The number of events after which the state is stored again
+     * @param interval The time after which the state is stored again, null to only consider the number of events
+     * @return The policy
+     */
+    public static SnapshotPolicy every(int events, Duration interval) {
+        return new SnapshotPolicy(events, interval);
+    }
+
+    /**
+     * @return A policy which stores the state on every command, as if snapshots were not used at all
+     */
+    public static SnapshotPolicy always() {
+        return new SnapshotPolicy(1, null);
+    }
+
+    /**
+     * @param snapshot The last snapshot of the aggregate
+     * @param newEvents The number of events being saved
+     * @param now The current time
+     * @return Whether the state should be stored
+     */
+    public boolean isDue(AggregateSnapshot snapshot, int newEvents, Instant now) {
+        if (events > 0 && snapshot.getEventsSince() + newEvents >= events) {
+            return true;
+        }
+
+        return interval != null && snapshot.getTime() != null && !snapshot.getTime().plus(interval).isAfter(now);
+    }
+
+}
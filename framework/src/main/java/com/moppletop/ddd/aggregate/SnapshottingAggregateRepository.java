@@ -0,0 +1,165 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.event.EventContainer;
+import com.moppletop.ddd.event.EventRepository;
+import com.moppletop.ddd.wiring.WiringManager;
+import lombok.Builder;
+import lombok.Singular;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Only stores the state of aggregates every so often, in front of another {@link AggregateRepository}. Events are always
+ * stored, and when an aggregate is loaded the events after its stored state are replayed onto it through its
+ * {@link AggregateStateHandler}s. This avoids rewriting the whole state of large aggregates on every command.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>The delegate must support snapshots, for example a {@link JdbcAggregateRepository} with snapshots enabled. It
+ *     is given aggregates without their current state when the state should not be stored</li>
+ *     <li>How often the state is stored is decided by a {@link SnapshotPolicy}, which can be set per aggregate type.
+ *     Saves report where the stored state now is, see {@link SavedAggregate#getSnapshot()}, so caches in front of this
+ *     repository keep counting events and time from the latest snapshot</li>
+ *     <li>New aggregates always have their state stored</li>
+ *     <li>Aggregate state handlers must be deterministic and must only change the aggregate, as they are run again
+ *     every time the aggregate is loaded until the next snapshot</li>
+ *     <li>Every event after the snapshot must still be stored, a load which can't replay up to the aggregate's event
+ *     sequence fails rather than returning stale state</li>
+ * </ul>
+ */
+public class SnapshottingAggregateRepository implements AggregateRepository {
+
+    private final AggregateRepository delegate;
+    private final EventRepository eventRepository;
+    private final WiringManager wiringManager;
+    private final SnapshotPolicy defaultPolicy;
+    private final Map<String, SnapshotPolicy> policies;
+
+    /**
+     * @param delegate The repository which actually stores the aggregates, which must support snapshots
+     * @param eventRepository The repository the events to replay are loaded from
+     * @param wiringManager The wiring manager to replay events through
+     * @param defaultPolicy How often the state of aggregates without a policy of their own is stored, by default every
+     *                      100 events or 5 minutes
+     * @param policies How often the state of specific aggregate types is stored
+     */
+    @Builder
+    public SnapshottingAggregateRepository(AggregateRepository delegate,
+                                           EventRepository eventRepository,
+                                           WiringManager wiringManager,
+                                           SnapshotPolicy defaultPolicy,
+                                           @Singular Map<Class<?>, SnapshotPolicy> policies
+    ) {
+        if (delegate == null || eventRepository == null || wiringManager == null) {
+            throw new IllegalArgumentException("A delegate repository, event repository and wiring manager must be provided!");
+        }
+
+        this.delegate = delegate;
+        this.eventRepository = eventRepository;
+        this.wiringManager = wiringManager;
+        this.defaultPolicy = defaultPolicy == null ? SnapshotPolicy.every(100, Duration.ofMinutes(5)) : defaultPolicy;
+        this.policies = new HashMap<>();
+
+        if (policies != null) {
+            policies.forEach((type, policy) -> this.policies.put(type.getName(), policy));
+        }
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return catchUp(connectionProvider, delegate.loadAggregate(connectionProvider, aggregateIdentifier));
+    }
+
+    @Override
+    public <T> Map<UUID, Aggregate<T>> loadAggregates(ConnectionProvider connectionProvider, Collection<UUID> aggregateIdentifiers) {
+        Map<UUID, Aggregate<T>> aggregates = delegate.loadAggregates(connectionProvider, aggregateIdentifiers);
+
+        aggregates.replaceAll((aggregateIdentifier, aggregate) -> catchUp(connectionProvider, aggregate));
+        return aggregates;
+    }
+
+    @Override
+    public <T> Aggregate<T> loadAggregateForUpdate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return catchUp(connectionProvider, delegate.loadAggregateForUpdate(connectionProvider, aggregateIdentifier));
+    }
+
+    @Override
+    public long loadEventSequence(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+        return delegate.loadEventSequence(connectionProvider, aggregateIdentifier);
+    }
+
+    @Override
+    public long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
+        return delegate.saveAggregate(connectionProvider, withStateIfDue(aggregate, 0));
+    }
+
+    @Override
+    public SavedAggregate saveAggregateAndEvents(ConnectionProvider connectionProvider, Aggregate<?> aggregate, List<? extends EventContainer<?>> events, EventRepository eventRepository) {
+        return delegate.saveAggregateAndEvents(connectionProvider, withStateIfDue(aggregate, events.size()), events, eventRepository);
+    }
+
+    // Replays the events after the snapshot onto the stored state
+    private <T> Aggregate<T> catchUp(ConnectionProvider connectionProvider, Aggregate<T> aggregate) {
+        AggregateSnapshot snapshot = aggregate.getSnapshot();
+
+        if (snapshot == null || snapshot.getEventSequence() >= aggregate.getEventSequence()) {
+            return aggregate;
+        }
+
+        T state = aggregate.getCurrentState();
+        long replayedSequence = snapshot.getEventSequence();
+        int replayed = 0;
+
+        for (EventContainer<?> event : eventRepository.loadEvents(connectionProvider, aggregate.getGlobalId(), snapshot.getEventSequence())) {
+            // Events committed since the aggregate row was read belong to a later version of the aggregate
+            if (event.getGlobalSequence() > aggregate.getEventSequence()) {
+                break;
+            }
+
+            wiringManager.executeAggregateStateHandler(state, event.getPayload());
+            replayedSequence = event.getGlobalSequence();
+            replayed++;
+        }
+
+        if (replayedSequence != aggregate.getEventSequence()) {
+            throw new IllegalStateException("Events of aggregate: {" + aggregate + "} after its snapshot at " + snapshot.getEventSequence() +
+                    " are missing, only replayed up to " + replayedSequence + " of " + aggregate.getEventSequence());
+        }
+
+        return SimpleAggregate.<T>builder()
+                .globalId(aggregate.getGlobalId())
+                .aggregateIdentifier(aggregate.getAggregateIdentifier())
+                .className(aggregate.getClassName())
+                .initialEventSequence(aggregate.getInitialEventSequence())
+                .eventSequence(aggregate.getEventSequence())
+                .currentState(state)
+                .snapshot(new AggregateSnapshot(snapshot.getEventSequence(), snapshot.getTime(), replayed))
+                .build();
+    }
+
+    // Leaves out the current state, so the delegate keeps the stored state, unless it is time for a new snapshot
+    private Aggregate<?> withStateIfDue(Aggregate<?> aggregate, int newEvents) {
+        AggregateSnapshot snapshot = aggregate.getSnapshot();
+
+        if (!aggregate.exists() || snapshot == null || policyFor(aggregate).isDue(snapshot, newEvents, Instant.now())) {
+            return aggregate;
+        }
+
+        return SimpleAggregate.builder()
+                .globalId(aggregate.getGlobalId())
+                .aggregateIdentifier(aggregate.getAggregateIdentifier())
+                .className(aggregate.getClassName())
+                .initialEventSequence(aggregate.getInitialEventSequence())
+                .eventSequence(aggregate.getEventSequence())
+                .snapshot(snapshot)
+                .build();
+    }
+
+    private SnapshotPolicy policyFor(Aggregate<?> aggregate) {
+        return policies.getOrDefault(aggregate.getClassName(), defaultPolicy);
+    }
+}
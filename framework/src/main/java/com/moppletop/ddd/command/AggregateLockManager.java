@@ -0,0 +1,202 @@
+package com.moppletop.ddd.command;
+
+import com.moppletop.ddd.error.AggregateLockTimeoutException;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out a lock per aggregate identifier so that only one thread at a time can issue commands against an aggregate.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Entries live in a {@link ConcurrentHashMap}, which only contends on the bin of the identifier being locked,
+ *     so there is no global monitor shared between unrelated aggregates</li>
+ *     <li>Entries are reference counted, a thread holds a reference from the moment it starts waiting until it releases
+ *     the lock. An entry is only removed once no thread holds or waits on it, so every thread contending for the same
+ *     aggregate will always be handed the same lock</li>
+ *     <li>Locks are reentrant, a thread may acquire the lock of an aggregate it already holds</li>
+ * </ul>
+ */
+public class AggregateLockManager {
+
+    private final ConcurrentMap<UUID, LockEntry> locks = new ConcurrentHashMap<>();
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * Acquires the lock for an aggregate, waiting indefinitely if another thread holds it
+     *
+     * @param aggregateIdentifier The aggregate identifier to lock
+     * @return The held lock, this must be closed to release it
+     */
+    public AggregateLock acquire(UUID aggregateIdentifier) {
+        return acquire(aggregateIdentifier, null);
+    }
+
+    /**
+     * Acquires the lock for an aggregate
+     *
+     * @param aggregateIdentifier The aggregate identifier to lock
+     * @param timeout The maximum amount of time to wait for the lock, or null to wait indefinitely
+     * @return The held lock, this must be closed to release it
+     * @throws AggregateLockTimeoutException If the lock could not be acquired in time or the thread was interrupted
+     */
+    public AggregateLock acquire(UUID aggregateIdentifier, Duration timeout) {
+        LockEntry entry = reference(aggregateIdentifier);
+        ReentrantLock lock = entry.lock;
+
+        // Fast path, nobody else holds the lock
+        if (lock.tryLock()) {
+            acquisitions.increment();
+            return new AggregateLock(aggregateIdentifier, entry);
+        }
+
+        long start = System.nanoTime();
+        boolean acquired = false;
+
+        try {
+            if (timeout == null) {
+                lock.lock();
+                acquired = true;
+            } else {
+                acquired = lock.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AggregateLockTimeoutException(ex);
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+
+            if (!acquired) {
+                dereference(aggregateIdentifier);
+            }
+        }
+
+        if (!acquired) {
+            timeouts.increment();
+            throw new AggregateLockTimeoutException("Timed out after " + timeout + " waiting for the lock of aggregate " + aggregateIdentifier);
+        }
+
+        acquisitions.increment();
+        contendedAcquisitions.increment();
+        return new AggregateLock(aggregateIdentifier, entry);
+    }
+
+    /**
+     * Attempts to acquire the lock for an aggregate without waiting
+     *
+     * @param aggregateIdentifier The aggregate identifier to lock
+     * @return The held lock, this must be closed to release it, or null if another thread holds the lock
+     */
+    public AggregateLock tryAcquire(UUID aggregateIdentifier) {
+        LockEntry entry = reference(aggregateIdentifier);
+
+        if (entry.lock.tryLock()) {
+            acquisitions.increment();
+            return new AggregateLock(aggregateIdentifier, entry);
+        }
+
+        dereference(aggregateIdentifier);
+        return null;
+    }
+
+    /**
+     * @return The number of aggregates currently locked or being waited on
+     */
+    public int getActiveLocks() {
+        return locks.size();
+    }
+
+    /**
+     * @return The total number of locks acquired
+     */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * @return The number of locks which could not be acquired immediately as another thread held them
+     */
+    public long getContendedAcquisitions() {
+        return contendedAcquisitions.sum();
+    }
+
+    /**
+     * @return The number of timed acquisitions which gave up waiting
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return The accumulated time threads have spent waiting for locks
+     */
+    public Duration getTotalWaitTime() {
+        return Duration.ofNanos(waitNanos.sum());
+    }
+
+    // compute() is atomic per key, so the reference count can never be incremented on an entry which is being removed
+    private LockEntry reference(UUID aggregateIdentifier) {
+        return locks.compute(aggregateIdentifier, (key, entry) -> {
+            if (entry == null) {
+                entry = new LockEntry();
+            }
+
+            entry.references++;
+            return entry;
+        });
+    }
+
+    private void dereference(UUID aggregateIdentifier) {
+        locks.computeIfPresent(aggregateIdentifier, (key, entry) -> --entry.references == 0 ? null : entry);
+    }
+
+    private static class LockEntry {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // Only ever read or written inside of compute(), so it's guarded by the map
+        private int references;
+
+    }
+
+    /**
+     * A held aggregate lock, closing it releases the lock
+     */
+    public class AggregateLock implements AutoCloseable {
+
+        private final UUID aggregateIdentifier;
+        private final LockEntry entry;
+        private boolean released;
+
+        private AggregateLock(UUID aggregateIdentifier, LockEntry entry) {
+            this.aggregateIdentifier = aggregateIdentifier;
+            this.entry = entry;
+        }
+
+        public UUID getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            entry.lock.unlock();
+            dereference(aggregateIdentifier);
+        }
+    }
+}
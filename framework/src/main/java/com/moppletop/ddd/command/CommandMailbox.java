@@ -0,0 +1,63 @@
+package com.moppletop.ddd.command;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Serialises asynchronous work per aggregate identifier. Each aggregate has a mailbox, which is simply the tail of a chain
+ * of futures, work for the same aggregate is chained onto the tail and will only start once the previous piece of work has
+ * finished. Work for different aggregates run in parallel on the provided executor.
+ * <br>
+ * <br>
+ * Since only the head of each mailbox is ever submitted to the executor, a blocked aggregate never occupies more than one
+ * thread, and idle mailboxes are removed as soon as their last piece of work completes.
+ */
+public class CommandMailbox {
+
+    private static final CompletableFuture<Void> EMPTY = CompletableFuture.completedFuture(null);
+
+    private final ConcurrentMap<UUID, CompletableFuture<?>> mailboxes = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    public CommandMailbox(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param aggregateIdentifier The aggregate identifier the work is targeted at
+     * @param work The work to do
+     * @param <T> The type of the result
+     * @return A future which completes once the work has been done, exceptionally if the work threw an exception
+     */
+    public <T> CompletableFuture<T> post(UUID aggregateIdentifier, Supplier<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        CompletableFuture<?> tail = mailboxes.compute(aggregateIdentifier, (key, previous) ->
+                // handle() rather than thenRun() so a failure doesn't stop the rest of the mailbox being processed
+                (previous == null ? EMPTY : previous).handleAsync((ignored, ex) -> {
+                    try {
+                        result.complete(work.get());
+                    } catch (Throwable throwable) {
+                        result.completeExceptionally(throwable);
+                    }
+
+                    return null;
+                }, executor));
+
+        // If nothing else has been posted by the time this is done, the mailbox is empty and can be removed
+        tail.whenComplete((ignored, ex) -> mailboxes.remove(aggregateIdentifier, tail));
+
+        return result;
+    }
+
+    /**
+     * @return The number of aggregates with pending work
+     */
+    public int getActiveMailboxes() {
+        return mailboxes.size();
+    }
+}
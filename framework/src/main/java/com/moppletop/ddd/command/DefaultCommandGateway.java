@@ -1,51 +1,127 @@
 package com.moppletop.ddd.command;
 
 import com.moppletop.ddd.aggregate.Aggregate;
+import com.moppletop.ddd.aggregate.AggregateLockStrategy;
 import com.moppletop.ddd.aggregate.AggregateRepository;
 import com.moppletop.ddd.aggregate.AggregateState;
+import com.moppletop.ddd.aggregate.OptimisticAggregateLockStrategy;
+import com.moppletop.ddd.aggregate.SavedAggregate;
 import com.moppletop.ddd.aggregate.SimpleAggregate;
+import com.moppletop.ddd.command.AggregateLockManager.AggregateLock;
 import com.moppletop.ddd.error.AggregateNotFoundException;
+import com.moppletop.ddd.error.ConcurrencyConflictException;
 import com.moppletop.ddd.error.NoTargetAggregateIdentifierException;
 import com.moppletop.ddd.event.EventContainer;
 import com.moppletop.ddd.event.EventMetadata;
+import com.moppletop.ddd.event.EventPublisher;
 import com.moppletop.ddd.event.EventRepository;
 import com.moppletop.ddd.database.Transaction;
 import com.moppletop.ddd.wiring.WiringManager;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.sql.DataSource;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-import java.util.WeakHashMap;
+import java.time.Duration;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The default implementation of the CommandGateway
  */
 @RequiredArgsConstructor
+@Slf4j
 public class DefaultCommandGateway implements CommandGateway {
 
-    // Map target aggregate id to a lock
-    private static final Map<UUID, UUID> AGGREGATE_LOCKS = new WeakHashMap<>();
-
-    protected static Object getSynchronisedObjectFor(UUID targetAggregateId) {
-        synchronized (AGGREGATE_LOCKS) {
-            UUID lock = AGGREGATE_LOCKS.get(targetAggregateId);
+    private final DataSource dataSource;
 
-            if (lock == null) {
-                lock = new UUID(targetAggregateId.getMostSignificantBits(), targetAggregateId.getLeastSignificantBits());
-                AGGREGATE_LOCKS.put(lock, lock);
-            }
+    private final AggregateRepository aggregateRepository;
+    private final EventRepository eventRepository;
+    private final WiringManager wiringManager;
 
-            return lock;
+    // Prevents multiple threads trying to issue commands against the same aggregate
+    @Getter
+    private final AggregateLockManager lockManager = new AggregateLockManager();
+
+    /**
+     * The maximum amount of time a command will wait for another command against the same aggregate to finish,
+     * null (the default) waits indefinitely
+     */
+    @Setter
+    private Duration lockTimeout;
+
+    /**
+     * How aggregates are protected from concurrent modification by other nodes, by default optimistically. The JVM local
+     * lock is always taken regardless of this strategy
+     */
+    @Getter
+    @Setter
+    private AggregateLockStrategy lockStrategy = new OptimisticAggregateLockStrategy();
+
+    /**
+     * How commands that fail due to a {@link ConcurrencyConflictException} are retried, by default {@link RetryPolicy#defaults()}.
+     * When using group commit, this must be set before group commit is enabled
+     */
+    @Getter
+    @Setter
+    private RetryPolicy retryPolicy = RetryPolicy.defaults();
+
+    /**
+     * The executor {@link #sendAsync(Command)} will handle commands on, by default this is a fixed pool of daemon threads,
+     * one per available processor. Must be set before the first asynchronous command is sent
+     */
+    @Setter
+    private ExecutorService asyncExecutor;
+
+    /**
+     * If set, the events of every command are published to it once their transaction has committed, alongside being
+     * saved to the event table
+     */
+    @Getter
+    @Setter
+    private EventPublisher eventPublisher;
+    private volatile CommandMailbox mailbox;
+
+    private volatile GroupCommitter groupCommitter;
+
+    /**
+     * Enables group commit, instead of every command committing its own transaction, commands sent within a window for
+     * distinct aggregates will share a transaction. Each command is run inside its own savepoint so a failing command
+     * does not affect the others, callers are only acknowledged once the shared transaction commits.
+     * <br>
+     * <br>
+     * This trades latency for throughput, use it when commit latency (fsync) is the bottleneck
+     *
+     * @param maxLatency The maximum amount of time a command will wait for others to join its transaction, must be positive
+     * @param maxBatchSize The maximum number of commands that can share one transaction
+     */
+    public synchronized void enableGroupCommit(Duration maxLatency, int maxBatchSize) {
+        if (groupCommitter != null) {
+            throw new IllegalStateException("Group commit is already enabled");
         }
+
+        groupCommitter = new GroupCommitter(dataSource, lockManager, this::unsafeSend, retryPolicy, maxLatency, maxBatchSize);
     }
 
-    private final DataSource dataSource;
+    /**
+     * Stops the group committer and asynchronous executor, if they have been started. Commands which have not yet been
+     * handled will fail
+     */
+    public synchronized void shutdown() {
+        if (groupCommitter != null) {
+            groupCommitter.shutdown();
+        }
 
-    private final AggregateRepository aggregateRepository;
-    private final EventRepository eventRepository;
-    private final WiringManager wiringManager;
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+    }
 
     @Override
     public <T> void send(Command<T> cmd) {
@@ -54,26 +130,162 @@ public class DefaultCommandGateway implements CommandGateway {
         }
 
         UUID targetAggregateId = getTargetAggregateIdentifier(cmd);
+        GroupCommitter groupCommitter = this.groupCommitter;
+
+        if (groupCommitter != null) {
+            try {
+                groupCommitter.submit(targetAggregateId, cmd).join();
+                return;
+            } catch (CompletionException ex) {
+                throw unwrap(ex);
+            }
+        }
+
+        sendInTransaction(targetAggregateId, () -> unsafeSend(targetAggregateId, cmd));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * <br>
+     * Every aggregate is sent its commands in its own transaction. If an aggregate's transaction fails, the remaining
+     * aggregates are still processed, the first failure is then thrown with any subsequent failures suppressed
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void sendAll(Collection<? extends Command<?>> cmds) {
+        if (Transaction.inTransaction()) {
+            throw new IllegalStateException("Attempted to send commands while in a transaction (sending another command)");
+        }
+
+        // Group the commands by aggregate, keeping the order they were given in
+        Map<UUID, List<Command>> commandsByAggregate = new LinkedHashMap<>();
+
+        for (Command<?> cmd : cmds) {
+            commandsByAggregate.computeIfAbsent(getTargetAggregateIdentifier(cmd), k -> new ArrayList<>()).add(cmd);
+        }
+
+        RuntimeException failure = null;
+
+        for (Entry<UUID, List<Command>> entry : commandsByAggregate.entrySet()) {
+            UUID targetAggregateId = entry.getKey();
+
+            try {
+                sendInTransaction(targetAggregateId, () -> unsafeSend(targetAggregateId, (List) entry.getValue()));
+            } catch (RuntimeException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<Void> sendAsync(Command<T> cmd) {
+        UUID targetAggregateId;
 
         try {
+            targetAggregateId = getTargetAggregateIdentifier(cmd);
+        } catch (NoTargetAggregateIdentifierException ex) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+
+        GroupCommitter groupCommitter = this.groupCommitter;
+
+        // The group committer already handles commands in order, no need to go through a mailbox
+        if (groupCommitter != null) {
+            return groupCommitter.submit(targetAggregateId, cmd);
+        }
+
+        return getMailbox().post(targetAggregateId, () -> {
+            send(cmd);
+            return null;
+        });
+    }
+
+    private CommandMailbox getMailbox() {
+        CommandMailbox mailbox = this.mailbox;
+
+        if (mailbox == null) {
+            synchronized (this) {
+                mailbox = this.mailbox;
+
+                if (mailbox == null) {
+                    if (asyncExecutor == null) {
+                        asyncExecutor = createDefaultAsyncExecutor();
+                    }
+
+                    this.mailbox = mailbox = new CommandMailbox(asyncExecutor);
+                }
+            }
+        }
+
+        return mailbox;
+    }
+
+    private static ExecutorService createDefaultAsyncExecutor() {
+        AtomicInteger count = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable);
+
+            thread.setName("cmd-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    // Runs the work inside of a transaction while holding the aggregate's lock, if the work fails due to a concurrency
+    // conflict it is retried according to the retry policy
+    private void sendInTransaction(UUID targetAggregateId, Runnable work) {
+        RetryPolicy retryPolicy = this.retryPolicy;
+
+        for (int attempt = 1; ; attempt++) {
             // Lock here to prevent multiple threads trying to issue commands against the same
             // aggregate
-            synchronized (getSynchronisedObjectFor(targetAggregateId)) {
+            try (AggregateLock ignored = lockManager.acquire(targetAggregateId, lockTimeout)) {
                 // Wrap the sending of the command in a transaction
                 try {
                     Transaction.createAndStart(dataSource);
-                    unsafeSend(targetAggregateId, cmd);
+                    work.run();
                     Transaction.stopAndCommit();
+                    return;
                 } catch (Exception ex) {
                     Transaction.executeIfInTransaction(Transaction::stopAndRollback);
                     throw ex;
                 }
+            } catch (ConcurrencyConflictException ex) {
+                // Back off outside of the lock, so other commands can proceed in the meantime
+                if (!retryPolicy.shouldRetry(attempt) || !retryPolicy.backoff(attempt)) {
+                    throw ex;
+                }
+
+                log.debug("Concurrency conflict on aggregate {}, retrying (attempt {} of {})", targetAggregateId, attempt + 1, retryPolicy.getMaxAttempts());
             }
-        } finally {
-            AGGREGATE_LOCKS.remove(targetAggregateId);
         }
     }
 
+    private static RuntimeException unwrap(CompletionException ex) {
+        Throwable cause = ex.getCause();
+
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return ex;
+    }
+
     // A safe way to get the target aggregate identifier
     private UUID getTargetAggregateIdentifier(Command<?> cmd) {
         UUID targetAggregateId;
@@ -91,77 +303,117 @@ public class DefaultCommandGateway implements CommandGateway {
         return targetAggregateId;
     }
 
-    // Actually sends the command to the aggregate
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void unsafeSend(UUID targetAggregateId, Command<?> cmd) {
+        unsafeSend(targetAggregateId, (List) Collections.singletonList(cmd));
+    }
+
     // By "unsafe", it means that all transactions/threading/exception handling must be handled outside of this method,
-    // as this method will not do anything like that
-    private <T> void unsafeSend(UUID targetAggregateId, Command<T> cmd) {
+    // as this method will not do anything like that. Concurrency conflicts are reported to the lock strategy so it can
+    // adapt how the aggregate is locked next time
+    private <T> void unsafeSend(UUID targetAggregateId, List<? extends Command<T>> cmds) {
+        try {
+            handleCommands(targetAggregateId, cmds);
+        } catch (ConcurrencyConflictException ex) {
+            lockStrategy.onConcurrencyConflict(targetAggregateId);
+            throw ex;
+        }
+    }
+
+    // Actually sends the commands to the aggregate, the aggregate is loaded and saved once regardless of the number of commands
+    private <T> void handleCommands(UUID targetAggregateId, List<? extends Command<T>> cmds) {
         Transaction transaction = Transaction.get();
 
-        Aggregate<T> aggregate;
-        T aggregateInstance;
+        Aggregate<T> aggregate = null;
+        T aggregateInstance = null;
 
-        try {
-            // Attempt to load the aggregate from the repository
-            aggregate = aggregateRepository.loadAggregate(transaction, targetAggregateId);
-            aggregateInstance = aggregate.getCurrentState();
-        } catch (AggregateNotFoundException ex) {
-            // If the aggregate didn't exist, this is it's first command
-            aggregate = null;
-            aggregateInstance = null;
+        // A command handled by a constructor creates the aggregate, so there is nothing to load. If the aggregate does
+        // exist after all, saving it will fail
+        boolean creating = wiringManager.isInitialStateCommand(cmds.get(0));
+
+        if (!creating) {
+            try {
+                // Attempt to load the aggregate from the repository
+                aggregate = lockStrategy.loadAggregate(aggregateRepository, transaction, targetAggregateId);
+                aggregateInstance = aggregate.getCurrentState();
+            } catch (AggregateNotFoundException ex) {
+                // If the aggregate didn't exist, this is it's first command
+            }
         }
 
         // TODO add command interceptors
         // TODO make use of metadata
         EventMetadata metadata = EventMetadata.empty();
 
-        AggregateState.startTransaction(targetAggregateId);
-
-        aggregateInstance = wiringManager.executeCommandHandler(aggregateInstance, cmd);
+        long globalId = aggregate == null ? 0 : aggregate.getGlobalId();
+        List<EventContainer<?>> eventContainers = new ArrayList<>();
 
-        // The aggregate will now definitely exist, since the command handler has been executed
-        if (aggregate == null) {
-            aggregate = SimpleAggregate.<T>builder()
-                    .aggregateIdentifier(targetAggregateId)
-                    .className(aggregateInstance.getClass().getName())
-                    .build();
-        }
+        for (Command<T> cmd : cmds) {
+            List<Object> events;
 
-        List<Object> events = AggregateState.stopTransaction();
+            AggregateState.startTransaction(targetAggregateId);
 
-        // No events, no need to update state
-        if (events.isEmpty()) {
-            return;
-        }
+            try {
+                aggregateInstance = wiringManager.executeCommandHandler(aggregateInstance, cmd);
+            } finally {
+                events = AggregateState.stopTransaction();
+            }
 
-        long globalId = aggregate.getGlobalId();
+            for (Object event : events) {
+                // The event sequences, and the global id of a new aggregate, are only assigned once everything is saved
+                // TODO is it an issue we don't know the event id yet when applying the handlers?
+                eventContainers.add(new EventContainer<>(-1L, globalId, event, metadata));
 
-        // If the aggregate didn't exist
-        if (!aggregate.exists()) {
-            // We'll create an initial "empty" state for the aggregate so we can get a global id, since the events will
-            // require it
-            globalId = aggregateRepository.saveAggregate(transaction, aggregate);
+                wiringManager.executeAggregateStateHandler(aggregateInstance, event);
+                wiringManager.executeDomainEventHandler(event);
+            }
         }
 
-        long lastEventSequence = -1;
-
-        for (Object event : events) {
-            // TODO is it an issue we don't know the event id yet when applying the handlers?
-            EventContainer<?> eventContainer = new EventContainer<>(-1L, globalId, event, metadata);
-
-            wiringManager.executeAggregateStateHandler(aggregateInstance, event);
-            wiringManager.executeDomainEventHandler(event);
-            lastEventSequence = eventRepository.saveEvent(transaction, eventContainer);
+        // No events were applied by any command, no need to update state
+        if (eventContainers.isEmpty()) {
+            return;
         }
 
         aggregate = SimpleAggregate.<T>builder()
                 .globalId(globalId)
                 .aggregateIdentifier(targetAggregateId)
                 .className(aggregateInstance.getClass().getName())
-                .initialEventSequence(aggregate.getInitialEventSequence())
-                .eventSequence(lastEventSequence)
+                .initialEventSequence(aggregate == null ? 0 : aggregate.getInitialEventSequence())
                 .currentState(aggregateInstance)
+                .snapshot(aggregate == null ? null : aggregate.getSnapshot())
                 .build();
 
-        aggregateRepository.saveAggregate(transaction, aggregate);
+        SavedAggregate saved;
+
+        try {
+            // The aggregate and its events are written together, in a single round trip where the repository supports it
+            saved = aggregateRepository.saveAggregateAndEvents(transaction, aggregate, eventContainers, eventRepository);
+        } catch (ConcurrencyConflictException ex) {
+            if (creating) {
+                // Retrying won't help, the aggregate already exists
+                throw new AggregateNotFoundException("Attempted to send an initial-state command when the aggregate already exists");
+            }
+
+            throw ex;
+        }
+
+        EventPublisher eventPublisher = this.eventPublisher;
+
+        if (eventPublisher != null) {
+            publishOnCommit(transaction, eventPublisher, saved, eventContainers);
+        }
+    }
+
+    private static void publishOnCommit(Transaction transaction, EventPublisher eventPublisher, SavedAggregate saved, List<EventContainer<?>> eventContainers) {
+        List<EventContainer<?>> committed = new ArrayList<>(eventContainers.size());
+        long[] eventSequences = saved.getEventSequences();
+
+        for (int i = 0; i < eventContainers.size(); i++) {
+            EventContainer<?> eventContainer = eventContainers.get(i);
+
+            committed.add(new EventContainer<>(eventSequences[i], saved.getGlobalId(), eventContainer.getPayload(), eventContainer.getMetadata()));
+        }
+
+        transaction.afterCommit(() -> eventPublisher.publish(committed));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+package com.moppletop.ddd.command;
+
+import com.moppletop.ddd.command.AggregateLockManager.AggregateLock;
+import com.moppletop.ddd.database.Transaction;
+import com.moppletop.ddd.error.ConcurrencyConflictException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Savepoint;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Coalesces commands sent by many threads into shared database transactions, amortising the cost of a commit over every
+ * command in the batch.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>A single committer thread collects commands until either the batch is full or the oldest command in it has
+ *     waited the maximum latency</li>
+ *     <li>A batch only ever contains one command per aggregate, a later command for the same aggregate is deferred to the
+ *     next batch, as are commands for aggregates locked by another thread. Deferred commands are always placed
+ *     before newly arrived ones so commands for an aggregate are handled in the order they were sent</li>
+ *     <li>Each command runs inside its own savepoint, if it fails only its own changes are rolled back. The transaction
+ *     callbacks it registered are scoped to the savepoint too, so its after commit callbacks are discarded and its after
+ *     rollback callbacks are run straight away</li>
+ *     <li>Callers are only completed once the shared transaction has committed</li>
+ *     <li>A command which fails due to a {@link ConcurrencyConflictException} is put back at the front of the queue to
+ *     be reapplied in the next batch, until the {@link RetryPolicy} gives up on it. The time spent collecting the next
+ *     batch acts as the backoff</li>
+ *     <li>Shutting down stops collecting, the batch collected so far is still committed and anything left after it fails.
+ *     The thread is never interrupted, so it can't be stopped part way through a JDBC call</li>
+ * </ul>
+ */
+@Slf4j
+class GroupCommitter {
+
+    private final DataSource dataSource;
+    private final AggregateLockManager lockManager;
+    private final BiConsumer<UUID, Command<?>> handler;
+    private final RetryPolicy retryPolicy;
+    private final Duration maxLatency;
+    private final int maxBatchSize;
+
+    // Wakes the committer thread on shutdown, so it stops between JDBC calls rather than being interrupted during one
+    private final PendingCommand shutdownSignal = new PendingCommand(null, null);
+
+    private final BlockingQueue<PendingCommand> queue = new LinkedBlockingQueue<>();
+    private final Deque<PendingCommand> deferred = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    GroupCommitter(DataSource dataSource, AggregateLockManager lockManager, BiConsumer<UUID, Command<?>> handler, RetryPolicy retryPolicy, Duration maxLatency, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("The maximum batch size must be a positive number!");
+        }
+
+        // Commands deferred by a batch are retried every maximum latency, without any wait the thread would spin
+        if (maxLatency.isZero() || maxLatency.isNegative()) {
+            throw new IllegalArgumentException("The maximum latency must be positive!");
+        }
+
+        this.dataSource = dataSource;
+        this.lockManager = lockManager;
+        this.handler = handler;
+        this.retryPolicy = retryPolicy;
+        this.maxLatency = maxLatency;
+        this.maxBatchSize = maxBatchSize;
+
+        this.thread = new Thread(this::run, "cmd-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    CompletableFuture<Void> submit(UUID targetAggregateId, Command<?> cmd) {
+        PendingCommand pending = new PendingCommand(targetAggregateId, cmd);
+
+        if (!running) {
+            pending.future.completeExceptionally(new IllegalStateException("Group commit has been shutdown"));
+        } else {
+            queue.add(pending);
+        }
+
+        return pending.future;
+    }
+
+    void shutdown() {
+        running = false;
+        queue.add(shutdownSignal);
+    }
+
+    private void run() {
+        while (running) {
+            List<PendingCommand> batch = new ArrayList<>();
+            List<AggregateLock> locks = new ArrayList<>();
+
+            try {
+                // On shutdown this returns early, whatever was collected is still committed
+                collectBatch(batch, locks);
+            } catch (InterruptedException ex) {
+                // Shutdown doesn't interrupt the thread, but stop rather than keep waiting if something else does
+                running = false;
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                }
+            } finally {
+                locks.forEach(AggregateLock::close);
+            }
+        }
+
+        // Fail anything left over, nothing will process it now
+        IllegalStateException shutdown = new IllegalStateException("Group commit has been shutdown");
+        deferred.forEach(pending -> pending.future.completeExceptionally(shutdown));
+        queue.forEach(pending -> pending.future.completeExceptionally(shutdown));
+    }
+
+    private void collectBatch(List<PendingCommand> batch, List<AggregateLock> locks) throws InterruptedException {
+        Set<UUID> seen = new HashSet<>();
+        Deque<PendingCommand> stillDeferred = new ArrayDeque<>();
+
+        try {
+            // Commands deferred by the last batch go first
+            while (!deferred.isEmpty()) {
+                offer(deferred.poll(), batch, seen, stillDeferred, locks);
+            }
+
+            if (batch.isEmpty()) {
+                // Don't wait forever if commands are deferred, their aggregates may have since been unlocked
+                PendingCommand first = stillDeferred.isEmpty() ? queue.take() : queue.poll(maxLatency.toNanos(), TimeUnit.NANOSECONDS);
+
+                if (first == null || first == shutdownSignal) {
+                    return;
+                }
+
+                offer(first, batch, seen, stillDeferred, locks);
+            }
+
+            long deadline = System.nanoTime() + maxLatency.toNanos();
+
+            while (batch.size() < maxBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                PendingCommand next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+
+                if (next == null || next == shutdownSignal) {
+                    break;
+                }
+
+                offer(next, batch, seen, stillDeferred, locks);
+            }
+        } finally {
+            deferred.addAll(stillDeferred);
+        }
+    }
+
+    private void offer(PendingCommand pending, List<PendingCommand> batch, Set<UUID> seen, Deque<PendingCommand> stillDeferred, List<AggregateLock> locks) {
+        // Once an aggregate has been seen, any later command for it must wait for the next batch to keep the ordering
+        if (!seen.add(pending.targetAggregateId) || batch.size() >= maxBatchSize) {
+            stillDeferred.add(pending);
+            return;
+        }
+
+        // Don't wait on aggregates locked by other threads, it would stall the whole batch
+        AggregateLock lock = lockManager.tryAcquire(pending.targetAggregateId);
+
+        if (lock == null) {
+            stillDeferred.add(pending);
+            return;
+        }
+
+        locks.add(lock);
+        batch.add(pending);
+    }
+
+    private void commit(List<PendingCommand> batch) {
+        List<PendingCommand> handled = new ArrayList<>(batch.size());
+        List<PendingCommand> retries = new ArrayList<>();
+
+        try {
+            Transaction transaction = Transaction.createAndStart(dataSource);
+
+            for (PendingCommand pending : batch) {
+                Savepoint savepoint = transaction.setSavepoint();
+
+                try {
+                    handler.accept(pending.targetAggregateId, pending.cmd);
+                    transaction.releaseSavepoint(savepoint);
+                    handled.add(pending);
+                } catch (RuntimeException ex) {
+                    // Only this command's changes and callbacks are undone, the rest of the batch carries on
+                    transaction.rollback(savepoint);
+
+                    if (ex instanceof ConcurrencyConflictException && retryPolicy.shouldRetry(pending.attempt)) {
+                        pending.attempt++;
+                        retries.add(pending);
+                    } else {
+                        pending.future.completeExceptionally(ex);
+                    }
+                }
+            }
+
+            Transaction.stopAndCommit();
+        } catch (Exception ex) {
+            retries.clear();
+            Transaction.executeIfInTransaction(Transaction::stopAndRollback);
+            log.error("Failed to commit a group of {} command{}", batch.size(), batch.size() == 1 ? "" : "s", ex);
+
+            // Nothing in the batch was committed
+            batch.forEach(pending -> pending.future.completeExceptionally(ex));
+            return;
+        } finally {
+            // Retries must go ahead of any deferred commands, which may be later commands for the same aggregate
+            for (int i = retries.size() - 1; i >= 0; i--) {
+                deferred.addFirst(retries.get(i));
+            }
+        }
+
+        handled.forEach(pending -> pending.future.complete(null));
+    }
+
+    private static class PendingCommand {
+
+        private final UUID targetAggregateId;
+        private final Command<?> cmd;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int attempt = 1;
+
+        private PendingCommand(UUID targetAggregateId, Command<?> cmd) {
+            this.targetAggregateId = targetAggregateId;
+            this.cmd = cmd;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.moppletop.ddd.command;
+
+import com.moppletop.ddd.error.ConcurrencyConflictException;
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes how a command that failed with a {@link ConcurrencyConflictException} is retried. Each retry reloads the
+ * aggregate and reapplies the command against its latest state.
+ * <br>
+ * <br>
+ * Backoff is exponential with "full jitter", the delay before retry n is a random duration between 0 and
+ * <code>min(maxBackoff, initialBackoff * multiplier^(n - 1))</code>, so nodes that conflicted together don't retry in lockstep
+ */
+@Value
+@Builder
+public class RetryPolicy {
+
+    private static final RetryPolicy NONE = RetryPolicy.builder().maxAttempts(1).build();
+    private static final RetryPolicy DEFAULT = RetryPolicy.builder().build();
+
+    /**
+     * @return A policy which never retries
+     */
+    public static RetryPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * @return A policy with 3 attempts, backing off from 10ms up to 200ms
+     */
+    public static RetryPolicy defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * The maximum number of times a command is attempted, including the first attempt
+     */
+    @Builder.Default
+    int maxAttempts = 3;
+
+    @Builder.Default
+    Duration initialBackoff = Duration.ofMillis(10);
+
+    @Builder.Default
+    Duration maxBackoff = Duration.ofMillis(200);
+
+    @Builder.Default
+    double multiplier = 2;
+
+    /**
+     * @param attempt The attempt that just failed, starting at 1
+     * @return Whether another attempt should be made
+     */
+    public boolean shouldRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * @param attempt The attempt that just failed, starting at 1
+     * @return The jittered delay before the next attempt
+     */
+    public Duration getBackoff(int attempt) {
+        double ceiling = Math.min(maxBackoff.toNanos(), initialBackoff.toNanos() * Math.pow(multiplier, attempt - 1));
+
+        if (ceiling < 1) {
+            return Duration.ZERO;
+        }
+
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong((long) ceiling + 1));
+    }
+
+    /**
+     * Sleeps for the jittered delay before the next attempt
+     *
+     * @param attempt The attempt that just failed, starting at 1
+     * @return false if the thread was interrupted while backing off, in which case no more attempts should be made
+     */
+    public boolean backoff(int attempt) {
+        Duration backoff = getBackoff(attempt);
+
+        if (backoff.isZero()) {
+            return true;
+        }
+
+        try {
+            Thread.sleep(backoff.toMillis(), (int) (backoff.toNanos() % 1_000_000));
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
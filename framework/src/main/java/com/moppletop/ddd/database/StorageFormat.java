@@ -0,0 +1,171 @@
+package com.moppletop.ddd.database;
+
+import com.moppletop.ddd.transformer.ObjectTransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * How the JDBC repositories store serialised objects, aggregate state and event payloads and metadata. The column types
+ * of the tables must match the format.
+ * <ul>
+ *     <li>{@link StorageFormat#JSON} - <code>json</code> columns holding JSON text, the default</li>
+ *     <li>{@link StorageFormat#JSONB} - <code>jsonb</code> columns, the JSON is parsed and stored in binary by the
+ *     database, which makes writes slower but allows the columns to be indexed and queried efficiently</li>
+ *     <li>{@link StorageFormat#BINARY} - <code>bytea</code> columns holding the bytes of
+ *     {@link ObjectTransformer#serialiseToBytes(Object)}, for example Smile with the
+ *     {@link com.moppletop.ddd.transformer.jackson.JacksonSmileObjectTransformer}. Every value starts with a format byte,
+ *     and JSON without one is still read, so existing <code>json</code> columns can be converted in place with
+ *     <code>alter table ... alter column ... type bytea using convert_to(column::text, 'UTF8')</code></li>
+ * </ul>
+ */
+public enum StorageFormat {
+
+    JSON("json"),
+    JSONB("jsonb"),
+    BINARY("bytea");
+
+    // Large enough for most aggregates, anything which grows a buffer past this isn't kept
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<Buffer> BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+    private final String columnType;
+
+    StorageFormat(String columnType) {
+        this.columnType = columnType;
+    }
+
+    /**
+     * @return The column type which stores this format
+     */
+    public String getColumnType() {
+        return columnType;
+    }
+
+    /**
+     * @return The SQL for a parameter holding a single value of this format
+     */
+    public String parameter() {
+        return this == BINARY ? "?" : "?::" + columnType;
+    }
+
+    /**
+     * @return The element type of the SQL arrays which values of this format are bound in, see {@link StorageFormat#createArray}
+     */
+    public String getArrayType() {
+        return this == BINARY ? "bytea" : "text";
+    }
+
+    /**
+     * @param expression The SQL expression of a value taken from an array of {@link StorageFormat#getArrayType()}
+     * @return The SQL converting the expression to this format
+     */
+    public String fromArray(String expression) {
+        return this == BINARY ? expression : expression + "::" + columnType;
+    }
+
+    /**
+     * @param transformer The transformer to serialise with
+     * @param obj The object to serialise
+     * @return The object serialised for this format, a String or for the binary format a byte array
+     * @throws Exception Any exception thrown during the serialisation
+     */
+    public Object serialise(ObjectTransformer transformer, Object obj) throws Exception {
+        if (this == BINARY) {
+            Buffer buffer = writeToBuffer(transformer, obj);
+
+            try {
+                return buffer.toByteArray();
+            } finally {
+                buffer.release();
+            }
+        }
+
+        return transformer.serialise(obj);
+    }
+
+    /**
+     * @param statement The statement
+     * @param index The index of the parameter
+     * @param serialised The value returned by {@link StorageFormat#serialise(ObjectTransformer, Object)}
+     * @throws SQLException If the parameter could not be set
+     */
+    public void bind(PreparedStatement statement, int index, Object serialised) throws SQLException {
+        if (serialised instanceof byte[]) {
+            statement.setBytes(index, (byte[]) serialised);
+        } else {
+            statement.setString(index, (String) serialised);
+        }
+    }
+
+    /**
+     * @param length The number of values
+     * @return An array to hold values returned by {@link StorageFormat#serialise(ObjectTransformer, Object)}, a String
+     * array or for the binary format an array of byte arrays
+     */
+    public Object[] newArray(int length) {
+        return this == BINARY ? new byte[length][] : new String[length];
+    }
+
+    /**
+     * @param connection The connection of the statement the array is bound to
+     * @param serialised The values, in an array from {@link StorageFormat#newArray(int)}
+     * @return The SQL array, of <code>bytea</code> for the binary format so no value is encoded as text on the way
+     * @throws SQLException If the array could not be created
+     */
+    public Array createArray(Connection connection, Object[] serialised) throws SQLException {
+        return connection.createArrayOf(getArrayType(), serialised);
+    }
+
+    /**
+     * @param resultSet The result set, positioned on a row
+     * @param column The column to read
+     * @return The stored value, a String or for the binary format a byte array
+     * @throws SQLException If the column could not be read
+     */
+    public Object read(ResultSet resultSet, String column) throws SQLException {
+        return this == BINARY ? resultSet.getBytes(column) : resultSet.getString(column);
+    }
+
+    /**
+     * @param transformer The transformer to deserialise with
+     * @param stored The value read by {@link StorageFormat#read(ResultSet, String)}
+     * @param classOfT The class to deserialise into
+     * @param <T> The type of the class to deserialise into
+     * @return The deserialised object
+     * @throws Exception Any exception thrown during the deserialisation
+     */
+    public <T> T deserialise(ObjectTransformer transformer, Object stored, Class<T> classOfT) throws Exception {
+        if (stored instanceof byte[]) {
+            return transformer.deserialise((byte[]) stored, classOfT);
+        }
+
+        return transformer.deserialise((String) stored, classOfT);
+    }
+
+    private static Buffer writeToBuffer(ObjectTransformer transformer, Object obj) throws Exception {
+        Buffer buffer = BUFFER.get();
+
+        // Serialise straight into a buffer which is reused by the thread, rather than growing a new one every time
+        buffer.reset();
+        transformer.serialise(obj, buffer);
+        return buffer;
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(1024);
+        }
+
+        private void release() {
+            if (buf.length > MAX_RETAINED_BUFFER) {
+                buf = new byte[1024];
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.moppletop.ddd.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Decides which tables the JDBC repositories store each aggregate type, and its events, in. Aggregate types are put in
+ * groups, and each group has its own aggregate and event tables named after it, for example the group
+ * <code>orders</code> is stored in <code>aggregate_orders</code> and <code>event_orders</code>. Aggregate types without a
+ * group are stored in the default <code>aggregate</code> and <code>event</code> tables.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>The tables of a group are created like the default tables, see {@link TableRouting#createTables(Connection)}, and
+ *     share their sequences, so global ids and event sequences stay unique and ordered across every group</li>
+ *     <li>Saving an aggregate knows its type so only touches the tables of its group, but an aggregate loaded by its
+ *     identifier alone could be in any group, so every aggregate table is probed in a single statement. Keep the number
+ *     of groups small</li>
+ * </ul>
+ */
+public interface TableRouting {
+
+    String DEFAULT_AGGREGATE_TABLE = "aggregate";
+    String DEFAULT_EVENT_TABLE = "event";
+
+    /**
+     * @param aggregateClassName The class name of the aggregate
+     * @return The group the aggregate type is stored in, or null if it is stored in the default tables
+     */
+    String getGroup(String aggregateClassName);
+
+    /**
+     * @return Every group, not including the default tables
+     */
+    Set<String> getGroups();
+
+    /**
+     * @return Routing which stores every aggregate type in the default tables
+     */
+    static TableRouting none() {
+        return new TableRouting() {
+            @Override
+            public String getGroup(String aggregateClassName) {
+                return null;
+            }
+
+            @Override
+            public Set<String> getGroups() {
+                return Collections.emptySet();
+            }
+        };
+    }
+
+    /**
+     * @param group The group, or null for the default tables
+     * @return The name of the aggregate table of the group
+     */
+    static String getAggregateTable(String group) {
+        return group == null ? DEFAULT_AGGREGATE_TABLE : DEFAULT_AGGREGATE_TABLE + '_' + group;
+    }
+
+    /**
+     * @param group The group, or null for the default tables
+     * @return The name of the event table of the group
+     */
+    static String getEventTable(String group) {
+        return group == null ? DEFAULT_EVENT_TABLE : DEFAULT_EVENT_TABLE + '_' + group;
+    }
+
+    /**
+     * Creates the tables of every group which don't exist yet, as copies of the default tables including their columns,
+     * defaults, constraints and indexes. The default tables must already exist
+     *
+     * @param connection The connection to create the tables with, it is not committed
+     * @throws SQLException If a table could not be created
+     */
+    default void createTables(Connection connection) throws SQLException {
+        for (String group : getGroups()) {
+            String aggregateTable = getAggregateTable(group);
+            String eventTable = getEventTable(group);
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create table if not exists " + aggregateTable + " (like " + DEFAULT_AGGREGATE_TABLE + " including all)");
+            }
+
+            boolean eventTableExists;
+
+            try (PreparedStatement statement = connection.prepareStatement("select to_regclass(?) is not null")) {
+                statement.setString(1, eventTable);
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    eventTableExists = resultSet.next() && resultSet.getBoolean(1);
+                }
+            }
+
+            if (!eventTableExists) {
+                try (Statement statement = connection.createStatement()) {
+                    // Foreign keys aren't copied, the events of the group reference the aggregates of the group
+                    statement.execute("create table " + eventTable + " (like " + DEFAULT_EVENT_TABLE + " including all)");
+                    statement.execute("alter table " + eventTable + " add foreign key (aggregate_global_id) references " + aggregateTable + " (global_id)");
+                }
+            }
+        }
+    }
+}
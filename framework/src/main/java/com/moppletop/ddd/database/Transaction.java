@@ -1,11 +1,15 @@
 package com.moppletop.ddd.database;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.*;
 
 /**
  * This is the big one, the transaction class.
@@ -17,8 +21,17 @@ import java.sql.SQLException;
  * <ul>
  *     <li>Transactions are thread bound to the thread</li>
  *     <li>Nested transactions are not supported</li>
+ *     <li>Callbacks can be registered to run once the transaction has committed or rolled back, exceptions thrown by
+ *     them are logged since the outcome of the transaction can no longer change</li>
+ *     <li>Resources can be bound to a transaction, for example state read while loading an aggregate that is needed again
+ *     when saving it, they are discarded with the transaction</li>
+ *     <li>Callbacks and resources are scoped to savepoints set with {@link Transaction#setSavepoint()}. Rolling back to a
+ *     savepoint discards the after commit callbacks registered since, runs the after rollback callbacks registered
+ *     since, and restores the resources bound at the time. Resources are restored by binding, a resource object
+ *     modified in place is not restored</li>
  * </ul>
  */
+@Slf4j
 @Getter
 public class Transaction implements ConnectionProvider {
 
@@ -112,18 +125,137 @@ public class Transaction implements ConnectionProvider {
 
     private Connection connection;
 
+    @Getter(AccessLevel.NONE)
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    @Getter(AccessLevel.NONE)
+    private final List<Runnable> afterRollback = new ArrayList<>();
+    @Getter(AccessLevel.NONE)
+    private final Map<Object, Object> resources = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Deque<SavepointScope> savepoints = new ArrayDeque<>();
+
+    /**
+     * @param callback Run once this transaction has successfully committed
+     */
+    public void afterCommit(Runnable callback) {
+        afterCommit.add(callback);
+    }
+
+    /**
+     * @param callback Run once this transaction has rolled back, including when the commit itself failed
+     */
+    public void afterRollback(Runnable callback) {
+        afterRollback.add(callback);
+    }
+
+    /**
+     * @param key The key the resource was bound with
+     * @param <T> The type of the resource
+     * @return The resource bound to this transaction, or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getResource(Object key) {
+        return (T) resources.get(key);
+    }
+
+    /**
+     * @param key The key to bind the resource with
+     * @param resource The resource, replacing any already bound with the key
+     */
+    public void putResource(Object key, Object resource) {
+        resources.put(key, resource);
+    }
+
+    /**
+     * @param key The key the resource was bound with
+     */
+    public void removeResource(Object key) {
+        resources.remove(key);
+    }
+
+    /**
+     * Sets a savepoint, the callbacks registered and resources bound from now on belong to it until it is released or
+     * rolled back
+     *
+     * @return The savepoint
+     * @throws SQLException If the savepoint could not be set
+     */
+    public Savepoint setSavepoint() throws SQLException {
+        Savepoint savepoint = connection.setSavepoint();
+
+        savepoints.push(new SavepointScope(savepoint, afterCommit.size(), afterRollback.size(), new HashMap<>(resources)));
+        return savepoint;
+    }
+
+    /**
+     * Releases a savepoint and any set after it, the callbacks and resources registered since are kept by the transaction
+     *
+     * @param savepoint The savepoint to release
+     * @throws SQLException If the savepoint could not be released
+     */
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        popScope(savepoint);
+        connection.releaseSavepoint(savepoint);
+    }
+
+    /**
+     * Rolls back to a savepoint, the after commit callbacks registered since are discarded, the after rollback callbacks
+     * registered since are run, and the resources bound when the savepoint was set are restored
+     *
+     * @param savepoint The savepoint to roll back to, it is released as well
+     * @throws SQLException If the roll back failed
+     */
+    public void rollback(Savepoint savepoint) throws SQLException {
+        SavepointScope scope = popScope(savepoint);
+
+        connection.rollback(savepoint);
+
+        List<Runnable> rolledBack = new ArrayList<>(afterRollback.subList(scope.afterRollback, afterRollback.size()));
+
+        afterCommit.subList(scope.afterCommit, afterCommit.size()).clear();
+        afterRollback.subList(scope.afterRollback, afterRollback.size()).clear();
+        resources.clear();
+        resources.putAll(scope.resources);
+
+        runCallbacks(rolledBack);
+    }
+
+    // Removes the scope of the savepoint and those set after it
+    private SavepointScope popScope(Savepoint savepoint) {
+        for (SavepointScope scope : savepoints) {
+            if (scope.savepoint == savepoint) {
+                SavepointScope popped;
+
+                do {
+                    popped = savepoints.pop();
+                } while (popped != scope);
+
+                return scope;
+            }
+        }
+
+        throw new IllegalStateException("The savepoint was not set by this transaction, or has already been released!");
+    }
+
     private void start(DataSource dataSource) throws SQLException {
         this.connection = dataSource.getConnection();
     }
 
     private void stop() throws SQLException {
+        boolean committed = false;
+
         try {
             connection.commit();
+            committed = true;
         } catch (SQLException ex) {
             connection.rollback();
             throw ex;
         } finally {
-            connection.close();
+            try {
+                connection.close();
+            } finally {
+                runCallbacks(committed ? afterCommit : afterRollback);
+            }
         }
     }
 
@@ -131,11 +263,40 @@ public class Transaction implements ConnectionProvider {
         try {
             connection.rollback();
         } finally {
-            connection.close();
+            try {
+                connection.close();
+            } finally {
+                runCallbacks(afterRollback);
+            }
+        }
+    }
+
+    private static void runCallbacks(List<Runnable> callbacks) {
+        for (Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                log.error("Transaction callback failed", ex);
+            }
         }
     }
 
     public boolean hasStarted() {
         return connection != null;
     }
+
+    private static class SavepointScope {
+
+        private final Savepoint savepoint;
+        private final int afterCommit;
+        private final int afterRollback;
+        private final Map<Object, Object> resources;
+
+        private SavepointScope(Savepoint savepoint, int afterCommit, int afterRollback, Map<Object, Object> resources) {
+            this.savepoint = savepoint;
+            this.afterCommit = afterCommit;
+            this.afterRollback = afterRollback;
+            this.resources = resources;
+        }
+    }
 }
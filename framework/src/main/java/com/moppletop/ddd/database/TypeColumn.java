@@ -0,0 +1,105 @@
+package com.moppletop.ddd.database;
+
+import com.moppletop.ddd.transformer.TypeRegistry;
+import com.moppletop.ddd.util.ClassResolver;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * How the JDBC repositories store the type of aggregates and events. Without a {@link TypeRegistry} it is the fully
+ * qualified class name in a <code>class_name varchar(255)</code> column, with one it is the id of the type in a
+ * <code>type_id integer</code> column referencing <code>type_registry</code>
+ */
+public final class TypeColumn {
+
+    private static final TypeColumn CLASS_NAME = new TypeColumn(null);
+
+    private final TypeRegistry typeRegistry;
+
+    private TypeColumn(TypeRegistry typeRegistry) {
+        this.typeRegistry = typeRegistry;
+    }
+
+    /**
+     * @param typeRegistry The type registry, or null to store class names
+     * @return The type column using the registry
+     */
+    public static TypeColumn of(TypeRegistry typeRegistry) {
+        return typeRegistry == null ? CLASS_NAME : new TypeColumn(typeRegistry);
+    }
+
+    /**
+     * @return Whether types are stored by their id in a type registry
+     */
+    public boolean isRegistered() {
+        return typeRegistry != null;
+    }
+
+    /**
+     * @return The name of the column
+     */
+    public String getName() {
+        return getName(isRegistered());
+    }
+
+    /**
+     * @return The SQL type of the values of the column, for binding them in an array
+     */
+    public String getSqlType() {
+        return getSqlType(isRegistered());
+    }
+
+    /**
+     * @param registered Whether types are stored by their id in a type registry
+     * @return The name of the column
+     */
+    public static String getName(boolean registered) {
+        return registered ? "type_id" : "class_name";
+    }
+
+    /**
+     * @param registered Whether types are stored by their id in a type registry
+     * @return The SQL type of the values of the column
+     */
+    public static String getSqlType(boolean registered) {
+        return registered ? "integer" : "varchar";
+    }
+
+    /**
+     * @param className The fully qualified class name of an aggregate or event
+     * @return The value stored for the class, an Integer or without a registry the class name itself
+     */
+    public Object toValue(String className) {
+        return isRegistered() ? (Object) typeRegistry.getTypeId(className) : className;
+    }
+
+    /**
+     * @param statement The statement
+     * @param index The index of the parameter
+     * @param className The fully qualified class name of an aggregate or event
+     * @throws SQLException If the parameter could not be set
+     */
+    public void bind(PreparedStatement statement, int index, String className) throws SQLException {
+        if (isRegistered()) {
+            statement.setInt(index, typeRegistry.getTypeId(className));
+        } else {
+            statement.setString(index, className);
+        }
+    }
+
+    /**
+     * @param resultSet The result set, positioned on a row
+     * @return The class stored in the column
+     * @throws SQLException If the column could not be read
+     * @throws ClassNotFoundException If the class could not be found
+     */
+    public Class<?> read(ResultSet resultSet) throws SQLException, ClassNotFoundException {
+        if (isRegistered()) {
+            return typeRegistry.getType(resultSet.getInt(getName()));
+        }
+
+        return ClassResolver.resolve(resultSet.getString(getName()));
+    }
+}
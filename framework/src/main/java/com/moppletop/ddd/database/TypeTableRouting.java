@@ -0,0 +1,57 @@
+package com.moppletop.ddd.database;
+
+import lombok.Builder;
+import lombok.Singular;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Routes aggregate types to groups of tables by their class, types which aren't given a group are stored in the default
+ * tables, see {@link TableRouting}
+ */
+public class TypeTableRouting implements TableRouting {
+
+    // Group names become part of table names, so are kept to what needs no quoting
+    private static final Pattern GROUP_NAME = Pattern.compile("[a-z][a-z0-9_]*");
+    // The partitions of an event table are named {table}_p{n}, see EventPartitionManager, which would clash with the
+    // event table of such a group
+    private static final Pattern PARTITION_SUFFIX = Pattern.compile("(.*_)?p[0-9]+");
+
+    private final Map<String, String> groups;
+    private final Set<String> groupNames;
+
+    /**
+     * @param types The group of each aggregate type, several types can share a group
+     */
+    @Builder
+    public TypeTableRouting(@Singular Map<Class<?>, String> types) {
+        this.groups = new HashMap<>();
+        this.groupNames = new TreeSet<>();
+
+        if (types != null) {
+            types.forEach((type, group) -> {
+                if (!GROUP_NAME.matcher(group).matches()) {
+                    throw new IllegalArgumentException("Invalid table group " + group + " for " + type.getName() + ", group names must be lower case letters, digits and underscores");
+                }
+
+                if (PARTITION_SUFFIX.matcher(group).matches()) {
+                    throw new IllegalArgumentException("Invalid table group " + group + " for " + type.getName() + ", group names ending in p followed by digits are reserved for event table partitions");
+                }
+
+                groups.put(type.getName(), group);
+                groupNames.add(group);
+            });
+        }
+    }
+
+    @Override
+    public String getGroup(String aggregateClassName) {
+        return groups.get(aggregateClassName);
+    }
+
+    @Override
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(groupNames);
+    }
+}
@@ -13,4 +13,9 @@ public class DefaultEventGateway implements EventGateway {
         wiringManager.executeStreamEventHandler(eventContainer.getPayload());
     }
 
+    @Override
+    public void handleStreamedEvent(String processingGroup, EventContainer<?> eventContainer) throws Exception {
+        wiringManager.executeStreamEventHandler(processingGroup, eventContainer.getPayload());
+    }
+
 }
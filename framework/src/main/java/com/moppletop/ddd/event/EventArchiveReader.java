@@ -0,0 +1,231 @@
+package com.moppletop.ddd.event;
+
+import com.moppletop.ddd.error.EventSerialisationException;
+import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.util.ClassResolver;
+import lombok.Builder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the events archived by an {@link EventArchiver}, for example to replay them through
+ * {@link EventGateway#handleStreamedEvent(EventContainer)} after they have been dropped from the database.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Only the segments overlapping the range are opened, and within them the index is used to skip to the first
+ *     block containing the range</li>
+ *     <li>Events are decompressed one block at a time and handed over in order of their event sequence</li>
+ * </ul>
+ */
+public class EventArchiveReader {
+
+    private final Path directory;
+    private final ObjectTransformer transformer;
+    private final String table;
+
+    /**
+     * @param directory The directory the segments were written to
+     * @param transformer The object transformer the events were stored with
+     * @param table The event table whose segments are read, by default <code>event</code>
+     */
+    @Builder
+    public EventArchiveReader(Path directory, ObjectTransformer transformer, String table) {
+        if (directory == null || transformer == null) {
+            throw new IllegalArgumentException("A directory and object transformer must be provided!");
+        }
+
+        this.directory = directory;
+        this.transformer = transformer;
+        this.table = table == null ? "event" : table;
+    }
+
+    /**
+     * @param fromSequence The first event sequence to read
+     * @param toSequence The event sequence after the last to read
+     * @param consumer Given each archived event in the range, in order
+     * @return The number of events read
+     * @throws IOException If a segment could not be read
+     */
+    public long read(long fromSequence, long toSequence, Consumer<EventContainer<?>> consumer) throws IOException {
+        long count = 0;
+
+        for (EventSegment segment : getSegments()) {
+            if (segment.toSequence > fromSequence && segment.fromSequence < toSequence) {
+                count += read(segment, fromSequence, toSequence, consumer);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The event sequence after the last archived event, or 0 if nothing is archived. Events from this sequence
+     * on are still in the database
+     * @throws IOException If the directory could not be read
+     */
+    public long getArchivedUpTo() throws IOException {
+        long archivedUpTo = 0;
+
+        for (EventSegment segment : getSegments()) {
+            archivedUpTo = Math.max(archivedUpTo, segment.toSequence);
+        }
+
+        return archivedUpTo;
+    }
+
+    private List<EventSegment> getSegments() throws IOException {
+        List<EventSegment> segments = new ArrayList<>();
+
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EventSegment.INDEX_EXTENSION)) {
+            for (Path file : files) {
+                EventSegment segment = EventSegment.parse(file);
+
+                if (segment != null && segment.table.equals(table)) {
+                    segments.add(segment);
+                }
+            }
+        }
+
+        segments.sort(Comparator.comparingLong(segment -> segment.fromSequence));
+        return segments;
+    }
+
+    private long read(EventSegment segment, long fromSequence, long toSequence, Consumer<EventContainer<?>> consumer) throws IOException {
+        long count = 0;
+        Inflater inflater = new Inflater();
+
+        try (DataInputStream index = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.index)));
+             FileChannel events = FileChannel.open(segment.events, StandardOpenOption.READ)) {
+            if (index.readInt() != EventSegment.MAGIC || index.readInt() != EventSegment.VERSION) {
+                throw new IOException("Unsupported event segment " + segment.index);
+            }
+
+            int blocks = index.readInt();
+
+            for (int i = 0; i < blocks; i++) {
+                long firstSequence = index.readLong();
+                long lastSequence = index.readLong();
+                long offset = index.readLong();
+                int compressedLength = index.readInt();
+                int uncompressedLength = index.readInt();
+                int blockCount = index.readInt();
+
+                if (lastSequence < fromSequence) {
+                    continue;
+                }
+
+                if (firstSequence >= toSequence) {
+                    break;
+                }
+
+                byte[] block = inflate(events, offset, compressedLength, uncompressedLength, inflater);
+                DataInputStream blockData = new DataInputStream(new ByteArrayInputStream(block));
+
+                for (int j = 0; j < blockCount; j++) {
+                    long globalSequence = blockData.readLong();
+                    long aggregateGlobalId = blockData.readLong();
+                    String className = blockData.readUTF();
+                    int payloadLength = blockData.readInt();
+                    int payloadOffset = block.length - blockData.available();
+
+                    blockData.skipBytes(payloadLength);
+
+                    int metadataLength = blockData.readInt();
+                    int metadataOffset = block.length - blockData.available();
+
+                    blockData.skipBytes(metadataLength);
+
+                    if (globalSequence < fromSequence || globalSequence >= toSequence) {
+                        continue;
+                    }
+
+                    consumer.accept(new EventContainer<>(
+                            globalSequence,
+                            aggregateGlobalId,
+                            deserialise(block, payloadOffset, payloadLength, resolve(className)),
+                            deserialise(block, metadataOffset, metadataLength, EventMetadata.class)
+                    ));
+                    count++;
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            throw new IOException("The events of segment " + segment.index + " are missing", ex);
+        } finally {
+            inflater.end();
+        }
+
+        return count;
+    }
+
+    private static byte[] inflate(FileChannel events, long offset, int compressedLength, int uncompressedLength, Inflater inflater) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+
+        while (compressed.hasRemaining()) {
+            if (events.read(compressed, offset + compressed.position()) < 0) {
+                throw new EOFException("Event segment block at " + offset + " is truncated");
+            }
+        }
+
+        byte[] block = new byte[uncompressedLength];
+
+        inflater.reset();
+        inflater.setInput(compressed.array());
+
+        try {
+            int inflated = 0;
+
+            while (inflated < uncompressedLength && !inflater.finished()) {
+                int read = inflater.inflate(block, inflated, uncompressedLength - inflated);
+
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                inflated += read;
+            }
+
+            if (inflated != uncompressedLength) {
+                throw new IOException("Event segment block at " + offset + " is corrupt");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Event segment block at " + offset + " is corrupt", ex);
+        }
+
+        return block;
+    }
+
+    private static Class<?> resolve(String className) {
+        try {
+            return ClassResolver.resolve(className);
+        } catch (ClassNotFoundException ex) {
+            throw new EventSerialisationException(ex);
+        }
+    }
+
+    private <T> T deserialise(byte[] block, int offset, int length, Class<T> classOfT) {
+        try {
+            return transformer.deserialise(block, offset, length, classOfT);
+        } catch (Exception ex) {
+            throw new EventSerialisationException(ex);
+        }
+    }
+}
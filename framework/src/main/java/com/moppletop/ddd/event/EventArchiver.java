@@ -0,0 +1,233 @@
+package com.moppletop.ddd.event;
+
+import com.moppletop.ddd.database.StorageFormat;
+import com.moppletop.ddd.database.TypeColumn;
+import lombok.Builder;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Exports events from a table to compressed segment files on local disk, so they can be dropped from the database and
+ * still be replayed with an {@link EventArchiveReader}. See {@link EventSegment} for the layout of the files.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Events are read with a cursor, so only one block is held in memory at a time</li>
+ *     <li>Payloads and metadata are archived exactly as they are stored, so they are read back with the same object
+ *     transformer. Types are archived by class name, even when the table stores type ids</li>
+ *     <li>Files are written under temporary names, synced to disk and moved into place once complete, the index last.
+ *     The directory is synced after the moves, so once an archive returns the segment survives a crash, and the
+ *     events can safely be dropped</li>
+ * </ul>
+ */
+public class EventArchiver {
+
+    // %1$s is the type column, see TypeColumn, %2$s the table to export
+    private static final String GET_EVENTS = "select global_sequence, aggregate_global_id, %1$s, payload, metadata from %2$s " +
+            "where global_sequence >= ? and global_sequence < ? order by global_sequence;";
+
+    private final Path directory;
+    private final StorageFormat storageFormat;
+    private final TypeColumn typeColumn;
+    private final int blockEvents;
+    private final int fetchSize;
+
+    /**
+     * @param directory The directory to write segments to, it is created if it doesn't exist
+     * @param eventRepository The repository which stored the events, for their storage format and type column
+     * @param blockEvents The number of events compressed together, more compress better but a read has to decompress
+     *                    the whole block containing the first event it wants, by default 1024
+     * @param fetchSize The number of events fetched from the database at a time, by default 1000
+     */
+    @Builder
+    public EventArchiver(Path directory, JdbcEventRepository eventRepository, Integer blockEvents, Integer fetchSize) {
+        if (directory == null || eventRepository == null) {
+            throw new IllegalArgumentException("A directory and event repository must be provided!");
+        }
+
+        this.directory = directory;
+        this.storageFormat = eventRepository.getStorageFormat();
+        this.typeColumn = eventRepository.getTypeColumn();
+        this.blockEvents = Math.max(1, blockEvents == null ? 1024 : blockEvents);
+        this.fetchSize = fetchSize == null ? 1000 : fetchSize;
+    }
+
+    /**
+     * Writes the events of a range to a segment, replacing any segment of the same range. Reading with a cursor requires
+     * the connection to not be in auto commit mode
+     *
+     * @param connection The connection to read the events with
+     * @param sourceTable The table to read the events from, for example a partition of the event table
+     * @param table The event table the segment is named after
+     * @param fromSequence The first event sequence of the range
+     * @param toSequence The event sequence after the range
+     * @return The number of events archived
+     * @throws SQLException If the events could not be read
+     * @throws IOException If the segment could not be written
+     */
+    public long archive(Connection connection, String sourceTable, String table, long fromSequence, long toSequence) throws SQLException, IOException {
+        Files.createDirectories(directory);
+
+        String name = EventSegment.name(table, fromSequence, toSequence);
+        Path events = directory.resolve(name + EventSegment.EVENTS_EXTENSION);
+        Path index = directory.resolve(name + EventSegment.INDEX_EXTENSION);
+        Path eventsTemp = directory.resolve(name + EventSegment.EVENTS_EXTENSION + ".tmp");
+        Path indexTemp = directory.resolve(name + EventSegment.INDEX_EXTENSION + ".tmp");
+        long count = 0;
+
+        try (PreparedStatement statement = connection.prepareStatement(String.format(GET_EVENTS, typeColumn.getName(), sourceTable));
+             SegmentWriter writer = new SegmentWriter(eventsTemp, indexTemp)) {
+            statement.setFetchSize(fetchSize);
+            statement.setLong(1, fromSequence);
+            statement.setLong(2, toSequence);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    writer.write(
+                            resultSet.getLong("global_sequence"),
+                            resultSet.getLong("aggregate_global_id"),
+                            typeColumn.read(resultSet).getName(),
+                            toBytes(storageFormat.read(resultSet, "payload")),
+                            toBytes(storageFormat.read(resultSet, "metadata"))
+                    );
+                    count++;
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("An archived event has a type which could not be resolved", ex);
+        }
+
+        Files.move(eventsTemp, events, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTemp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        return count;
+    }
+
+    // Makes the moves durable, the renames are only entries in the directory
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException ex) {
+            // Windows can't open directories, its moves are durable once they return
+        }
+    }
+
+    private static byte[] toBytes(Object stored) {
+        return stored instanceof byte[] ? (byte[]) stored : ((String) stored).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class SegmentWriter implements Closeable {
+
+        private final FileChannel eventsChannel;
+        private final FileChannel indexChannel;
+        private final OutputStream events;
+        private final DataOutputStream index;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(64 * 1024);
+        private final DataOutputStream blockData = new DataOutputStream(block);
+        private final Deflater deflater = new Deflater();
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(16 * 1024);
+
+        // The index is written once every block is known, the header holds the number of blocks
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream entryData = new DataOutputStream(entries);
+        private int blocks;
+
+        private long offset;
+        private long firstSequence;
+        private long lastSequence;
+        private int blockCount;
+
+        private SegmentWriter(Path events, Path index) throws IOException {
+            this.eventsChannel = FileChannel.open(events, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.events = new BufferedOutputStream(Channels.newOutputStream(eventsChannel), 64 * 1024);
+            this.index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexChannel)));
+        }
+
+        private void write(long globalSequence, long aggregateGlobalId, String className, byte[] payload, byte[] metadata) throws IOException {
+            if (blockCount == 0) {
+                firstSequence = globalSequence;
+            }
+
+            blockData.writeLong(globalSequence);
+            blockData.writeLong(aggregateGlobalId);
+            blockData.writeUTF(className);
+            blockData.writeInt(payload.length);
+            blockData.write(payload);
+            blockData.writeInt(metadata.length);
+            blockData.write(metadata);
+
+            lastSequence = globalSequence;
+
+            if (++blockCount == blockEvents) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            compressed.reset();
+            deflater.reset();
+
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, 8192)) {
+                block.writeTo(out);
+            }
+
+            compressed.writeTo(events);
+
+            entryData.writeLong(firstSequence);
+            entryData.writeLong(lastSequence);
+            entryData.writeLong(offset);
+            entryData.writeInt(compressed.size());
+            entryData.writeInt(block.size());
+            entryData.writeInt(blockCount);
+
+            offset += compressed.size();
+            blocks++;
+            block.reset();
+            blockCount = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (blockCount > 0) {
+                    flushBlock();
+                }
+
+                index.writeInt(EventSegment.MAGIC);
+                index.writeInt(EventSegment.VERSION);
+                index.writeInt(blocks);
+                entries.writeTo(index);
+
+                // The files must be on disk before they are moved into place and the events are dropped
+                events.flush();
+                eventsChannel.force(true);
+                index.flush();
+                indexChannel.force(true);
+            } finally {
+                deflater.end();
+
+                try {
+                    events.close();
+                } finally {
+                    index.close();
+                }
+            }
+        }
+    }
+}
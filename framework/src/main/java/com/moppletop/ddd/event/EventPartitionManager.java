@@ -0,0 +1,305 @@
+package com.moppletop.ddd.event;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Maintains an event table which is range partitioned by <code>global_sequence</code>, creating partitions ahead of the
+ * event sequence and archiving the oldest ones.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Partition <code>n</code> of the table <code>event</code> is named <code>event_p{n}</code> and holds the event
+ *     sequences from <code>n * partitionSize</code> up to, but not including, <code>(n + 1) * partitionSize</code></li>
+ *     <li>There is no default partition, so partitions must be created ahead of the event sequence, either by calling
+ *     {@link EventPartitionManager#maintain()} regularly or with {@link EventPartitionManager#start(Duration)}</li>
+ *     <li>A partition is closed once the event sequence has moved the number of retained partitions past it. Closed
+ *     partitions are detached first, which waits for any transaction still inserting into them, then exported with the
+ *     {@link EventArchiver} and dropped. A partition left detached by a failure is archived by the next run</li>
+ *     <li>Without an archiver partitions are never dropped</li>
+ *     <li>Archived events are no longer loaded by the {@link JdbcEventRepository}, so a closed partition is kept while
+ *     it holds events after the oldest <code>snapshot_sequence</code> of the snapshot tables, which the
+ *     {@link com.moppletop.ddd.aggregate.SnapshottingAggregateRepository} still has to replay</li>
+ *     <li>Maintenance uses connections of its own which are committed straight away, so the data source must not be a
+ *     {@link com.moppletop.ddd.database.TransactionAwareDataSourceProxy}</li>
+ * </ul>
+ */
+@Slf4j
+public class EventPartitionManager {
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+
+    private static final String GET_LAST_SEQUENCE = "select pg_sequence_last_value(pg_get_serial_sequence(?, 'global_sequence')::regclass);";
+    // Every partition of the table, and detached tables which are named like one
+    private static final String GET_PARTITIONS = "select c.relname, i.inhrelid is not null as attached from pg_class c " +
+            "left join pg_inherits i on i.inhrelid = c.oid and i.inhparent = ?::regclass " +
+            "where c.relkind = 'r' and c.relnamespace = to_regnamespace(current_schema()) and c.relname ~ ?;";
+    private static final String CREATE_PARTITION = "create table if not exists %s partition of %s for values from (%d) to (%d);";
+    private static final String DETACH_PARTITION = "alter table %s detach partition %s;";
+    private static final String DROP_PARTITION = "drop table %s;";
+    // A null snapshot sequence means the stored state is current, so none of the aggregate's events are replayed
+    private static final String GET_OLDEST_SNAPSHOT = "select min(snapshot_sequence) from %s;";
+
+    private final DataSource dataSource;
+    private final String table;
+    private final long partitionSize;
+    private final int partitionsAhead;
+    private final int retainedPartitions;
+    private final EventArchiver archiver;
+    private final List<String> snapshotTables;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param dataSource The database of the event table
+     * @param table The partitioned event table, by default <code>event</code>
+     * @param partitionSize The number of event sequences in each partition, by default 1,000,000
+     * @param partitionsAhead The number of partitions to create after the one the event sequence is in, by default 2
+     * @param retainedPartitions The number of closed partitions to keep in the database, by default 2
+     * @param archiver Archives closed partitions before they are dropped, if null partitions are never dropped
+     * @param snapshotTables The aggregate tables with snapshot columns whose events are stored in the event table, by
+     *                       default none
+     */
+    @Builder
+    public EventPartitionManager(DataSource dataSource,
+                                 String table,
+                                 Long partitionSize,
+                                 Integer partitionsAhead,
+                                 Integer retainedPartitions,
+                                 EventArchiver archiver,
+                                 List<String> snapshotTables
+    ) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("A data source must be provided!");
+        }
+
+        this.dataSource = dataSource;
+        this.table = table == null ? "event" : table;
+        this.partitionSize = partitionSize == null ? 1_000_000 : partitionSize;
+        this.partitionsAhead = partitionsAhead == null ? 2 : partitionsAhead;
+        this.retainedPartitions = retainedPartitions == null ? 2 : retainedPartitions;
+        this.archiver = archiver;
+        this.snapshotTables = snapshotTables == null ? Collections.emptyList() : new ArrayList<>(snapshotTables);
+
+        if (!TABLE_NAME.matcher(this.table).matches()) {
+            throw new IllegalArgumentException("Invalid event table name " + this.table);
+        }
+
+        for (String snapshotTable : this.snapshotTables) {
+            if (!TABLE_NAME.matcher(snapshotTable).matches()) {
+                throw new IllegalArgumentException("Invalid snapshot table name " + snapshotTable);
+            }
+        }
+
+        if (this.partitionSize <= 0) {
+            throw new IllegalArgumentException("The partition size must be positive!");
+        }
+    }
+
+    /**
+     * Runs {@link EventPartitionManager#maintain()} straight away and then at a fixed interval, on a thread of its own
+     *
+     * @param interval The time between runs
+     */
+    public synchronized void start(Duration interval) {
+        if (scheduler != null) {
+            throw new IllegalStateException("The event partition manager has already been started!");
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-partition-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                maintain();
+            } catch (RuntimeException ex) {
+                log.error("Event partition maintenance failed", ex);
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Creates the partitions ahead of the event sequence, then archives closed partitions if there is an archiver
+     */
+    public void maintain() {
+        createPartitions();
+
+        if (archiver != null) {
+            archivePartitions();
+        }
+    }
+
+    /**
+     * Creates any partitions which don't exist yet, from the one the event sequence is in up to the number ahead of it
+     */
+    public void createPartitions() {
+        try (Connection connection = dataSource.getConnection()) {
+            long current = getLastSequence(connection) / partitionSize;
+
+            try (Statement statement = connection.createStatement()) {
+                for (long partition = current; partition <= current + partitionsAhead; partition++) {
+                    statement.execute(String.format(CREATE_PARTITION, partitionName(partition), table, partition * partitionSize, (partition + 1) * partitionSize));
+                }
+            }
+
+            commit(connection);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Archives and drops every closed partition, oldest first
+     *
+     * @return The number of partitions archived
+     */
+    public int archivePartitions() {
+        if (archiver == null) {
+            throw new IllegalStateException("Archiving partitions requires an archiver!");
+        }
+
+        int archived = 0;
+
+        try (Connection connection = dataSource.getConnection()) {
+            // Exporting reads with a cursor, which needs a transaction
+            connection.setAutoCommit(false);
+
+            long closedBefore = getLastSequence(connection) / partitionSize - retainedPartitions;
+            long oldestSnapshot = getOldestSnapshot(connection);
+
+            for (Map.Entry<Long, Boolean> partition : getPartitions(connection).entrySet()) {
+                long index = partition.getKey();
+
+                // Detached tables are always left over from a previous run, whatever their range
+                if (partition.getValue() && index >= closedBefore) {
+                    continue;
+                }
+
+                // The events after a snapshot are replayed on every load, detached tables were already checked
+                if (partition.getValue() && (index + 1) * partitionSize - 1 > oldestSnapshot) {
+                    log.warn("Keeping partition {} of {}, it holds events after the oldest snapshot at {}", partitionName(index), table, oldestSnapshot);
+                    continue;
+                }
+
+                archive(connection, index, partition.getValue());
+                archived++;
+            }
+        } catch (SQLException | IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        return archived;
+    }
+
+    private void archive(Connection connection, long partition, boolean attached) throws SQLException, IOException {
+        String name = partitionName(partition);
+        long fromSequence = partition * partitionSize;
+
+        try (Statement statement = connection.createStatement()) {
+            if (attached) {
+                statement.execute(String.format(DETACH_PARTITION, table, name));
+                commit(connection);
+            }
+
+            long events = archiver.archive(connection, name, table, fromSequence, fromSequence + partitionSize);
+
+            statement.execute(String.format(DROP_PARTITION, name));
+            commit(connection);
+
+            log.info("Archived {} events from partition {} of {}", events, name, table);
+        } catch (SQLException | IOException ex) {
+            rollback(connection);
+            throw ex;
+        }
+    }
+
+    // Partitions by their index, and whether they are attached
+    private Map<Long, Boolean> getPartitions(Connection connection) throws SQLException {
+        Map<Long, Boolean> partitions = new TreeMap<>();
+        String prefix = table + "_p";
+
+        try (PreparedStatement statement = connection.prepareStatement(GET_PARTITIONS)) {
+            statement.setString(1, table);
+            statement.setString(2, '^' + prefix + "[0-9]+$");
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    partitions.put(Long.parseLong(resultSet.getString("relname").substring(prefix.length())), resultSet.getBoolean("attached"));
+                }
+            }
+        }
+
+        commit(connection);
+        return partitions;
+    }
+
+    // The event sequence of the oldest snapshot still being replayed, events after it can't be archived
+    private long getOldestSnapshot(Connection connection) throws SQLException {
+        long oldest = Long.MAX_VALUE;
+
+        try (Statement statement = connection.createStatement()) {
+            for (String snapshotTable : snapshotTables) {
+                try (ResultSet resultSet = statement.executeQuery(String.format(GET_OLDEST_SNAPSHOT, snapshotTable))) {
+                    if (resultSet.next()) {
+                        long snapshot = resultSet.getLong(1);
+
+                        if (!resultSet.wasNull()) {
+                            oldest = Math.min(oldest, snapshot);
+                        }
+                    }
+                }
+            }
+        }
+
+        commit(connection);
+        return oldest;
+    }
+
+    private long getLastSequence(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(GET_LAST_SEQUENCE)) {
+            statement.setString(1, table);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                // Null until the first event is inserted
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private String partitionName(long partition) {
+        return table + "_p" + partition;
+    }
+
+    private static void commit(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    private static void rollback(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.rollback();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.moppletop.ddd.event;
+
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The layout of the segment files written by the {@link EventArchiver} and read by the {@link EventArchiveReader}.
+ * <br>
+ * <br>
+ * A segment holds the events of one range of event sequences in two files, named after the event table and the range:
+ * <ul>
+ *     <li><code>.events</code> - blocks of events, each compressed with deflate on its own. An event is its event
+ *     sequence, aggregate global id, class name, and the length and bytes of its stored payload and metadata</li>
+ *     <li><code>.index</code> - a header followed by, for each block, its first and last event sequence, offset,
+ *     compressed and uncompressed length and number of events</li>
+ * </ul>
+ * The index is written last, a segment without one is incomplete and ignored
+ */
+final class EventSegment {
+
+    static final int MAGIC = 0x44444445;
+    static final int VERSION = 1;
+
+    static final String EVENTS_EXTENSION = ".events";
+    static final String INDEX_EXTENSION = ".index";
+
+    private static final Pattern INDEX_NAME = Pattern.compile("(.+)-(\\d+)-(\\d+)\\" + INDEX_EXTENSION);
+
+    /**
+     * @return The name of the segment, without an extension. The range is zero padded so names sort in order
+     */
+    static String name(String table, long fromSequence, long toSequence) {
+        return String.format("%s-%019d-%019d", table, fromSequence, toSequence);
+    }
+
+    /**
+     * @return The segment the index belongs to, or null if the file isn't a segment index
+     */
+    static EventSegment parse(Path index) {
+        Matcher matcher = INDEX_NAME.matcher(index.getFileName().toString());
+
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        String name = index.getFileName().toString();
+        Path events = index.resolveSibling(name.substring(0, name.length() - INDEX_EXTENSION.length()) + EVENTS_EXTENSION);
+
+        return new EventSegment(matcher.group(1), Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3)), index, events);
+    }
+
+    final String table;
+    // Inclusive
+    final long fromSequence;
+    // Exclusive
+    final long toSequence;
+    final Path index;
+    final Path events;
+
+    private EventSegment(String table, long fromSequence, long toSequence, Path index, Path events) {
+        this.table = table;
+        this.fromSequence = fromSequence;
+        this.toSequence = toSequence;
+        this.index = index;
+        this.events = events;
+    }
+}
@@ -0,0 +1,162 @@
+package com.moppletop.ddd.event;
+
+import com.moppletop.ddd.database.StorageFormat;
+import com.moppletop.ddd.database.TableRouting;
+import com.moppletop.ddd.database.TypeColumn;
+import com.moppletop.ddd.error.EventSerialisationException;
+import com.moppletop.ddd.transformer.ObjectTransformer;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Reads events by their <code>global_sequence</code> across every event table, and the checkpoints of processing groups
+ * in the <code>event_checkpoint</code> table, for the streamers which read the event table themselves
+ */
+class EventTableReader {
+
+    // %1$s is the type column, see TypeColumn, %2$s the event table, see TableRouting
+    private static final String GET_EVENTS = "(select global_sequence, aggregate_global_id, %1$s, payload, metadata from %2$s " +
+            "where global_sequence > ? order by global_sequence limit ?)";
+    private static final String GET_EVENTS_BY_SEQUENCE = "select global_sequence, aggregate_global_id, %1$s, payload, metadata from %2$s " +
+            "where global_sequence = any(?)";
+    private static final String GET_LAST_SEQUENCE = "select max(global_sequence) as global_sequence from %2$s";
+    private static final String GET_CHECKPOINT = "select global_sequence from event_checkpoint where processing_group = ?;";
+    private static final String SAVE_CHECKPOINT = "insert into event_checkpoint (processing_group, global_sequence, updated) values (?, ?, now()) " +
+            "on conflict (processing_group) do update set global_sequence = excluded.global_sequence, updated = excluded.updated;";
+
+    private final ObjectTransformer transformer;
+    private final StorageFormat storageFormat;
+    private final TypeColumn typeColumn;
+    private final int fetchSize;
+
+    private final String getEvents;
+    private final String getEventsBySequence;
+    private final String getLastSequence;
+    private final int eventTables;
+
+    EventTableReader(JdbcEventRepository eventRepository, int fetchSize) {
+        this.transformer = eventRepository.getTransformer();
+        this.storageFormat = eventRepository.getStorageFormat();
+        this.typeColumn = eventRepository.getTypeColumn();
+        this.fetchSize = fetchSize;
+
+        List<String> tables = new ArrayList<>();
+        StringJoiner getEvents = new StringJoiner(" union all ", "", " order by global_sequence limit ?;");
+        StringJoiner getEventsBySequence = new StringJoiner(" union all ", "", " order by global_sequence;");
+        StringJoiner getLastSequence = new StringJoiner(" union all ", "select max(global_sequence) from (", ") s;");
+
+        tables.add(TableRouting.DEFAULT_EVENT_TABLE);
+
+        for (String group : eventRepository.getTableRouting().getGroups()) {
+            tables.add(TableRouting.getEventTable(group));
+        }
+
+        for (String table : tables) {
+            getEvents.add(String.format(GET_EVENTS, typeColumn.getName(), table));
+            getEventsBySequence.add(String.format(GET_EVENTS_BY_SEQUENCE, typeColumn.getName(), table));
+            getLastSequence.add(String.format(GET_LAST_SEQUENCE, null, table));
+        }
+
+        this.getEvents = getEvents.toString();
+        this.getEventsBySequence = getEventsBySequence.toString();
+        this.getLastSequence = getLastSequence.toString();
+        this.eventTables = tables.size();
+    }
+
+    /**
+     * Fetching in chunks requires the connection to not be in auto commit mode
+     *
+     * @return The number of events added, in order of their event sequence
+     */
+    int readAfter(Connection connection, long afterSequence, int limit, List<EventContainer<?>> events) throws SQLException {
+        int first = events.size();
+
+        try (PreparedStatement statement = connection.prepareStatement(getEvents)) {
+            for (int i = 0; i < eventTables; i++) {
+                statement.setLong(i * 2 + 1, afterSequence);
+                statement.setInt(i * 2 + 2, limit);
+            }
+
+            statement.setInt(eventTables * 2 + 1, limit);
+            read(statement, events);
+        }
+
+        return events.size() - first;
+    }
+
+    /**
+     * @return The number of the events found, they are added in order of their event sequence
+     */
+    int readSequences(Connection connection, Long[] sequences, List<EventContainer<?>> events) throws SQLException {
+        int first = events.size();
+        Array array = connection.createArrayOf("bigint", sequences);
+
+        try (PreparedStatement statement = connection.prepareStatement(getEventsBySequence)) {
+            for (int i = 1; i <= eventTables; i++) {
+                statement.setArray(i, array);
+            }
+
+            read(statement, events);
+        }
+
+        return events.size() - first;
+    }
+
+    long getLastSequence(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(getLastSequence);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * @return The checkpoint of the processing group, or null if it has never saved one
+     */
+    static Long loadCheckpoint(Connection connection, String processingGroup) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(GET_CHECKPOINT)) {
+            statement.setString(1, processingGroup);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : null;
+            }
+        }
+    }
+
+    static void saveCheckpoint(Connection connection, String processingGroup, long globalSequence) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SAVE_CHECKPOINT)) {
+            statement.setString(1, processingGroup);
+            statement.setLong(2, globalSequence);
+            statement.executeUpdate();
+        }
+    }
+
+    private void read(PreparedStatement statement, List<EventContainer<?>> events) throws SQLException {
+        statement.setFetchSize(fetchSize);
+
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                Class<?> type = typeColumn.read(resultSet);
+
+                events.add(new EventContainer<>(
+                        resultSet.getLong("global_sequence"),
+                        resultSet.getLong("aggregate_global_id"),
+                        deserialise(storageFormat.read(resultSet, "payload"), type),
+                        deserialise(storageFormat.read(resultSet, "metadata"), EventMetadata.class)
+                ));
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new EventSerialisationException(ex);
+        }
+    }
+
+    private <T> T deserialise(Object stored, Class<T> classOfT) {
+        try {
+            return storageFormat.deserialise(transformer, stored, classOfT);
+        } catch (Exception ex) {
+            throw new EventSerialisationException(ex);
+        }
+    }
+}
@@ -1,33 +1,128 @@
 package com.moppletop.ddd.event;
 
 import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.database.StorageFormat;
+import com.moppletop.ddd.database.TableRouting;
+import com.moppletop.ddd.database.TypeColumn;
 import com.moppletop.ddd.error.EventSerialisationException;
 import com.moppletop.ddd.transformer.ObjectTransformer;
-import lombok.RequiredArgsConstructor;
+import com.moppletop.ddd.transformer.TypeRegistry;
+import lombok.Getter;
 
 import java.sql.*;
+import java.util.*;
 
 /**
  * The JDBC implementation of the event repository
+ * <br>
+ * <br>
+ * Events are stored in the default event table, unless they are saved with the type of their aggregate and it is routed
+ * to tables of its own, see {@link TableRouting}
  */
-@RequiredArgsConstructor
 public class JdbcEventRepository implements EventRepository {
 
-    private static final String INSERT_EVENT = "insert into event (aggregate_global_id, class_name, payload, metadata) values (?,?,?,?)";
+    // %1$s and %2$s are the payload and metadata, see StorageFormat, %3$s and %4$s are the type column and its SQL type,
+    // see TypeColumn
+    private static final String INSERT_EVENT = "insert into event (aggregate_global_id, %3$s, payload, metadata) values (?,?,%1$s,%2$s)";
+    // Assigns the global sequences in the order the events were given, and returns each with the position of its event.
+    // %6$s is the element type of the payload and metadata arrays. The event tables of every group share the sequence of
+    // the default event table
+    private static final String INSERT_EVENTS = "with new_event as (" +
+            "select nextval(pg_get_serial_sequence('event', 'global_sequence')) as global_sequence, ordered.* " +
+            "from (select * from unnest(?::bigint[], ?::%4$s[], ?::%6$s[], ?::%6$s[]) with ordinality as e(aggregate_global_id, type, payload, metadata, ord) order by ord) ordered" +
+            "), saved_event as (" +
+            "insert into %5$s (global_sequence, aggregate_global_id, %3$s, payload, metadata) " +
+            "select new_event.global_sequence, new_event.aggregate_global_id, new_event.type, %1$s, %2$s from new_event" +
+            ") select ord, global_sequence from new_event";
+    // %5$s is the event table, see TableRouting. The events of an aggregate could be in any event table
+    private static final String GET_EVENTS_AFTER = "select global_sequence, %3$s, payload, metadata from %5$s " +
+            "where aggregate_global_id = ? and global_sequence > ?";
 
+    @Getter
     private final ObjectTransformer transformer;
+    @Getter
+    private final StorageFormat storageFormat;
+    @Getter
+    private final TypeColumn typeColumn;
+
+    @Getter
+    private final TableRouting tableRouting;
+
+    private final String insertEvent;
+    // The multi-row insert into the event table of each group, the default table is under an empty group
+    private final Map<String, String> insertEvents;
+    private final String getEventsAfter;
+    private final int eventTables;
+
+    public JdbcEventRepository(ObjectTransformer transformer) {
+        this(transformer, StorageFormat.JSON);
+    }
+
+    /**
+     * @param transformer Used to serialise event payloads and metadata
+     * @param storageFormat How events are stored, the <code>payload</code> and <code>metadata</code> columns must be of the
+     *                      matching type
+     */
+    public JdbcEventRepository(ObjectTransformer transformer, StorageFormat storageFormat) {
+        this(transformer, storageFormat, null);
+    }
+
+    /**
+     * @param transformer Used to serialise event payloads and metadata
+     * @param storageFormat How events are stored, the <code>payload</code> and <code>metadata</code> columns must be of the
+     *                      matching type
+     * @param typeRegistry If not null, event types are stored by their id in the registry in a <code>type_id</code> column
+     *                     rather than by class name, see {@link TypeColumn}
+     */
+    public JdbcEventRepository(ObjectTransformer transformer, StorageFormat storageFormat, TypeRegistry typeRegistry) {
+        this(transformer, storageFormat, typeRegistry, null);
+    }
+
+    /**
+     * @param transformer Used to serialise event payloads and metadata
+     * @param storageFormat How events are stored, the <code>payload</code> and <code>metadata</code> columns must be of the
+     *                      matching type, by default JSON
+     * @param typeRegistry If not null, event types are stored by their id in the registry in a <code>type_id</code> column
+     *                     rather than by class name, see {@link TypeColumn}
+     * @param tableRouting Which event table the events of each aggregate type are stored in, if null every event is stored
+     *                     in the default table. This must match the routing of the aggregate repository
+     */
+    public JdbcEventRepository(ObjectTransformer transformer, StorageFormat storageFormat, TypeRegistry typeRegistry, TableRouting tableRouting) {
+        this.transformer = transformer;
+        this.storageFormat = storageFormat == null ? StorageFormat.JSON : storageFormat;
+        this.typeColumn = TypeColumn.of(typeRegistry);
+        this.tableRouting = tableRouting == null ? TableRouting.none() : tableRouting;
+        this.insertEvent = String.format(INSERT_EVENT, this.storageFormat.parameter(), this.storageFormat.parameter(), typeColumn.getName(), typeColumn.getSqlType());
+        this.insertEvents = new HashMap<>();
+
+        List<String> groups = new ArrayList<>();
+        StringJoiner getEventsAfter = new StringJoiner(" union all ", "", " order by global_sequence;");
+
+        groups.add(null);
+        groups.addAll(this.tableRouting.getGroups());
+
+        for (String group : groups) {
+            String eventTable = TableRouting.getEventTable(group);
+
+            insertEvents.put(group == null ? "" : group, String.format(INSERT_EVENTS, this.storageFormat.fromArray("new_event.payload"), this.storageFormat.fromArray("new_event.metadata"), typeColumn.getName(), typeColumn.getSqlType(), eventTable, this.storageFormat.getArrayType()));
+            getEventsAfter.add(String.format(GET_EVENTS_AFTER, null, null, typeColumn.getName(), null, eventTable));
+        }
+
+        this.getEventsAfter = getEventsAfter.toString();
+        this.eventTables = groups.size();
+    }
 
     @Override
     public long saveEvent(ConnectionProvider connectionProvider, EventContainer<?> eventContainer) {
         Connection connection = connectionProvider.getConnection();
-        String payload = serialise(eventContainer.getPayload());
-        String metadata = serialise(eventContainer.getMetadata());
+        Object payload = serialise(eventContainer.getPayload());
+        Object metadata = serialise(eventContainer.getMetadata());
 
-        try (PreparedStatement statement = connection.prepareStatement(INSERT_EVENT, Statement.RETURN_GENERATED_KEYS)) {
+        try (PreparedStatement statement = connection.prepareStatement(insertEvent, Statement.RETURN_GENERATED_KEYS)) {
             statement.setLong(1, eventContainer.getGlobalAggregateId());
-            statement.setString(2, eventContainer.getEventName());
-            statement.setString(3, payload);
-            statement.setString(4, metadata);
+            typeColumn.bind(statement, 2, eventContainer.getEventName());
+            storageFormat.bind(statement, 3, payload);
+            storageFormat.bind(statement, 4, metadata);
 
             statement.executeUpdate();
 
@@ -43,9 +138,125 @@ public class JdbcEventRepository implements EventRepository {
         }
     }
 
-    private String serialise(Object aggregate) {
+    @Override
+    public long[] saveEvents(ConnectionProvider connectionProvider, List<? extends EventContainer<?>> eventContainers) {
+        if (eventContainers.size() <= 1) {
+            return eventContainers.isEmpty() ? new long[0] : new long[]{saveEvent(connectionProvider, eventContainers.get(0))};
+        }
+
+        return insertEvents(connectionProvider, insertEvents.get(""), eventContainers);
+    }
+
+    /**
+     * Saves events into the event table the aggregate type is routed to, see {@link TableRouting}. Events saved without
+     * their aggregate type are stored in the default event table
+     *
+     * @param connectionProvider The connection provider that will provide the relevant database connection (usually transaction bound)
+     * @param aggregateClassName The class name of the aggregate the events belong to
+     * @param eventContainers The events to be saved, in order
+     * @return The assigned event sequence numbers, in the same order as the events
+     */
+    public long[] saveEvents(ConnectionProvider connectionProvider, String aggregateClassName, List<? extends EventContainer<?>> eventContainers) {
+        String group = tableRouting.getGroup(aggregateClassName);
+
+        if (group == null) {
+            return saveEvents(connectionProvider, eventContainers);
+        }
+
+        if (eventContainers.isEmpty()) {
+            return new long[0];
+        }
+
+        return insertEvents(connectionProvider, insertEvents.get(group), eventContainers);
+    }
+
+    private long[] insertEvents(ConnectionProvider connectionProvider, String sql, List<? extends EventContainer<?>> eventContainers) {
+        Connection connection = connectionProvider.getConnection();
+        int count = eventContainers.size();
+        Long[] aggregateGlobalIds = new Long[count];
+        Object[] types = new Object[count];
+        Object[] payloads = storageFormat.newArray(count);
+        Object[] metadata = storageFormat.newArray(count);
+
+        for (int i = 0; i < count; i++) {
+            EventContainer<?> eventContainer = eventContainers.get(i);
+
+            aggregateGlobalIds[i] = eventContainer.getGlobalAggregateId();
+            types[i] = typeColumn.toValue(eventContainer.getEventName());
+            payloads[i] = serialise(eventContainer.getPayload());
+            metadata[i] = serialise(eventContainer.getMetadata());
+        }
+
+        // A single multi-row insert rather than a statement per event
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setArray(1, connection.createArrayOf("bigint", aggregateGlobalIds));
+            statement.setArray(2, connection.createArrayOf(typeColumn.getSqlType(), types));
+            statement.setArray(3, storageFormat.createArray(connection, payloads));
+            statement.setArray(4, storageFormat.createArray(connection, metadata));
+
+            long[] eventSequences = new long[count];
+            int returned = 0;
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    // The order of the returned rows isn't guaranteed, the ordinality places each sequence with its event
+                    eventSequences[resultSet.getInt("ord") - 1] = resultSet.getLong("global_sequence");
+                    returned++;
+                }
+            }
+
+            if (returned != count) {
+                throw new SQLException("Event insertion returned " + returned + " global sequences for " + count + " events!");
+            }
+            return eventSequences;
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public List<EventContainer<?>> loadEvents(ConnectionProvider connectionProvider, long aggregateGlobalId, long afterEventSequence) {
+        Connection connection = connectionProvider.getConnection();
+        List<EventContainer<?>> events = new ArrayList<>();
+
+        try (PreparedStatement statement = connection.prepareStatement(getEventsAfter)) {
+            for (int i = 0; i < eventTables; i++) {
+                statement.setLong(i * 2 + 1, aggregateGlobalId);
+                statement.setLong(i * 2 + 2, afterEventSequence);
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    Class<?> type = typeColumn.read(resultSet);
+
+                    events.add(new EventContainer<>(
+                            resultSet.getLong("global_sequence"),
+                            aggregateGlobalId,
+                            deserialise(storageFormat.read(resultSet, "payload"), type),
+                            deserialise(storageFormat.read(resultSet, "metadata"), EventMetadata.class)
+                    ));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new EventSerialisationException(ex);
+        }
+
+        return events;
+    }
+
+    private <T> T deserialise(Object stored, Class<T> classOfT) {
+        try {
+            return storageFormat.deserialise(transformer, stored, classOfT);
+        } catch (Exception ex) {
+            throw new EventSerialisationException(ex);
+        }
+    }
+
+    private Object serialise(Object event) {
         try {
-            return transformer.serialise(aggregate);
+            return storageFormat.serialise(transformer, event);
         } catch (Exception ex) {
             throw new EventSerialisationException(ex);
         }
@@ -0,0 +1,394 @@
+package com.moppletop.ddd.event;
+
+import com.moppletop.ddd.database.TableRouting;
+import com.moppletop.ddd.util.EventStreamThreadFactory;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The JDBC implementation of the event streamer, which polls the event table itself rather than relying on change data
+ * capture and a broker.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Events are read in batches ordered by <code>global_sequence</code>, continuing from the last event read, across
+ *     every event table (see {@link TableRouting})</li>
+ *     <li>The sequence is assigned when an event is inserted but the event only becomes visible once its transaction
+ *     commits, so a later event can be read before an earlier one. Skipped sequences are remembered as gaps and looked
+ *     for again on every poll, until they turn up or the gap timeout passes, after which they are assumed to have been
+ *     rolled back</li>
+ *     <li>The progress of each processing group is checkpointed in the <code>event_checkpoint</code> table, below the
+ *     oldest open gap, so after a restart events may be handled again. Delivery is at least once</li>
+ *     <li>Only one node polls for a processing group at a time, it holds a session advisory lock on a connection of its
+ *     own while it does, the others wait to take over</li>
+ *     <li>With more than one thread, each batch is split by aggregate so the events of an aggregate are still handled
+ *     in order, and the next batch is only read once the whole batch has been handled</li>
+ *     <li>If a stream event handler throws, the checkpoint is moved to just before the failed event, and after backing off
+ *     for 1 second the events from there on are read again</li>
+ *     <li>The data source must not be a {@link com.moppletop.ddd.database.TransactionAwareDataSourceProxy}, as the
+ *     streamer commits its own connections</li>
+ * </ul>
+ */
+@Slf4j
+public class JdbcPollingEventStreamer implements EventStreamer {
+
+    // Keeps the locks of processing groups apart from the advisory locks of aggregates, which use a single bigint key
+    private static final int LOCK_NAMESPACE = 0x0DDD;
+    // Past this many open gaps, further skipped sequences are assumed to have been rolled back straight away
+    private static final int MAX_GAPS = 100_000;
+
+    private static final String TRY_LOCK = "select pg_try_advisory_lock(?, ?);";
+
+    private final DataSource dataSource;
+    private final EventGateway eventGateway;
+    private final EventTableReader reader;
+    private final int batchSize;
+    private final long pollingRate;
+    private final long gapTimeout;
+    private final boolean fromLatest;
+
+    private final AtomicBoolean running;
+    private final List<Subscription> subscriptions;
+
+    /**
+     * @param dataSource The database of the event table
+     * @param eventRepository The repository which stored the events, for their storage format, type column and tables
+     * @param eventGateway Handed every event read
+     * @param batchSize The maximum number of events read in one poll, by default 1000
+     * @param fetchSize The number of events fetched from the database at a time, by default the batch size
+     * @param pollingRate How long to wait after a poll which found no new events, by default 100 milliseconds
+     * @param gapTimeout How long to wait for a skipped sequence to be committed before assuming it was rolled back, by
+     *                   default 10 seconds. This must be longer than the longest transaction which saves events
+     * @param fromLatest Whether a processing group without a checkpoint starts after the latest event rather than from the
+     *                   first, by default false
+     */
+    @Builder
+    public JdbcPollingEventStreamer(DataSource dataSource,
+                                    JdbcEventRepository eventRepository,
+                                    EventGateway eventGateway,
+                                    Integer batchSize,
+                                    Integer fetchSize,
+                                    Duration pollingRate,
+                                    Duration gapTimeout,
+                                    Boolean fromLatest
+    ) {
+        if (dataSource == null || eventRepository == null || eventGateway == null) {
+            throw new IllegalArgumentException("A data source, event repository and event gateway must be provided!");
+        }
+
+        this.dataSource = dataSource;
+        this.eventGateway = eventGateway;
+        this.batchSize = Math.max(1, batchSize == null ? 1000 : batchSize);
+        this.reader = new EventTableReader(eventRepository, fetchSize == null ? this.batchSize : fetchSize);
+        this.pollingRate = pollingRate == null ? 100 : pollingRate.toMillis();
+        this.gapTimeout = TimeUnit.MILLISECONDS.toNanos(gapTimeout == null ? 10_000 : gapTimeout.toMillis());
+        this.fromLatest = fromLatest != null && fromLatest;
+
+        this.running = new AtomicBoolean(true);
+        this.subscriptions = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Override
+    public void subscribe(String processingGroup, int threads) {
+        log.debug("Subscribing with {} thread{} to processing group {}", threads, threads == 1 ? "" : "s", processingGroup);
+        ThreadFactory threadFactory = new EventStreamThreadFactory(processingGroup);
+        Subscription subscription = new Subscription(processingGroup, threads, threads > 1 ? Executors.newFixedThreadPool(threads, threadFactory) : null);
+
+        subscriptions.add(subscription);
+        threadFactory.newThread(subscription).start();
+    }
+
+    @Override
+    public void shutdown() {
+        log.info("Shutting down JDBC polling event streamer...");
+        running.set(false);
+    }
+
+    private class Subscription implements Runnable {
+
+        private final String processingGroup;
+        private final int threads;
+        private final ExecutorService workers;
+
+        // Sequences skipped over which might still be committed, by when they were first skipped
+        private final TreeMap<Long, Long> gaps = new TreeMap<>();
+        private Connection lockConnection;
+        private long position;
+        private long checkpoint;
+
+        private Subscription(String processingGroup, int threads, ExecutorService workers) {
+            this.processingGroup = processingGroup;
+            this.threads = threads;
+            this.workers = workers;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running.get()) {
+                    try {
+                        if (!hasLock()) {
+                            sleep(Math.max(pollingRate, 1000));
+                        } else if (!poll()) {
+                            sleep(pollingRate);
+                        }
+                    } catch (SQLException | RuntimeException ex) {
+                        log.error("Polling events for processing group {} failed, backing off for 1 second...", processingGroup, ex);
+                        releaseLock();
+                        sleep(1000);
+                    }
+                }
+            } finally {
+                releaseLock();
+
+                if (workers != null) {
+                    workers.shutdown();
+                }
+            }
+        }
+
+        // Whether this node is the one polling for the processing group, taking over if no node is
+        private boolean hasLock() throws SQLException {
+            if (lockConnection != null) {
+                if (lockConnection.isValid(5)) {
+                    return true;
+                }
+
+                releaseLock();
+            }
+
+            Connection connection = dataSource.getConnection();
+            boolean locked = false;
+
+            try {
+                try (PreparedStatement statement = connection.prepareStatement(TRY_LOCK)) {
+                    statement.setInt(1, LOCK_NAMESPACE);
+                    statement.setInt(2, processingGroup.hashCode());
+
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        locked = resultSet.next() && resultSet.getBoolean(1);
+                    }
+                }
+
+                // The lock belongs to the session, it outlives the transaction
+                commit(connection);
+
+                if (locked) {
+                    lockConnection = connection;
+                    gaps.clear();
+                    position = loadCheckpoint();
+                    checkpoint = position;
+
+                    log.info("Polling events for processing group {} from event sequence {}", processingGroup, position);
+                }
+            } finally {
+                if (!locked) {
+                    connection.close();
+                }
+            }
+
+            return locked;
+        }
+
+        private void releaseLock() {
+            if (lockConnection != null) {
+                // Closing the session releases the lock
+                try {
+                    lockConnection.close();
+                } catch (SQLException ex) {
+                    log.warn("Failed to close the lock connection of processing group {}", processingGroup, ex);
+                }
+
+                lockConnection = null;
+            }
+        }
+
+        // Returns whether a full batch was read, so there may be more waiting
+        private boolean poll() throws SQLException {
+            List<EventContainer<?>> events = new ArrayList<>();
+            int read;
+
+            try (Connection connection = dataSource.getConnection()) {
+                boolean autoCommit = connection.getAutoCommit();
+
+                // Fetching in chunks with a cursor needs a transaction
+                connection.setAutoCommit(false);
+
+                try {
+                    if (!gaps.isEmpty()) {
+                        readMissingEvents(connection, events);
+                    }
+
+                    read = readEvents(connection, events);
+                    connection.commit();
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            }
+
+            long failedSequence = dispatch(events);
+
+            if (failedSequence >= 0) {
+                // Read everything from the failed event on again, the gaps after it will be found again if still missing
+                position = failedSequence - 1;
+                gaps.tailMap(failedSequence, true).clear();
+                saveCheckpoint();
+
+                log.error("A stream event handler of processing group {} threw an unhandled exception, backing off for 1 second and attempting to reprocess from event sequence {}...", processingGroup, failedSequence);
+                sleep(1000);
+                return false;
+            }
+
+            expireGaps();
+            saveCheckpoint();
+            return read == batchSize;
+        }
+
+        // Adds the events which filled gaps, they are all before the new events
+        private void readMissingEvents(Connection connection, List<EventContainer<?>> events) throws SQLException {
+            reader.readSequences(connection, gaps.keySet().stream().limit(batchSize).toArray(Long[]::new), events);
+
+            for (EventContainer<?> event : events) {
+                gaps.remove(event.getGlobalSequence());
+            }
+        }
+
+        private int readEvents(Connection connection, List<EventContainer<?>> events) throws SQLException {
+            int first = events.size();
+            long now = System.nanoTime();
+
+            reader.readAfter(connection, position, batchSize, events);
+
+            for (int i = first; i < events.size(); i++) {
+                long sequence = events.get(i).getGlobalSequence();
+
+                for (long skipped = position + 1; skipped < sequence && gaps.size() < MAX_GAPS; skipped++) {
+                    gaps.put(skipped, now);
+                }
+
+                position = sequence;
+            }
+
+            return events.size() - first;
+        }
+
+        // Returns the sequence of the first event which failed, or -1 if every event was handled
+        private long dispatch(List<EventContainer<?>> events) {
+            if (workers == null || events.size() < 2) {
+                return handle(events);
+            }
+
+            List<List<EventContainer<?>>> lanes = new ArrayList<>(threads);
+
+            for (int i = 0; i < threads; i++) {
+                lanes.add(new ArrayList<>());
+            }
+
+            for (EventContainer<?> event : events) {
+                lanes.get(Math.floorMod(Long.hashCode(event.getGlobalAggregateId()), threads)).add(event);
+            }
+
+            List<Future<Long>> results = new ArrayList<>(threads);
+
+            for (List<EventContainer<?>> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    results.add(workers.submit(() -> handle(lane)));
+                }
+            }
+
+            long failedSequence = -1;
+
+            for (Future<Long> result : results) {
+                long laneFailure;
+
+                try {
+                    laneFailure = result.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    throw new IllegalStateException("Failed to wait for the events of processing group " + processingGroup, ex);
+                }
+
+                if (laneFailure >= 0 && (failedSequence < 0 || laneFailure < failedSequence)) {
+                    failedSequence = laneFailure;
+                }
+            }
+
+            return failedSequence;
+        }
+
+        private long handle(List<EventContainer<?>> events) {
+            for (EventContainer<?> event : events) {
+                try {
+                    eventGateway.handleStreamedEvent(processingGroup, event);
+                } catch (Exception ex) {
+                    log.error("Failed to handle event sequence {} in processing group {}", event.getGlobalSequence(), processingGroup, ex);
+                    return event.getGlobalSequence();
+                }
+            }
+
+            return -1;
+        }
+
+        private void expireGaps() {
+            long now = System.nanoTime();
+            Iterator<Map.Entry<Long, Long>> iterator = gaps.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Map.Entry<Long, Long> gap = iterator.next();
+
+                if (now - gap.getValue() >= gapTimeout) {
+                    log.debug("Event sequence {} was never committed, skipping it in processing group {}", gap.getKey(), processingGroup);
+                    iterator.remove();
+                }
+            }
+        }
+
+        private long loadCheckpoint() throws SQLException {
+            try (Connection connection = dataSource.getConnection()) {
+                Long saved = EventTableReader.loadCheckpoint(connection, processingGroup);
+
+                if (saved == null && fromLatest) {
+                    saved = reader.getLastSequence(connection);
+                }
+
+                commit(connection);
+                return saved == null ? 0 : saved;
+            }
+        }
+
+        private void saveCheckpoint() throws SQLException {
+            long safe = gaps.isEmpty() ? position : Math.min(position, gaps.firstKey() - 1);
+
+            if (safe == checkpoint) {
+                return;
+            }
+
+            try (Connection connection = dataSource.getConnection()) {
+                EventTableReader.saveCheckpoint(connection, processingGroup, safe);
+                commit(connection);
+            }
+
+            checkpoint = safe;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static void commit(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+}
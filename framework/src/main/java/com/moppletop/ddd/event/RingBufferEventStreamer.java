@@ -0,0 +1,529 @@
+package com.moppletop.ddd.event;
+
+import com.moppletop.ddd.util.EventStreamThreadFactory;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory event streamer for a single node, events are handed over by the
+ * {@link com.moppletop.ddd.command.DefaultCommandGateway} as soon as their transaction commits, rather than going through
+ * the database and a broker. Set it as the command gateway's event publisher.
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Events are published to a ring buffer allocated up front. Publishers claim slots with a compare and swap and mark
+ *     each slot as written, consumers read every slot marked in order, so neither side takes a lock</li>
+ *     <li>Each processing group has one consumer per thread, each consumer reads every event but only handles those of the
+ *     aggregates assigned to it, so the events of an aggregate are handled in order. A consumer handles everything
+ *     available, up to the maximum batch size, before moving its position on</li>
+ *     <li>Delivery is best effort. Events published while the slowest consumer is a whole buffer behind are dropped rather
+ *     than holding up the committing thread, events of failed handlers are logged and not retried, and events still
+ *     in the buffer are lost when the node stops</li>
+ *     <li>Events reach the buffer in the order their transactions commit, which is not necessarily the order of their
+ *     event sequence, only the events of each aggregate are in order</li>
+ *     <li>With a data source and event repository, each processing group first catches up from the event table, after its
+ *     checkpoint in the <code>event_checkpoint</code> table, and saves its checkpoint every second from then on</li>
+ *     <li>The checkpoint is a low-water mark, every event up to it has been handled. Sequences missing below a handled event
+ *     are either still being handled by another consumer, not committed yet, or were rolled back. Like the
+ *     {@link JdbcPollingEventStreamer}, a missing sequence is assumed to have been rolled back once the gap timeout has
+ *     passed and the buffer has been read past everything published by then</li>
+ *     <li>Once events have been dropped, the checkpoint never moves past the first of them, so they are handled by the
+ *     catch-up after the node restarts</li>
+ * </ul>
+ */
+@Slf4j
+public class RingBufferEventStreamer implements EventStreamer, EventPublisher {
+
+    private static final int CATCH_UP_BATCH_SIZE = 1000;
+    // Past this many open gaps, further missing sequences are assumed to have been rolled back straight away
+    private static final int MAX_GAPS = 100_000;
+
+    /**
+     * What a consumer does while there are no events to handle
+     */
+    public enum WaitStrategy {
+
+        /**
+         * Keeps checking for events, the lowest latency but occupies a core per consumer
+         */
+        BUSY_SPIN,
+        /**
+         * Spins for a while, then yields to other threads between checks
+         */
+        YIELD,
+        /**
+         * Spins, then yields, then parks for a short time between checks, the least CPU but adds latency once idle
+         */
+        PARK;
+
+        private static final int SPINS = 100;
+        private static final int YIELDS = 100;
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        // Returns the counter for the next wait, it is reset to 0 once there is an event
+        private int idle(int counter) {
+            if (this == BUSY_SPIN || counter < SPINS) {
+                return counter + 1;
+            }
+
+            if (this == YIELD || counter < SPINS + YIELDS) {
+                Thread.yield();
+                return counter + 1;
+            }
+
+            LockSupport.parkNanos(PARK_NANOS);
+            return counter;
+        }
+    }
+
+    private final EventGateway eventGateway;
+    private final WaitStrategy waitStrategy;
+    private final int maxBatchSize;
+    private final DataSource dataSource;
+    private final EventTableReader reader;
+    private final long gapTimeout;
+
+    private final EventContainer<?>[] entries;
+    // The ring sequence last written to each slot, a slot can only be read once it holds the sequence being read
+    private final AtomicLongArray written;
+    private final int mask;
+    private final AtomicLong claimed;
+
+    private final List<Consumer> consumers;
+    private final AtomicBoolean running;
+    private final LongAdder dropped;
+    // The lowest event sequence dropped, checkpoints never move past it
+    private final AtomicLong firstDropped;
+
+    /**
+     * @param eventGateway Handed every event published
+     * @param bufferSize The number of events the buffer holds, rounded up to a power of two, by default 8192
+     * @param waitStrategy What consumers do while there are no events, by default {@link WaitStrategy#PARK}
+     * @param maxBatchSize The maximum number of events a consumer handles before moving its position on, by default 256
+     * @param dataSource The database of the event table, to catch up from on startup. Catching up requires the event
+     *                   repository as well
+     * @param eventRepository The repository which stored the events, to catch up from on startup
+     * @param gapTimeout How long to wait for a missing sequence before assuming it was rolled back, when checkpointing,
+     *                   by default 10 seconds. This must be longer than the longest transaction which saves events
+     */
+    @Builder
+    public RingBufferEventStreamer(EventGateway eventGateway,
+                                   Integer bufferSize,
+                                   WaitStrategy waitStrategy,
+                                   Integer maxBatchSize,
+                                   DataSource dataSource,
+                                   JdbcEventRepository eventRepository,
+                                   Duration gapTimeout
+    ) {
+        if (eventGateway == null) {
+            throw new IllegalArgumentException("An event gateway must be provided!");
+        }
+
+        if ((dataSource == null) != (eventRepository == null)) {
+            throw new IllegalArgumentException("Catching up requires both a data source and an event repository!");
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize == null ? 8192 : bufferSize) * 2 - 1);
+
+        this.eventGateway = eventGateway;
+        this.waitStrategy = waitStrategy == null ? WaitStrategy.PARK : waitStrategy;
+        this.maxBatchSize = Math.max(1, maxBatchSize == null ? 256 : maxBatchSize);
+        this.dataSource = dataSource;
+        this.reader = eventRepository == null ? null : new EventTableReader(eventRepository, CATCH_UP_BATCH_SIZE);
+        this.gapTimeout = TimeUnit.MILLISECONDS.toNanos(gapTimeout == null ? 10_000 : gapTimeout.toMillis());
+
+        this.entries = new EventContainer<?>[capacity];
+        this.written = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.claimed = new AtomicLong(-1);
+
+        for (int i = 0; i < capacity; i++) {
+            written.set(i, -1);
+        }
+
+        this.consumers = new CopyOnWriteArrayList<>();
+        this.running = new AtomicBoolean(true);
+        this.dropped = new LongAdder();
+        this.firstDropped = new AtomicLong(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void publish(List<? extends EventContainer<?>> eventContainers) {
+        int count = eventContainers.size();
+
+        if (count == 0 || consumers.isEmpty()) {
+            return;
+        }
+
+        long current;
+        long next;
+
+        do {
+            current = claimed.get();
+            next = current + count;
+
+            if (next - getSlowestSequence(current) > entries.length) {
+                if (dropped.sum() == 0) {
+                    log.warn("The event stream buffer is full, events are being dropped, see getDropped()");
+                }
+
+                dropped.add(count);
+
+                for (EventContainer<?> event : eventContainers) {
+                    firstDropped.accumulateAndGet(event.getGlobalSequence(), Math::min);
+                }
+
+                return;
+            }
+        } while (!claimed.compareAndSet(current, next));
+
+        for (int i = 0; i < count; i++) {
+            long sequence = current + 1 + i;
+            int slot = (int) sequence & mask;
+
+            entries[slot] = eventContainers.get(i);
+            written.set(slot, sequence);
+        }
+    }
+
+    @Override
+    public void subscribe(String processingGroup, int threads) {
+        log.debug("Subscribing with {} thread{} to processing group {}", threads, threads == 1 ? "" : "s", processingGroup);
+        ThreadFactory threadFactory = new EventStreamThreadFactory(processingGroup);
+        Group group = new Group(processingGroup);
+
+        // The first consumer catches up for the whole group before starting the others
+        threadFactory.newThread(() -> {
+            List<Consumer> groupConsumers = new ArrayList<>(threads);
+
+            catchUp(group, false);
+
+            for (int lane = 0; lane < threads; lane++) {
+                Consumer consumer = new Consumer(group, lane, threads);
+
+                groupConsumers.add(consumer);
+                consumers.add(consumer);
+            }
+
+            // Anything committed between catching up and the consumers being added is in the table, and may be in the
+            // buffer as well
+            catchUp(group, true);
+
+            for (int lane = 1; lane < threads; lane++) {
+                threadFactory.newThread(groupConsumers.get(lane)).start();
+            }
+
+            groupConsumers.get(0).run();
+        }).start();
+    }
+
+    @Override
+    public void shutdown() {
+        log.info("Shutting down ring buffer event streamer...");
+        running.set(false);
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private long getSlowestSequence(long claimed) {
+        long slowest = claimed;
+
+        for (Consumer consumer : consumers) {
+            slowest = Math.min(slowest, consumer.sequence);
+        }
+
+        return slowest;
+    }
+
+    // The final catch up runs once the consumers have been added, the events it delivers may be in the buffer too
+    private void catchUp(Group group, boolean last) {
+        if (dataSource == null) {
+            return;
+        }
+
+        List<EventContainer<?>> events = new ArrayList<>();
+
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+
+            connection.setAutoCommit(false);
+
+            try {
+                if (group.mark < 0) {
+                    Long checkpoint = EventTableReader.loadCheckpoint(connection, group.name);
+
+                    group.start(checkpoint == null ? 0 : checkpoint);
+                }
+
+                // Sequences skipped by the first catch up which may have been committed since
+                if (last && !group.gaps.isEmpty()) {
+                    reader.readSequences(connection, group.gaps.keySet().toArray(new Long[0]), events);
+                    group.catchUp(events, true);
+                }
+
+                int read;
+
+                do {
+                    events.clear();
+                    read = reader.readAfter(connection, group.readPosition, CATCH_UP_BATCH_SIZE, events);
+                    group.catchUp(events, last);
+                } while (read == CATCH_UP_BATCH_SIZE && running.get());
+
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+
+            group.advance(Long.MIN_VALUE);
+            log.info("Processing group {} caught up to event sequence {}", group.name, group.readPosition);
+        } catch (SQLException | RuntimeException ex) {
+            log.error("Failed to catch up processing group {} from the event table", group.name, ex);
+        }
+    }
+
+    private class Group {
+
+        private final String name;
+        // Events handled after the low-water mark, only tracked while there is a checkpoint to save
+        private final ConcurrentSkipListSet<Long> handled = new ConcurrentSkipListSet<>();
+        // Events delivered by the final catch up, the consumer of each skips it if it is in the buffer as well
+        private final Set<Long> caughtUp = ConcurrentHashMap.newKeySet();
+
+        // The rest is only used by the first consumer of the group, which also catches up
+        // Events read from the buffer which another consumer of the group handles
+        private final TreeSet<Long> seen = new TreeSet<>();
+        private final TreeMap<Long, Gap> gaps = new TreeMap<>();
+        // Every event up to here has been handled, or was rolled back
+        private long mark = -1;
+        private long gapsUpTo;
+        private long readPosition;
+        private long checkpoint;
+        private long checkpointedAt = System.nanoTime();
+
+        private Group(String name) {
+            this.name = name;
+        }
+
+        private void start(long checkpoint) {
+            this.mark = checkpoint;
+            this.gapsUpTo = checkpoint;
+            this.readPosition = checkpoint;
+            this.checkpoint = checkpoint;
+        }
+
+        private boolean isTracking() {
+            return mark >= 0 && firstDropped.get() == Long.MAX_VALUE;
+        }
+
+        private void catchUp(List<EventContainer<?>> events, boolean last) {
+            for (EventContainer<?> event : events) {
+                if (last) {
+                    caughtUp.add(event.getGlobalSequence());
+                }
+
+                handle(event);
+                readPosition = Math.max(readPosition, event.getGlobalSequence());
+            }
+        }
+
+        private void handle(EventContainer<?> event) {
+            try {
+                eventGateway.handleStreamedEvent(name, event);
+            } catch (Exception ex) {
+                log.error("Failed to handle event sequence {} in processing group {}, skipping it", event.getGlobalSequence(), name, ex);
+            }
+
+            if (isTracking()) {
+                handled.add(event.getGlobalSequence());
+            }
+        }
+
+        // Moves the low-water mark over the events handled and the sequences rolled back. Missing sequences are only
+        // assumed to have been rolled back once the first consumer has read past the given ring sequence
+        private void advance(long readUpTo) {
+            if (mark < 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long limit = firstDropped.get();
+
+            handled.headSet(mark, true).clear();
+
+            while (mark + 1 < limit) {
+                long next = mark + 1;
+
+                if (handled.remove(next)) {
+                    mark = next;
+                } else if (seen.contains(next) || handled.isEmpty() || !isRolledBack(next, handled.first(), now, readUpTo)) {
+                    // Still to be handled by another consumer, or nothing after it has been handled yet
+                    break;
+                } else {
+                    log.debug("Event sequence {} was never committed, skipping it in processing group {}", next, name);
+                    mark = next;
+                }
+            }
+
+            seen.headSet(mark, true).clear();
+            gaps.headMap(mark, true).clear();
+
+            if (!isTracking()) {
+                // Events have been dropped, the mark can't move past them until a restart catches up
+                handled.clear();
+                seen.clear();
+            }
+        }
+
+        private boolean isRolledBack(long missing, long nextHandled, long now, long readUpTo) {
+            for (long sequence = Math.max(missing, gapsUpTo + 1); sequence < nextHandled && gaps.size() < MAX_GAPS; sequence++) {
+                gaps.put(sequence, new Gap(now));
+            }
+
+            gapsUpTo = Math.max(gapsUpTo, nextHandled - 1);
+            Gap gap = gaps.get(missing);
+
+            if (gap == null) {
+                return true;
+            }
+
+            if (now - gap.since < gapTimeout) {
+                return false;
+            }
+
+            // Anything committed before the timeout has been published by now, once it has all been read it isn't coming
+            if (gap.publishedUpTo == Long.MIN_VALUE) {
+                gap.publishedUpTo = claimed.get();
+            }
+
+            return readUpTo >= gap.publishedUpTo;
+        }
+
+        // Only called by the first consumer of the group
+        private void saveCheckpoint(long readUpTo, boolean force) {
+            long now = System.nanoTime();
+
+            if (dataSource == null || (!force && now - checkpointedAt < TimeUnit.SECONDS.toNanos(1))) {
+                return;
+            }
+
+            checkpointedAt = now;
+            advance(readUpTo);
+
+            if (mark < 0 || mark == checkpoint) {
+                return;
+            }
+
+            try (Connection connection = dataSource.getConnection()) {
+                EventTableReader.saveCheckpoint(connection, name, mark);
+
+                if (!connection.getAutoCommit()) {
+                    connection.commit();
+                }
+
+                checkpoint = mark;
+            } catch (SQLException ex) {
+                log.warn("Failed to save the checkpoint of processing group {}", name, ex);
+            }
+        }
+    }
+
+    private static class Gap {
+
+        private final long since;
+        // The ring sequence claimed once the gap timed out
+        private long publishedUpTo = Long.MIN_VALUE;
+
+        private Gap(long since) {
+            this.since = since;
+        }
+    }
+
+    private class Consumer implements Runnable {
+
+        private final Group group;
+        private final int lane;
+        private final int lanes;
+
+        // The last ring sequence this consumer has finished with, publishers never write past it
+        private volatile long sequence;
+
+        private Consumer(Group group, int lane, int lanes) {
+            this.group = group;
+            this.lane = lane;
+            this.lanes = lanes;
+            this.sequence = claimed.get();
+        }
+
+        @Override
+        public void run() {
+            long next = sequence + 1;
+            int idle = 0;
+
+            try {
+                while (running.get()) {
+                    long available = next - 1;
+
+                    while (available + 1 - next < maxBatchSize && written.get((int) (available + 1) & mask) == available + 1) {
+                        available++;
+                    }
+
+                    if (available < next) {
+                        idle = waitStrategy.idle(idle);
+                    } else {
+                        idle = 0;
+
+                        for (long current = next; current <= available; current++) {
+                            EventContainer<?> event = entries[(int) current & mask];
+                            long globalSequence = event.getGlobalSequence();
+
+                            if (lanes == 1 || Math.floorMod(Long.hashCode(event.getGlobalAggregateId()), lanes) == lane) {
+                                // Skip it if the final catch up handled it already
+                                if (group.caughtUp.isEmpty() || !group.caughtUp.remove(globalSequence)) {
+                                    group.handle(event);
+                                }
+                            } else if (lane == 0 && group.isTracking() && globalSequence > group.mark) {
+                                group.seen.add(globalSequence);
+                            }
+                        }
+
+                        sequence = available;
+                        next = available + 1;
+                    }
+
+                    if (lane == 0) {
+                        group.saveCheckpoint(sequence, false);
+                    }
+                }
+            } finally {
+                // Stop holding back publishers
+                consumers.remove(this);
+
+                if (lane == 0) {
+                    group.saveCheckpoint(sequence, true);
+                }
+            }
+        }
+    }
+}
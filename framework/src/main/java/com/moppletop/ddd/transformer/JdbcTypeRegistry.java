@@ -0,0 +1,171 @@
+package com.moppletop.ddd.transformer;
+
+import com.moppletop.ddd.error.TypeNotFoundException;
+import com.moppletop.ddd.util.ClassResolver;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The JDBC implementation of the type registry, types are stored in the <code>type_registry</code> table and kept in
+ * memory once read
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Types are looked up by id with an array index, and by class name with a hash lookup</li>
+ *     <li>An id which isn't known yet, for example one registered by another node, reloads the whole table</li>
+ *     <li>New types are registered with a connection of their own which is committed straight away, so the id is never
+ *     lost to a rolled back transaction. For that reason the data source must not be a
+ *     {@link com.moppletop.ddd.database.TransactionAwareDataSourceProxy}</li>
+ *     <li>Ids are never reused, renaming or moving a class only requires updating the <code>class_name</code> of its
+ *     row, followed by a restart of the nodes reading it</li>
+ * </ul>
+ */
+public class JdbcTypeRegistry implements TypeRegistry {
+
+    private static final String GET_TYPES = "select type_id, class_name from type_registry;";
+    private static final String INSERT_TYPE = "insert into type_registry (class_name) values (?) on conflict (class_name) do nothing;";
+
+    private final DataSource dataSource;
+    private final Map<String, Integer> typeIds = new ConcurrentHashMap<>();
+    // Indexed by type id, replaced as a whole whenever the table is reloaded
+    private volatile RegisteredType[] types = new RegisteredType[0];
+
+    /**
+     * @param dataSource The data source to read and register types with
+     */
+    public JdbcTypeRegistry(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public int getTypeId(String className) {
+        Integer typeId = typeIds.get(className);
+
+        if (typeId == null) {
+            typeId = register(className);
+        }
+
+        return typeId;
+    }
+
+    @Override
+    public String getClassName(int typeId) {
+        return getRegisteredType(typeId).className;
+    }
+
+    @Override
+    public Class<?> getType(int typeId) throws ClassNotFoundException {
+        return getRegisteredType(typeId).resolve();
+    }
+
+    /**
+     * Reads every type from the table, for example to avoid doing so while handling the first command
+     */
+    public synchronized void reload() {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(GET_TYPES)) {
+            Map<Integer, String> classNames = new HashMap<>();
+            int maxTypeId = 0;
+
+            while (resultSet.next()) {
+                int typeId = resultSet.getInt("type_id");
+
+                classNames.put(typeId, resultSet.getString("class_name"));
+                maxTypeId = Math.max(maxTypeId, typeId);
+            }
+
+            RegisteredType[] current = types;
+            RegisteredType[] reloaded = new RegisteredType[maxTypeId + 1];
+
+            classNames.forEach((typeId, className) -> {
+                // Keep the resolved class of types which haven't changed
+                RegisteredType type = typeId < current.length ? current[typeId] : null;
+
+                reloaded[typeId] = type != null && type.className.equals(className) ? type : new RegisteredType(className);
+                typeIds.put(className, typeId);
+            });
+
+            types = reloaded;
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private synchronized int register(String className) {
+        Integer typeId = typeIds.get(className);
+
+        if (typeId != null) {
+            return typeId;
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(INSERT_TYPE)) {
+            statement.setString(1, className);
+            statement.executeUpdate();
+
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        // Whether it was inserted here or by another node, it's in the table now
+        reload();
+        typeId = typeIds.get(className);
+
+        if (typeId == null) {
+            throw new TypeNotFoundException("The type " + className + " could not be registered");
+        }
+
+        return typeId;
+    }
+
+    private RegisteredType getRegisteredType(int typeId) {
+        RegisteredType type = lookup(typeId);
+
+        if (type == null) {
+            reload();
+            type = lookup(typeId);
+
+            if (type == null) {
+                throw new TypeNotFoundException("No type is registered with the id " + typeId);
+            }
+        }
+
+        return type;
+    }
+
+    private RegisteredType lookup(int typeId) {
+        RegisteredType[] types = this.types;
+
+        return typeId >= 0 && typeId < types.length ? types[typeId] : null;
+    }
+
+    private static class RegisteredType {
+
+        private final String className;
+        private volatile Class<?> type;
+
+        private RegisteredType(String className) {
+            this.className = className;
+        }
+
+        private Class<?> resolve() throws ClassNotFoundException {
+            Class<?> type = this.type;
+
+            if (type == null) {
+                type = ClassResolver.resolve(className);
+                this.type = type;
+            }
+
+            return type;
+        }
+    }
+}
@@ -1,28 +1,109 @@
 package com.moppletop.ddd.transformer.jackson;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.moppletop.ddd.transformer.BinaryFormat;
 import com.moppletop.ddd.transformer.ObjectTransformer;
 
-import java.util.Map;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * A Jackson implementation of the object transformer
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>An {@link ObjectReader} and {@link ObjectWriter} is built once per class and kept in a {@link ClassValue}, so
+ *     the serialisers and deserialisers of a class are only looked up the first time it is used</li>
+ *     <li>{@link JacksonObjectTransformer#warmUp(Collection)} builds them ahead of time, for example for everything
+ *     registered with the wiring manager on startup</li>
+ *     <li>Extra modules can be registered, {@link JacksonObjectTransformer#findAccessorModules()} finds the Blackbird or
+ *     Afterburner module if either is on the classpath, which replace reflective field access and construction with
+ *     generated accessors</li>
+ * </ul>
  */
 public class JacksonObjectTransformer implements ObjectTransformer {
 
-    private final ObjectMapper objectMapper;
+    private static final String BLACKBIRD_MODULE = "com.fasterxml.jackson.module.blackbird.BlackbirdModule";
+    private static final String AFTERBURNER_MODULE = "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+
+    private final TypedMapper jsonMapper;
 
     public JacksonObjectTransformer() {
-        this.objectMapper = new ObjectMapper();
+        this(new Module[0]);
+    }
+
+    /**
+     * @param modules Extra modules to register with the mappers, for example those returned by
+     *                {@link JacksonObjectTransformer#findAccessorModules()}
+     */
+    public JacksonObjectTransformer(Module... modules) {
+        this.jsonMapper = new TypedMapper(configure(new ObjectMapper(), modules));
+    }
+
+    /**
+     * @return A transformer using the accessor module found on the classpath, if there is one
+     * @see JacksonObjectTransformer#findAccessorModules()
+     */
+    public static JacksonObjectTransformer withAccessorModules() {
+        return new JacksonObjectTransformer(findAccessorModules());
+    }
+
+    /**
+     * Blackbird is used on Java 9 and above as it relies on private method handle lookups, otherwise Afterburner. Neither
+     * is a dependency of the framework, add <code>com.fasterxml.jackson.module:jackson-module-blackbird</code> or
+     * <code>com.fasterxml.jackson.module:jackson-module-afterburner</code> to use them
+     *
+     * @return The bytecode generating accessor module found on the classpath, or no modules if there are none
+     */
+    public static Module[] findAccessorModules() {
+        List<String> candidates = new ArrayList<>();
+
+        if (supportsPrivateLookups()) {
+            candidates.add(BLACKBIRD_MODULE);
+        }
 
+        candidates.add(AFTERBURNER_MODULE);
+
+        for (String candidate : candidates) {
+            try {
+                return new Module[]{(Module) Class.forName(candidate).getConstructor().newInstance()};
+            } catch (ReflectiveOperationException | LinkageError ignored) {
+            }
+        }
+
+        return new Module[0];
+    }
+
+    /**
+     * Applies the configuration every mapper used by the framework shares, whatever format it writes
+     *
+     * @param objectMapper The mapper to configure
+     * @param modules Extra modules to register
+     * @return The configured mapper
+     */
+    protected static ObjectMapper configure(ObjectMapper objectMapper, Module... modules) {
         objectMapper
                 .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
                 .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
 
+        // Streams belong to the caller
+        objectMapper.getFactory()
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
         objectMapper.setVisibility(objectMapper.getVisibilityChecker()
                 .withCreatorVisibility(Visibility.ANY)
                 .withFieldVisibility(Visibility.ANY)
@@ -31,15 +112,179 @@ public class JacksonObjectTransformer implements ObjectTransformer {
                 .withSetterVisibility(Visibility.NONE));
 
         objectMapper.registerModule(new JavaTimeModule());
+        objectMapper.registerModules(modules);
+        return objectMapper;
+    }
+
+    /**
+     * @return The format written by the byte and stream methods
+     */
+    protected byte getBinaryFormat() {
+        return BinaryFormat.JSON;
+    }
+
+    /**
+     * @param format A format byte
+     * @return The mapper which reads and writes the format, or null if the format isn't supported
+     */
+    protected TypedMapper getMapper(byte format) {
+        return format == BinaryFormat.JSON ? jsonMapper : null;
     }
 
     @Override
     public String serialise(Object obj) throws Exception {
-        return objectMapper.writeValueAsString(obj);
+        return jsonMapper.writer(obj).writeValueAsString(obj);
     }
 
     @Override
     public <T> T deserialise(String obj, Class<T> classOfT) throws Exception {
-        return objectMapper.readValue(obj, classOfT);
+        return jsonMapper.reader(classOfT).readValue(obj);
+    }
+
+    @Override
+    public byte[] serialiseToBytes(Object obj) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        serialise(obj, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialise(Object obj, OutputStream out) throws Exception {
+        byte format = getBinaryFormat();
+
+        out.write(format);
+        getMapper(format).writer(obj).writeValue(out, obj);
+    }
+
+    @Override
+    public <T> T deserialise(byte[] obj, Class<T> classOfT) throws Exception {
+        return deserialise(obj, 0, obj.length, classOfT);
+    }
+
+    @Override
+    public <T> T deserialise(byte[] obj, int offset, int length, Class<T> classOfT) throws Exception {
+        // Read straight from the bytes, skipping the String
+        if (length > 0 && BinaryFormat.isFormatByte(obj[offset])) {
+            return mapperFor(obj[offset]).reader(classOfT).readValue(obj, offset + 1, length - 1);
+        }
+
+        return jsonMapper.reader(classOfT).readValue(obj, offset, length);
+    }
+
+    @Override
+    public <T> T deserialise(ByteBuffer obj, Class<T> classOfT) throws Exception {
+        if (obj.hasArray()) {
+            return ObjectTransformer.super.deserialise(obj, classOfT);
+        }
+
+        // Direct buffers are streamed rather than copied
+        return deserialise(new ByteBufferBackedInputStream(obj), classOfT);
+    }
+
+    @Override
+    public <T> T deserialise(InputStream obj, Class<T> classOfT) throws Exception {
+        PushbackInputStream in = new PushbackInputStream(obj, 1);
+        int first = in.read();
+
+        if (BinaryFormat.isFormatByte(first)) {
+            return mapperFor((byte) first).reader(classOfT).readValue(in);
+        }
+
+        // Legacy JSON, the first byte is part of it
+        if (first != -1) {
+            in.unread(first);
+        }
+
+        return jsonMapper.reader(classOfT).readValue(in);
+    }
+
+    /**
+     * @param obj The object to convert
+     * @return The object as a JSON tree, as it would be serialised
+     */
+    public JsonNode toTree(Object obj) {
+        return jsonMapper.mapper.valueToTree(obj);
+    }
+
+    /**
+     * @param tree The JSON tree to convert
+     * @param classOfT The class to convert into
+     * @param <T> The type of the class to convert into
+     * @return The object, as it would be deserialised from the tree
+     * @throws Exception Any exception thrown during the conversion
+     */
+    public <T> T fromTree(JsonNode tree, Class<T> classOfT) throws Exception {
+        return jsonMapper.reader(classOfT).readValue(tree);
+    }
+
+    @Override
+    public void warmUp(Collection<Class<?>> classes) {
+        TypedMapper mapper = getMapper(getBinaryFormat());
+
+        for (Class<?> clazz : classes) {
+            // Building them looks up and caches the root serialiser and deserialiser
+            jsonMapper.reader(clazz);
+            jsonMapper.writer(clazz);
+            mapper.reader(clazz);
+            mapper.writer(clazz);
+        }
+    }
+
+    private TypedMapper mapperFor(byte format) {
+        TypedMapper mapper = getMapper(format);
+
+        if (mapper == null) {
+            throw new IllegalArgumentException("Unsupported binary format " + format);
+        }
+
+        return mapper;
+    }
+
+    private static boolean supportsPrivateLookups() {
+        try {
+            MethodHandles.class.getMethod("privateLookupIn", Class.class, MethodHandles.Lookup.class);
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * A mapper with the readers and writers it has built for each class
+     */
+    protected static class TypedMapper {
+
+        private final ObjectMapper mapper;
+        private final ClassValue<ObjectReader> readers;
+        private final ClassValue<ObjectWriter> writers;
+
+        public TypedMapper(ObjectMapper mapper) {
+            this.mapper = mapper;
+            this.readers = new ClassValue<ObjectReader>() {
+                @Override
+                protected ObjectReader computeValue(Class<?> type) {
+                    return mapper.readerFor(type);
+                }
+            };
+            this.writers = new ClassValue<ObjectWriter>() {
+                @Override
+                protected ObjectWriter computeValue(Class<?> type) {
+                    return mapper.writerFor(type);
+                }
+            };
+        }
+
+        public ObjectReader reader(Class<?> type) {
+            return readers.get(type);
+        }
+
+        public ObjectWriter writer(Class<?> type) {
+            return writers.get(type);
+        }
+
+        public ObjectWriter writer(Object obj) {
+            return obj == null ? mapper.writer() : writers.get(obj.getClass());
+        }
     }
 }
@@ -0,0 +1,50 @@
+package com.moppletop.ddd.transformer.jackson;
+
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import com.moppletop.ddd.transformer.BinaryFormat;
+
+/**
+ * A Jackson implementation of the object transformer which serialises to bytes with
+ * <a href="https://github.com/FasterXML/smile-format-specification">Smile</a>, a binary form of JSON that is more compact
+ * and faster to read and write. Objects serialised to Strings are still JSON, and JSON bytes can still be read, so data
+ * written before switching to this transformer remains readable.
+ * <br>
+ * <br>
+ * Requires <code>com.fasterxml.jackson.dataformat:jackson-dataformat-smile</code>
+ */
+public class JacksonSmileObjectTransformer extends JacksonObjectTransformer {
+
+    private final TypedMapper smileMapper;
+
+    public JacksonSmileObjectTransformer() {
+        this(new Module[0]);
+    }
+
+    /**
+     * @param modules Extra modules to register with the mappers, see {@link JacksonObjectTransformer#findAccessorModules()}
+     */
+    public JacksonSmileObjectTransformer(Module... modules) {
+        super(modules);
+
+        // The format byte already identifies the data as Smile, the 4 byte Smile header would be redundant
+        SmileFactory smileFactory = new SmileFactory()
+                .disable(SmileGenerator.Feature.WRITE_HEADER)
+                .disable(SmileParser.Feature.REQUIRE_HEADER);
+
+        this.smileMapper = new TypedMapper(configure(new ObjectMapper(smileFactory), modules));
+    }
+
+    @Override
+    protected byte getBinaryFormat() {
+        return BinaryFormat.SMILE;
+    }
+
+    @Override
+    protected TypedMapper getMapper(byte format) {
+        return format == BinaryFormat.SMILE ? smileMapper : super.getMapper(format);
+    }
+}
@@ -0,0 +1,169 @@
+package com.moppletop.ddd.transformer.jackson;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Creates and applies <a href="https://datatracker.ietf.org/doc/html/rfc6902">JSON Patch</a> documents, using the
+ * <code>add</code>, <code>remove</code> and <code>replace</code> operations
+ * <br>
+ * <br>
+ * Implementation notes:
+ * <ul>
+ *     <li>Objects are compared field by field, so changing one field of a large object only produces one operation</li>
+ *     <li>Arrays are compared element by element, elements added to or removed from the end produce one operation each.
+ *     If that would take more operations than replacing the array, for example when an element is inserted at the
+ *     start, the whole array is replaced instead</li>
+ * </ul>
+ */
+public final class JsonPatch {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private JsonPatch() {
+    }
+
+    /**
+     * @param source The original document
+     * @param target The changed document
+     * @return The operations which change the source into the target, empty if they are equal
+     */
+    public static ArrayNode diff(JsonNode source, JsonNode target) {
+        List<ObjectNode> operations = new ArrayList<>();
+
+        diff(source, target, "", operations);
+        return NODES.arrayNode().addAll(operations);
+    }
+
+    /**
+     * @param document The document to patch, which is changed in place where possible
+     * @param patch The operations to apply
+     * @return The patched document, which is only a different instance if the whole document was replaced
+     */
+    public static JsonNode apply(JsonNode document, JsonNode patch) {
+        for (JsonNode operation : patch) {
+            String op = operation.path("op").asText();
+            String path = operation.path("path").asText();
+
+            if (path.isEmpty()) {
+                if (!"replace".equals(op) && !"add".equals(op)) {
+                    throw new IllegalArgumentException("Cannot " + op + " the whole document");
+                }
+
+                document = operation.get("value").deepCopy();
+                continue;
+            }
+
+            int separator = path.lastIndexOf('/');
+            JsonNode parent = document.at(path.substring(0, separator));
+            String token = unescape(path.substring(separator + 1));
+
+            if (parent.isObject()) {
+                if ("remove".equals(op)) {
+                    ((ObjectNode) parent).remove(token);
+                } else {
+                    ((ObjectNode) parent).set(token, operation.get("value").deepCopy());
+                }
+            } else if (parent.isArray()) {
+                ArrayNode array = (ArrayNode) parent;
+
+                if ("remove".equals(op)) {
+                    array.remove(Integer.parseInt(token));
+                } else if ("replace".equals(op)) {
+                    array.set(Integer.parseInt(token), operation.get("value").deepCopy());
+                } else if ("-".equals(token)) {
+                    array.add(operation.get("value").deepCopy());
+                } else {
+                    array.insert(Integer.parseInt(token), operation.get("value").deepCopy());
+                }
+            } else {
+                throw new IllegalArgumentException("The path " + path + " does not exist in the document");
+            }
+        }
+
+        return document;
+    }
+
+    private static void diff(JsonNode source, JsonNode target, String path, List<ObjectNode> operations) {
+        if (source.equals(target)) {
+            return;
+        }
+
+        if (source.isObject() && target.isObject()) {
+            Iterator<String> sourceFields = source.fieldNames();
+
+            while (sourceFields.hasNext()) {
+                String field = sourceFields.next();
+
+                if (!target.has(field)) {
+                    operations.add(operation("remove", path + '/' + escape(field), null));
+                }
+            }
+
+            Iterator<Entry<String, JsonNode>> targetFields = target.fields();
+
+            while (targetFields.hasNext()) {
+                Entry<String, JsonNode> field = targetFields.next();
+                JsonNode sourceValue = source.get(field.getKey());
+                String fieldPath = path + '/' + escape(field.getKey());
+
+                if (sourceValue == null) {
+                    operations.add(operation("add", fieldPath, field.getValue()));
+                } else {
+                    diff(sourceValue, field.getValue(), fieldPath, operations);
+                }
+            }
+        } else if (source.isArray() && target.isArray()) {
+            List<ObjectNode> arrayOperations = new ArrayList<>();
+            int common = Math.min(source.size(), target.size());
+
+            for (int i = 0; i < common; i++) {
+                diff(source.get(i), target.get(i), path + '/' + i, arrayOperations);
+            }
+
+            for (int i = common; i < target.size(); i++) {
+                arrayOperations.add(operation("add", path + "/-", target.get(i)));
+            }
+
+            // Remove from the end, so the indexes of the elements still to remove don't shift
+            for (int i = source.size() - 1; i >= common; i--) {
+                arrayOperations.add(operation("remove", path + '/' + i, null));
+            }
+
+            if (arrayOperations.size() > Math.max(1, target.size() / 2)) {
+                operations.add(operation("replace", path, target));
+            } else {
+                operations.addAll(arrayOperations);
+            }
+        } else {
+            operations.add(operation("replace", path, target));
+        }
+    }
+
+    private static ObjectNode operation(String op, String path, JsonNode value) {
+        ObjectNode operation = NODES.objectNode()
+                .put("op", op)
+                .put("path", path);
+
+        if (value != null) {
+            operation.set("value", value);
+        }
+
+        return operation;
+    }
+
+    private static String escape(String token) {
+        return token.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static String unescape(String token) {
+        return token.replace("~1", "/").replace("~0", "~");
+    }
+}
@@ -8,6 +8,7 @@ import com.moppletop.ddd.error.*;
 import com.moppletop.ddd.event.*;
 import com.moppletop.ddd.query.QueryHandler;
 import com.moppletop.ddd.query.QueryHandlerMethod;
+import com.moppletop.ddd.transformer.ObjectTransformer;
 import lombok.RequiredArgsConstructor;
 
 import java.lang.annotation.Annotation;
@@ -23,6 +24,7 @@ public class ExplicitWiringManager implements WiringManager {
     private final Map<Class<?>, Method> stateHandlers = new HashMap<>();
     private final Map<Class<?>, List<EventHandlerMethod>> domainEventHandlers = new HashMap<>();
     private final Map<Class<?>, List<EventHandlerMethod>> streamEventHandlers = new HashMap<>();
+    private final Map<String, Map<Class<?>, List<EventHandlerMethod>>> processingGroupEventHandlers = new HashMap<>();
     private final Map<String, QueryHandlerMethod<?, ?>> queryHandlers = new HashMap<>();
 
     public void registerAggregate(Class<?> clazz) {
@@ -109,7 +111,9 @@ public class ExplicitWiringManager implements WiringManager {
     }
 
     public void registerStreamEventHandlers(Object object, EventStreamer eventStreamer) {
-        if (registerEventHandlers(object, StreamEventHandler.class, streamEventHandlers)) {
+        Map<Class<?>, List<EventHandlerMethod>> handlers = new HashMap<>();
+
+        if (registerEventHandlers(object, StreamEventHandler.class, handlers)) {
             Class<?> clazz = object.getClass();
             ProcessingGroup groupAnnotation = clazz.getDeclaredAnnotation(ProcessingGroup.class);
             String processingGroup;
@@ -134,6 +138,13 @@ public class ExplicitWiringManager implements WiringManager {
                 throw new IllegalArgumentException("The number of threads in a processing group must be less than " + ProcessingGroup.MAX_THREADS + "!");
             }
 
+            Map<Class<?>, List<EventHandlerMethod>> groupHandlers = processingGroupEventHandlers.computeIfAbsent(processingGroup, k -> new HashMap<>());
+
+            handlers.forEach((eventClass, methods) -> {
+                streamEventHandlers.computeIfAbsent(eventClass, k -> new LinkedList<>()).addAll(methods);
+                groupHandlers.computeIfAbsent(eventClass, k -> new LinkedList<>()).addAll(methods);
+            });
+
             eventStreamer.subscribe(processingGroup, threads);
         }
     }
@@ -190,6 +201,11 @@ public class ExplicitWiringManager implements WiringManager {
         return execute(aggregate, executable, cmd);
     }
 
+    @Override
+    public boolean isInitialStateCommand(Command<?> cmd) {
+        return commandHandlers.get(cmd.getClass()) instanceof Constructor;
+    }
+
     @Override
     public void executeAggregateStateHandler(Object aggregate, Object event) {
         Objects.requireNonNull(aggregate, "Cannot apply against a null aggregate");
@@ -213,6 +229,15 @@ public class ExplicitWiringManager implements WiringManager {
         executeEventHandler(event, streamEventHandlers);
     }
 
+    @Override
+    public void executeStreamEventHandler(String processingGroup, Object event) {
+        Map<Class<?>, List<EventHandlerMethod>> handlers = processingGroupEventHandlers.get(processingGroup);
+
+        if (handlers != null) {
+            executeEventHandler(event, handlers);
+        }
+    }
+
     public void executeEventHandler(Object event, Map<Class<?>, List<EventHandlerMethod>> map) {
         Objects.requireNonNull(event, "Cannot handle a null event");
         List<EventHandlerMethod> executables = map.get(event.getClass());
@@ -238,6 +263,28 @@ public class ExplicitWiringManager implements WiringManager {
         return queryHandlerMethod.execute(input, dependencyRegister);
     }
 
+    @Override
+    public Set<Class<?>> getRegisteredTypes() {
+        Set<Class<?>> types = new HashSet<>(aggregates);
+
+        types.addAll(stateHandlers.keySet());
+        types.addAll(domainEventHandlers.keySet());
+        types.addAll(streamEventHandlers.keySet());
+        types.add(EventMetadata.class);
+
+        return types;
+    }
+
+    /**
+     * Warms up the object transformer for every registered type, should be called once everything has been registered
+     *
+     * @param objectTransformer The object transformer
+     * @see ObjectTransformer#warmUp(Collection)
+     */
+    public void warmUp(ObjectTransformer objectTransformer) {
+        objectTransformer.warmUp(getRegisteredTypes());
+    }
+
     @SuppressWarnings("unchecked")
     private <T> T execute(T object, Executable executable, Object primaryParam) {
         Parameter[] parameters = executable.getParameters();
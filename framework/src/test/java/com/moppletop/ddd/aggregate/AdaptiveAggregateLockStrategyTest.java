@@ -0,0 +1,51 @@
+package com.moppletop.ddd.aggregate;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveAggregateLockStrategyTest {
+
+    @Test
+    void cooledAggregatesArePrunedOnceTheSetIsFull() throws Exception {
+        AdaptiveAggregateLockStrategy strategy = AdaptiveAggregateLockStrategy.builder()
+                .hotThreshold(1)
+                .decayInterval(Duration.ofMillis(20))
+                .maxHotAggregates(1)
+                .build();
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        strategy.onConcurrencyConflict(first);
+        assertEquals(1, strategy.getHotAggregates());
+
+        // The first aggregate is never loaded again, but has cooled by the time the second conflicts
+        Thread.sleep(100);
+        strategy.onConcurrencyConflict(second);
+
+        assertEquals(1, strategy.getHotAggregates());
+        assertTrue(strategy.isHot(second));
+        assertFalse(strategy.isHot(first));
+    }
+
+    @Test
+    void aFullSetOfHotAggregatesIsKept() {
+        AdaptiveAggregateLockStrategy strategy = AdaptiveAggregateLockStrategy.builder()
+                .hotThreshold(1)
+                .maxHotAggregates(1)
+                .build();
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        strategy.onConcurrencyConflict(first);
+        strategy.onConcurrencyConflict(second);
+
+        assertTrue(strategy.isHot(first));
+        assertFalse(strategy.isHot(second));
+    }
+}
@@ -0,0 +1,95 @@
+package com.moppletop.ddd.aggregate;
+
+import com.moppletop.ddd.database.ConnectionProvider;
+import com.moppletop.ddd.database.Transaction;
+import com.moppletop.ddd.error.ConcurrencyConflictException;
+import com.moppletop.ddd.transformer.jackson.JacksonObjectTransformer;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapAggregateRepositoryTest {
+
+    private final ConnectionProvider connectionProvider = Transaction.statelessTransaction();
+    private final JacksonObjectTransformer transformer = new JacksonObjectTransformer();
+
+    @Test
+    void aConflictEvictsTheStaleEntryWithoutARollback() throws Exception {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        ConflictingRepository delegate = new ConflictingRepository();
+        OffHeapAggregateRepository repository = OffHeapAggregateRepository.builder()
+                .delegate(delegate)
+                .transformer(transformer)
+                .capacity(1L << 20)
+                .build();
+
+        repository.getStore().put(aggregateIdentifier, new OffHeapAggregateStore.Entry(1, Counter.class.getName(), 3, null,
+                transformer.serialiseToBytes(new Counter(3))));
+
+        Aggregate<Counter> stale = repository.loadAggregate(connectionProvider, aggregateIdentifier);
+        assertEquals(1, repository.getHits());
+        assertEquals(3, stale.getCurrentState().count);
+
+        assertThrows(ConcurrencyConflictException.class, () -> repository.saveAggregate(connectionProvider, stale));
+        assertNull(repository.getStore().get(aggregateIdentifier));
+
+        // The retry goes to the database
+        Aggregate<Counter> latest = repository.loadAggregate(connectionProvider, aggregateIdentifier);
+        assertEquals(1, repository.getMisses());
+        assertEquals(5, latest.getCurrentState().count);
+    }
+
+    @Test
+    void entriesKeepTheSnapshotTheyWereSavedWith() throws Exception {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        OffHeapAggregateRepository repository = OffHeapAggregateRepository.builder()
+                .delegate(new ConflictingRepository())
+                .transformer(transformer)
+                .capacity(1L << 20)
+                .build();
+
+        AggregateSnapshot snapshot = new AggregateSnapshot(2, Instant.ofEpochMilli(1_000), 3);
+        repository.getStore().put(aggregateIdentifier, new OffHeapAggregateStore.Entry(1, Counter.class.getName(), 5, snapshot,
+                transformer.serialiseToBytes(new Counter(5))));
+
+        Aggregate<Counter> aggregate = repository.loadAggregate(connectionProvider, aggregateIdentifier);
+        assertEquals(1, repository.getHits());
+        assertEquals(snapshot, aggregate.getSnapshot());
+    }
+
+    static class Counter {
+
+        int count;
+
+        Counter() {
+        }
+
+        Counter(int count) {
+            this.count = count;
+        }
+    }
+
+    private static class ConflictingRepository implements AggregateRepository {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Aggregate<T> loadAggregate(ConnectionProvider connectionProvider, UUID aggregateIdentifier) {
+            return (Aggregate<T>) SimpleAggregate.<Counter>builder()
+                    .globalId(1L)
+                    .aggregateIdentifier(aggregateIdentifier)
+                    .className(Counter.class.getName())
+                    .initialEventSequence(5L)
+                    .eventSequence(5L)
+                    .currentState(new Counter(5))
+                    .build();
+        }
+
+        @Override
+        public long saveAggregate(ConnectionProvider connectionProvider, Aggregate<?> aggregate) {
+            throw new ConcurrencyConflictException("Aggregate " + aggregate.getAggregateIdentifier() + " was modified by another node");
+        }
+    }
+}
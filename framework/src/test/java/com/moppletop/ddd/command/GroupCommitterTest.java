@@ -0,0 +1,145 @@
+package com.moppletop.ddd.command;
+
+import com.moppletop.ddd.database.Transaction;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitterTest {
+
+    private static final Object RESOURCE = new Object();
+
+    private final List<UUID> committed = new CopyOnWriteArrayList<>();
+    private final List<UUID> rolledBack = new CopyOnWriteArrayList<>();
+    private final List<Object> resourcesSeen = new CopyOnWriteArrayList<>();
+
+    private JdbcDataSource dataSource;
+    private Connection keepAlive;
+    private GroupCommitter committer;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        // Transactions expect connections which don't commit every statement
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";AUTOCOMMIT=OFF");
+        // The in-memory database lives as long as a connection to it is open
+        keepAlive = dataSource.getConnection();
+
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("create table handled (id uuid primary key)");
+        }
+
+        keepAlive.commit();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        if (committer != null) {
+            committer.shutdown();
+        }
+
+        keepAlive.close();
+    }
+
+    @Test
+    void aFailedCommandsCallbacksAreScopedToItsSavepoint() throws Exception {
+        UUID failing = UUID.randomUUID();
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        committer = new GroupCommitter(dataSource, new AggregateLockManager(), (id, cmd) -> {
+            Transaction transaction = Transaction.get();
+
+            resourcesSeen.add(transaction.getResource(RESOURCE) == null ? "none" : transaction.getResource(RESOURCE));
+            transaction.putResource(RESOURCE, id);
+            transaction.afterCommit(() -> committed.add(id));
+            transaction.afterRollback(() -> rolledBack.add(id));
+            insert(transaction, id);
+
+            if (id.equals(failing)) {
+                throw new IllegalStateException("Rejected");
+            }
+
+            // Bound by a successful command, so kept for the rest of the batch
+            transaction.putResource(RESOURCE, "kept");
+        }, RetryPolicy.none(), Duration.ofSeconds(5), 3);
+
+        CompletableFuture<Void> firstResult = committer.submit(first, () -> first);
+        CompletableFuture<Void> failingResult = committer.submit(failing, () -> failing);
+        // The batch is full, and so committed, once all three have been submitted
+        CompletableFuture<Void> secondResult = committer.submit(second, () -> second);
+
+        firstResult.get(5, TimeUnit.SECONDS);
+        secondResult.get(5, TimeUnit.SECONDS);
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> failingResult.get(5, TimeUnit.SECONDS));
+        assertEquals("Rejected", failure.getCause().getMessage());
+
+        assertEquals(Arrays.asList(first, second), committed);
+        assertEquals(Collections.singletonList(failing), rolledBack);
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), selectHandled());
+        // The failed command's binding is undone, the second command sees the first's
+        assertEquals(Arrays.asList("none", "kept", "kept"), resourcesSeen);
+    }
+
+    @Test
+    void shutdownCommitsTheBatchBeingCollected() throws Exception {
+        UUID id = UUID.randomUUID();
+
+        committer = new GroupCommitter(dataSource, new AggregateLockManager(), (target, cmd) -> insert(Transaction.get(), target),
+                RetryPolicy.none(), Duration.ofMinutes(1), 3);
+
+        CompletableFuture<Void> result = committer.submit(id, () -> id);
+
+        // Give the committer thread time to take the command, it would otherwise wait a minute for the batch to fill
+        Thread.sleep(100);
+        committer.shutdown();
+
+        result.get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singleton(id), selectHandled());
+    }
+
+    @Test
+    void rejectsAMaximumLatencyOfZero() {
+        assertThrows(IllegalArgumentException.class, () -> new GroupCommitter(dataSource, new AggregateLockManager(), (id, cmd) -> {
+        }, RetryPolicy.none(), Duration.ZERO, 3));
+    }
+
+    private static void insert(Transaction transaction, UUID id) {
+        try (PreparedStatement statement = transaction.getConnection().prepareStatement("insert into handled (id) values (?)")) {
+            statement.setObject(1, id);
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private Set<UUID> selectHandled() throws SQLException {
+        Set<UUID> handled = new HashSet<>();
+
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select id from handled")) {
+            while (resultSet.next()) {
+                handled.add(resultSet.getObject(1, UUID.class));
+            }
+        }
+
+        return handled;
+    }
+}
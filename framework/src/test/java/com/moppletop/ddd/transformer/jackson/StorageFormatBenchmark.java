@@ -0,0 +1,104 @@
+package com.moppletop.ddd.transformer.jackson;
+
+import com.moppletop.ddd.transformer.ObjectTransformer;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares the serialised size and round trip time of the transformers behind each {@link com.moppletop.ddd.database.StorageFormat}.
+ * <br>
+ * <br>
+ * Not a test, run it with the framework's test classpath:
+ * <pre>
+ * mvn -pl framework test-compile exec:java -Dexec.mainClass=com.moppletop.ddd.transformer.jackson.StorageFormatBenchmark -Dexec.classpathScope=test
+ * </pre>
+ * Implementation notes:
+ * <ul>
+ *     <li>Body size stands in for row size and WAL volume, it is the only part of either that changes with the format</li>
+ *     <li>Each measurement is repeated and only the last round is reported, the earlier ones warm up the JIT</li>
+ * </ul>
+ */
+public class StorageFormatBenchmark {
+
+    private static final int ITERATIONS = 200_000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        JacksonObjectTransformer json = new JacksonObjectTransformer();
+        JacksonSmileObjectTransformer smile = new JacksonSmileObjectTransformer();
+
+        for (int laps : new int[]{0, 20}) {
+            Driver driver = new Driver(laps);
+
+            System.out.printf("%d laps: JSON %d bytes, Smile %d bytes%n", laps,
+                    json.serialiseToBytes(driver).length, smile.serialiseToBytes(driver).length);
+
+            long jsonString = 0;
+            long jsonBytes = 0;
+            long smileBytes = 0;
+
+            for (int round = 0; round < ROUNDS; round++) {
+                jsonString = timeString(json, driver);
+                jsonBytes = timeBytes(json, driver);
+                smileBytes = timeBytes(smile, driver);
+            }
+
+            System.out.printf("  round trip ns/op: JSON string %d, JSON bytes %d, Smile bytes %d%n", jsonString, jsonBytes, smileBytes);
+        }
+    }
+
+    private static long timeString(ObjectTransformer transformer, Driver driver) throws Exception {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            transformer.deserialise(transformer.serialise(driver), Driver.class);
+        }
+
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static long timeBytes(ObjectTransformer transformer, Driver driver) throws Exception {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            transformer.deserialise(transformer.serialiseToBytes(driver), Driver.class);
+        }
+
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    static class Driver {
+
+        UUID id = UUID.randomUUID();
+        String name = "Lewis Hamilton";
+        LocalDate dateOfBirth = LocalDate.of(1985, 1, 7);
+        List<Lap> laps = new ArrayList<>();
+
+        Driver() {
+        }
+
+        Driver(int laps) {
+            for (int i = 0; i < laps; i++) {
+                this.laps.add(new Lap(i));
+            }
+        }
+    }
+
+    static class Lap {
+
+        int number;
+        long timeMillis;
+        String circuit = "Silverstone";
+
+        Lap() {
+        }
+
+        Lap(int number) {
+            this.number = number;
+            this.timeMillis = 90_000 + number;
+        }
+    }
+}
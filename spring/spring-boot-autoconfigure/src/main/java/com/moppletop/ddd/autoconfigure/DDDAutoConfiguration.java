@@ -1,23 +1,34 @@
 package com.moppletop.ddd.autoconfigure;
 
+import com.moppletop.ddd.aggregate.AggregateLockStrategy;
 import com.moppletop.ddd.aggregate.AggregateRepository;
 import com.moppletop.ddd.aggregate.JdbcAggregateRepository;
+import com.moppletop.ddd.aggregate.OptimisticAggregateLockStrategy;
 import com.moppletop.ddd.command.CommandGateway;
 import com.moppletop.ddd.command.DefaultCommandGateway;
+import com.moppletop.ddd.database.StorageFormat;
+import com.moppletop.ddd.database.TableRouting;
 import com.moppletop.ddd.dependency.DependencyRegister;
 import com.moppletop.ddd.event.DefaultEventGateway;
 import com.moppletop.ddd.event.EventGateway;
+import com.moppletop.ddd.event.EventPublisher;
 import com.moppletop.ddd.event.EventRepository;
+import com.moppletop.ddd.event.EventStreamer;
 import com.moppletop.ddd.event.JdbcEventRepository;
+import com.moppletop.ddd.event.JdbcPollingEventStreamer;
+import com.moppletop.ddd.event.RingBufferEventStreamer;
 import com.moppletop.ddd.query.DefaultQueryGateway;
 import com.moppletop.ddd.query.QueryGateway;
 import com.moppletop.ddd.spring.SpringDependencyRegister;
 import com.moppletop.ddd.spring.SpringWiringManager;
 import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.transformer.TypeRegistry;
 import com.moppletop.ddd.transformer.jackson.JacksonObjectTransformer;
 import com.moppletop.ddd.wiring.WiringManager;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -39,19 +50,30 @@ public class DDDAutoConfiguration {
     @Bean
     @ConditionalOnMissingBean
     public ObjectTransformer objectTransformer() {
-        return new JacksonObjectTransformer();
+        return JacksonObjectTransformer.withAccessorModules();
     }
 
     @Bean
     @ConditionalOnMissingBean
-    public AggregateRepository aggregateRepository(ObjectTransformer objectTransformer) {
-        return new JdbcAggregateRepository(objectTransformer);
+    public AggregateRepository aggregateRepository(ObjectTransformer objectTransformer, ObjectProvider<TypeRegistry> typeRegistry, ObjectProvider<TableRouting> tableRouting) {
+        return JdbcAggregateRepository.builder()
+                .transformer(objectTransformer)
+                .storageFormat(StorageFormat.JSON)
+                .typeRegistry(typeRegistry.getIfAvailable())
+                .tableRouting(tableRouting.getIfAvailable())
+                .build();
     }
 
     @Bean
     @ConditionalOnMissingBean
-    public EventRepository eventRepository(ObjectTransformer objectTransformer) {
-        return new JdbcEventRepository(objectTransformer);
+    public EventRepository eventRepository(ObjectTransformer objectTransformer, ObjectProvider<TypeRegistry> typeRegistry, ObjectProvider<TableRouting> tableRouting) {
+        return new JdbcEventRepository(objectTransformer, StorageFormat.JSON, typeRegistry.getIfAvailable(), tableRouting.getIfAvailable());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public AggregateLockStrategy aggregateLockStrategy() {
+        return new OptimisticAggregateLockStrategy();
     }
 
     @Bean
@@ -66,9 +88,20 @@ public class DDDAutoConfiguration {
     public CommandGateway commandGateway(DataSource dataSource,
                                          AggregateRepository aggregateRepository,
                                          EventRepository eventRepository,
-                                         WiringManager wiringManager
+                                         WiringManager wiringManager,
+                                         AggregateLockStrategy aggregateLockStrategy,
+                                         ObjectProvider<EventStreamer> eventStreamer
     ) {
-        return new DefaultCommandGateway(dataSource, aggregateRepository, eventRepository, wiringManager);
+        DefaultCommandGateway commandGateway = new DefaultCommandGateway(dataSource, aggregateRepository, eventRepository, wiringManager);
+        commandGateway.setLockStrategy(aggregateLockStrategy);
+
+        eventStreamer.ifAvailable(streamer -> {
+            if (streamer instanceof EventPublisher) {
+                commandGateway.setEventPublisher((EventPublisher) streamer);
+            }
+        });
+
+        return commandGateway;
     }
 
     @Bean
@@ -77,6 +110,39 @@ public class DDDAutoConfiguration {
         return new DefaultEventGateway(wiringManager);
     }
 
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnBean(DataSource.class)
+    @ConditionalOnProperty(name = "ddd.event-stream", havingValue = "jdbc")
+    public EventStreamer jdbcPollingEventStreamer(DataSource dataSource, EventRepository eventRepository, EventGateway eventGateway) {
+        if (!(eventRepository instanceof JdbcEventRepository)) {
+            throw new IllegalStateException("Polling the event table requires a JdbcEventRepository");
+        }
+
+        return JdbcPollingEventStreamer.builder()
+                .dataSource(dataSource)
+                .eventRepository((JdbcEventRepository) eventRepository)
+                .eventGateway(eventGateway)
+                .build();
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "ddd.event-stream", havingValue = "memory")
+    public EventStreamer ringBufferEventStreamer(EventGateway eventGateway, EventRepository eventRepository, ObjectProvider<DataSource> dataSource) {
+        RingBufferEventStreamer.RingBufferEventStreamerBuilder builder = RingBufferEventStreamer.builder();
+
+        // Catch up from the event table and checkpoint when there is one
+        if (dataSource.getIfAvailable() != null && eventRepository instanceof JdbcEventRepository) {
+            builder.dataSource(dataSource.getIfAvailable())
+                    .eventRepository((JdbcEventRepository) eventRepository);
+        }
+
+        return builder
+                .eventGateway(eventGateway)
+                .build();
+    }
+
     @Bean
     @ConditionalOnMissingBean
     public QueryGateway queryGateway(WiringManager wiringManager) {
@@ -2,6 +2,7 @@ package com.moppletop.ddd.spring;
 
 import com.moppletop.ddd.dependency.DependencyRegister;
 import com.moppletop.ddd.event.EventStreamer;
+import com.moppletop.ddd.transformer.ObjectTransformer;
 import com.moppletop.ddd.wiring.ExplicitWiringManager;
 import org.springframework.aop.framework.AopProxyUtils;
 import org.springframework.aop.support.AopUtils;
@@ -23,6 +24,9 @@ public class SpringWiringManager extends ExplicitWiringManager implements Applic
     @Autowired
     private EventStreamer eventStreamer;
 
+    @Autowired(required = false)
+    private ObjectTransformer objectTransformer;
+
     public SpringWiringManager(DependencyRegister dependencyRegister) {
         super(dependencyRegister);
     }
@@ -49,6 +53,10 @@ public class SpringWiringManager extends ExplicitWiringManager implements Applic
 
         event.getApplicationContext().getBeansWithAnnotation(WiredQueryHandlers.class).values().forEach(this::registerQueryHandlers);
         event.getApplicationContext().getBeansWithAnnotation(WiredAggregate.class).values().forEach(bean -> registerAggregate(bean.getClass()));
+
+        if (objectTransformer != null) {
+            warmUp(objectTransformer);
+        }
     }
 
 }
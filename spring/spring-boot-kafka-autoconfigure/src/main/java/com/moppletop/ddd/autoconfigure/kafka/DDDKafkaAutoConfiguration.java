@@ -5,15 +5,20 @@ import com.moppletop.ddd.autoconfigure.kafka.DDDKafkaAutoConfiguration.DDDKafkaP
 import com.moppletop.ddd.event.EventGateway;
 import com.moppletop.ddd.event.EventStreamer;
 import com.moppletop.ddd.eventstream.kafka.KafkaEventStream;
+import com.moppletop.ddd.eventstream.kafka.KafkaOutboxRelay;
 import com.moppletop.ddd.transformer.ObjectTransformer;
+import com.moppletop.ddd.transformer.TypeRegistry;
 import lombok.*;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.sql.DataSource;
 import java.time.Duration;
 import java.util.List;
 
@@ -30,19 +35,48 @@ public class DDDKafkaAutoConfiguration {
     @Bean
     @ConditionalOnProperty("ddd.kafka.groupId")
     public EventStreamer kafkaEventStreamer(ObjectTransformer objectTransformer,
+                                            ObjectProvider<TypeRegistry> typeRegistry,
                                             EventGateway eventGateway,
                                             DDDKafkaProperties properties
     ) {
-        return KafkaEventStream.builder()
+        KafkaEventStream.KafkaEventStreamBuilder builder = KafkaEventStream.builder();
+
+        if (properties.getTopic() != null) {
+            builder.topic(properties.getTopic());
+        }
+
+        if (properties.getTopics() != null) {
+            builder.topics(properties.getTopics());
+        }
+
+        return builder
                 .groupId(properties.getGroupId())
-                .topic(properties.getTopic())
                 .kafkaHosts(properties.getKafkaHosts())
                 .pollingRate(Duration.ofMillis(properties.getPollingRate()))
+                .workerThreads(properties.getWorkerThreads())
                 .objectTransformer(objectTransformer)
+                .typeRegistry(typeRegistry.getIfAvailable())
                 .eventGateway(eventGateway)
                 .build();
     }
 
+    @Bean(initMethod = "start", destroyMethod = "shutdown")
+    @ConditionalOnProperty("ddd.kafka.relayTopic")
+    @ConditionalOnBean(DataSource.class)
+    public KafkaOutboxRelay kafkaOutboxRelay(DataSource dataSource, DDDKafkaProperties properties) {
+        KafkaOutboxRelay.KafkaOutboxRelayBuilder builder = KafkaOutboxRelay.builder();
+
+        if (properties.getRelayTables() != null) {
+            builder.tables(properties.getRelayTables());
+        }
+
+        return builder
+                .dataSource(dataSource)
+                .topic(properties.getRelayTopic())
+                .kafkaHosts(properties.getKafkaHosts())
+                .build();
+    }
+
     @ConfigurationProperties("ddd.kafka")
     @NoArgsConstructor
     @Getter
@@ -51,8 +85,15 @@ public class DDDKafkaAutoConfiguration {
 
         String groupId;
         String topic;
+        // Extra topics, for example those of the event tables of each table group
+        List<String> topics;
         List<String> kafkaHosts;
         int pollingRate = 1000;
+        // Hands the records of each consumer to this many threads, sharded by aggregate
+        Integer workerThreads;
+        // Publishes the event table to this topic with the outbox relay, instead of Debezium
+        String relayTopic;
+        List<String> relayTables;
 
     }
 }